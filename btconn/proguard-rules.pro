@@ -19,3 +19,12 @@
 # If you keep the line number information, uncomment this to
 # hide the original source file name.
 #-renamesourcefileattribute SourceFile
+
+# Apps that want the verbose, debug and info logging of btconn removed from
+# their minified builds can copy these lines to their own rules. BtLog.setLevel
+# has no effect on the calls removed
+#-assumenosideeffects class com.mimmarcelo.btconn.BtLog {
+#    public static void v(...);
+#    public static void d(...);
+#    public static void i(...);
+#}
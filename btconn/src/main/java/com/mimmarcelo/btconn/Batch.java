@@ -0,0 +1,62 @@
+/**
+ * File name: Batch
+ * Envelope that packs many small messages of a channel in one message
+ *
+ * <pre>
+ * varint messages count
+ * per message: varint size and the message bytes
+ * </pre>
+ * <p>
+ * Its frames carry {@link Frame#FLAG_BATCH} and the receiver delivers each
+ * message on its own, so the frame header, checksum and read are paid once
+ * for the whole batch
+ * </p>
+ */
+package com.mimmarcelo.btconn;
+
+import java.io.IOException;
+import java.util.List;
+
+final class Batch {
+
+    /* ** Constructors ** */
+
+    private Batch() {
+    }
+
+    /* ** Static methods ** */
+
+    static byte[] pack(List<byte[]> messages) {
+        int size = 5;
+        for (byte[] message : messages) {
+            size += message.length + 5;
+        }
+        BinaryWriter writer = new BinaryWriter(size);
+        writer.writeVarInt(messages.size());
+        for (byte[] message : messages) {
+            writer.writeBytes(message, 0, message.length);
+        }
+        return writer.toByteArray();
+    }
+
+    /**
+     * Reads the bounds of the messages of an envelope
+     *
+     * @return Offset and size of each message, in pairs
+     * @throws IOException if the envelope is not valid
+     */
+    static int[] unpack(byte[] envelope, int length) throws IOException {
+        BinaryReader reader = new BinaryReader(envelope, 0, length);
+        int count = reader.readVarInt();
+        if (count < 0 || count > length) throw new IOException("Invalid batch count: " + count);
+        int[] bounds = new int[count * 2];
+        for (int i = 0; i < count; i++) {
+            int size = reader.readVarInt();
+            if (size < 0 || size > reader.remaining()) throw new IOException("Invalid batch message size: " + size);
+            bounds[i * 2] = length - reader.remaining();
+            bounds[i * 2 + 1] = size;
+            reader.skip(size);
+        }
+        return bounds;
+    } // end unpack method
+} // end Batch class
@@ -0,0 +1,157 @@
+/**
+ * File name: BinaryReader
+ * Reads the primitives written by {@link BinaryWriter}
+ *
+ * <p>
+ * It reads straight from the received bytes, which are valid only
+ * during {@link Codec#decode(BinaryReader)}
+ * </p>
+ */
+package com.mimmarcelo.btconn;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+public final class BinaryReader {
+
+    /* ** Private attributes ** */
+
+    private final byte[] buffer;
+    private int position;
+    private final int limit;
+    private char[] chars; // Reused by readString
+
+    /* ** Constructors ** */
+
+    public BinaryReader(byte[] buffer) {
+        this(buffer, 0, buffer.length);
+    }
+
+    public BinaryReader(byte[] buffer, int offset, int length) {
+        this.buffer = buffer;
+        this.position = offset;
+        this.limit = offset + length;
+    }
+
+    /* ** Public methods ** */
+
+    /**
+     * @return Bytes not read yet
+     */
+    public int remaining() {
+        return limit - position;
+    }
+
+    public int readByte() throws IOException {
+        need(1);
+        return buffer[position++];
+    }
+
+    public boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+
+    public int readShort() throws IOException {
+        need(2);
+        int value = (short) (((buffer[position] & 0xFF) << 8) | (buffer[position + 1] & 0xFF));
+        position += 2;
+        return value;
+    }
+
+    public int readInt() throws IOException {
+        need(4);
+        int value = Frame.readInt(buffer, position);
+        position += 4;
+        return value;
+    }
+
+    public long readLong() throws IOException {
+        need(8);
+        long value = TransferProtocol.readLong(buffer, position);
+        position += 8;
+        return value;
+    }
+
+    public float readFloat() throws IOException {
+        return Float.intBitsToFloat(readInt());
+    }
+
+    public double readDouble() throws IOException {
+        return Double.longBitsToDouble(readLong());
+    }
+
+    public int readVarInt() throws IOException {
+        return (int) readVarLong();
+    }
+
+    public long readVarLong() throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            need(1);
+            byte b = buffer[position++];
+            v |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return (v >>> 1) ^ -(v & 1);
+        }
+        throw new IOException("Invalid variable length number");
+    }
+
+    public byte[] readBytes() throws IOException {
+        int length = readLength();
+        byte[] data = new byte[length];
+        System.arraycopy(buffer, position, data, 0, length);
+        position += length;
+        return data;
+    }
+
+    public String readString() throws IOException {
+        int size = readLength();
+        if (chars == null || chars.length < size) chars = new char[Math.max(size, 32)];
+        int end = position + size;
+        int count = 0;
+        while (position < end) {
+            int b = buffer[position++] & 0xFF;
+            if (b < 0x80) {
+                chars[count++] = (char) b;
+            } else if (b < 0xE0) {
+                chars[count++] = (char) (((b & 0x1F) << 6) | continuation(end));
+            } else if (b < 0xF0) {
+                int c = ((b & 0x0F) << 12) | (continuation(end) << 6);
+                chars[count++] = (char) (c | continuation(end));
+            } else {
+                int code = ((b & 0x07) << 18) | (continuation(end) << 12);
+                code |= continuation(end) << 6;
+                code |= continuation(end);
+                if (b >= 0xF8 || code < 0x10000 || code > Character.MAX_CODE_POINT) {
+                    throw new IOException("Invalid UTF-8 string");
+                }
+                count += Character.toChars(code, chars, count);
+            }
+        }
+        return new String(chars, 0, count);
+    } // end readString method
+
+    /* ** Protected methods ** */
+
+    void skip(int bytes) throws IOException {
+        need(bytes);
+        position += bytes;
+    }
+
+    /* ** Private methods ** */
+
+    private int continuation(int end) throws IOException {
+        if (position >= end) throw new IOException("Invalid UTF-8 string");
+        return buffer[position++] & 0x3F;
+    }
+
+    private int readLength() throws IOException {
+        int length = readVarInt();
+        if (length < 0) throw new IOException("Invalid length: " + length);
+        need(length);
+        return length;
+    }
+
+    private void need(int bytes) throws IOException {
+        if (limit - position < bytes) throw new EOFException("Message shorter than expected");
+    }
+} // end BinaryReader class
@@ -0,0 +1,175 @@
+/**
+ * File name: BinaryWriter
+ * Writes primitives, big endian, into the bytes of a message
+ *
+ * <p>
+ * Integers can be written as variable length (1 byte for small values)
+ * and strings are encoded as UTF-8 straight into the buffer,
+ * without intermediate arrays
+ * </p>
+ */
+package com.mimmarcelo.btconn;
+
+import java.util.Arrays;
+
+public final class BinaryWriter {
+
+    /* ** Private attributes ** */
+
+    private byte[] buffer;
+    private int position;
+
+    /* ** Constructors ** */
+
+    public BinaryWriter() {
+        this(64);
+    }
+
+    /**
+     * @param capacity Expected message size, the buffer grows when needed
+     */
+    public BinaryWriter(int capacity) {
+        this.buffer = new byte[Math.max(capacity, 16)];
+        this.position = 0;
+    }
+
+    /* ** Public methods ** */
+
+    public int size() {
+        return position;
+    }
+
+    public BinaryWriter writeByte(int value) {
+        ensure(1);
+        buffer[position++] = (byte) value;
+        return this;
+    }
+
+    public BinaryWriter writeBoolean(boolean value) {
+        return writeByte(value ? 1 : 0);
+    }
+
+    public BinaryWriter writeShort(int value) {
+        ensure(2);
+        buffer[position++] = (byte) (value >>> 8);
+        buffer[position++] = (byte) value;
+        return this;
+    }
+
+    public BinaryWriter writeInt(int value) {
+        ensure(4);
+        Frame.writeInt(buffer, position, value);
+        position += 4;
+        return this;
+    }
+
+    public BinaryWriter writeLong(long value) {
+        ensure(8);
+        TransferProtocol.writeLong(buffer, position, value);
+        position += 8;
+        return this;
+    }
+
+    public BinaryWriter writeFloat(float value) {
+        return writeInt(Float.floatToRawIntBits(value));
+    }
+
+    public BinaryWriter writeDouble(double value) {
+        return writeLong(Double.doubleToRawLongBits(value));
+    }
+
+    /**
+     * Writes a signed integer in 1 to 5 bytes, small absolute values are shorter
+     */
+    public BinaryWriter writeVarInt(int value) {
+        return writeVarLong(value);
+    }
+
+    /**
+     * Writes a signed long in 1 to 10 bytes (zigzag, 7 bits per byte)
+     */
+    public BinaryWriter writeVarLong(long value) {
+        ensure(10);
+        long v = (value << 1) ^ (value >> 63);
+        while ((v & ~0x7FL) != 0) {
+            buffer[position++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        buffer[position++] = (byte) v;
+        return this;
+    }
+
+    public BinaryWriter writeBytes(byte[] data, int offset, int length) {
+        writeVarInt(length);
+        ensure(length);
+        System.arraycopy(data, offset, buffer, position, length);
+        position += length;
+        return this;
+    }
+
+    /**
+     * Writes the UTF-8 size followed by the UTF-8 bytes, null is not allowed
+     */
+    public BinaryWriter writeString(String value) {
+        int length = value.length();
+        int size = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) size++;
+            else if (c < 0x800) size += 2;
+            else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                size += 4;
+                i++;
+            } else size += 3;
+        }
+
+        writeVarInt(size);
+        ensure(size);
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                buffer[position++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[position++] = (byte) (0xC0 | (c >> 6));
+                buffer[position++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int code = Character.toCodePoint(c, value.charAt(++i));
+                buffer[position++] = (byte) (0xF0 | (code >> 18));
+                buffer[position++] = (byte) (0x80 | ((code >> 12) & 0x3F));
+                buffer[position++] = (byte) (0x80 | ((code >> 6) & 0x3F));
+                buffer[position++] = (byte) (0x80 | (code & 0x3F));
+            } else {
+                buffer[position++] = (byte) (0xE0 | (c >> 12));
+                buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return this;
+    } // end writeString method
+
+    /* ** Protected methods ** */
+
+    /**
+     * Writes the bytes without the size
+     */
+    void writeRaw(byte[] data, int offset, int length) {
+        ensure(length);
+        System.arraycopy(data, offset, buffer, position, length);
+        position += length;
+    }
+
+    /**
+     * @return The bytes written, the internal buffer itself when it is full
+     */
+    byte[] toByteArray() {
+        return position == buffer.length ? buffer : Arrays.copyOf(buffer, position);
+    }
+
+    /* ** Private methods ** */
+
+    private void ensure(int bytes) {
+        if (position + bytes > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + bytes));
+        }
+    }
+} // end BinaryWriter class
@@ -11,7 +11,6 @@ import android.bluetooth.BluetoothDevice;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.util.Log;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -92,39 +91,39 @@ final class BluetoothBroadcast extends BroadcastReceiver {
                     case BluetoothAdapter.SCAN_MODE_CONNECTABLE:
                         if (prevScanMode == BluetoothAdapter.SCAN_MODE_CONNECTABLE_DISCOVERABLE) {
                             requestCode = BluetoothListener.TURN_DISCOVERABLE_OFF;
-                            Log.i(TAG, "Discoverable turned off");
+                            BtLog.i(TAG, "Discoverable turned off");
                         } else if (prevScanMode != BluetoothListener.TURN_BLUETOOTH_ON) {
                             requestCode = BluetoothListener.TURN_BLUETOOTH_ON;
-                            Log.i(TAG, "Bluetooth turned on");
+                            BtLog.i(TAG, "Bluetooth turned on");
                         }
                         break;
                     case BluetoothAdapter.SCAN_MODE_NONE:
                         requestCode = BluetoothListener.TURN_BLUETOOTH_OFF;
-                        Log.i(TAG, "Bluetooth turned off");
+                        BtLog.i(TAG, "Bluetooth turned off");
                         break;
                     case BluetoothAdapter.SCAN_MODE_CONNECTABLE_DISCOVERABLE:
                         requestCode = BluetoothListener.TURN_DISCOVERABLE_ON;
-                        Log.i(TAG, "Discoverable turned on");
+                        BtLog.i(TAG, "Discoverable turned on");
                         break;
                     default:
-                        Log.i(TAG, "Status '" + scanMode + "' not tested");
+                        BtLog.i(TAG, "Status '" + scanMode + "' not tested");
                 } // end switch scanMode
 
                 prevScanMode = scanMode; // Register this scan mode
                 break; // end case ACTION_SCAN_MODE_CHANGED
             case BluetoothDevice.ACTION_FOUND: // Device found
                 requestCode = BluetoothListener.DEVICE_FOUND;
-                Log.i(TAG, "New device discovered");
+                BtLog.i(TAG, "New device discovered");
                 break;
             case BluetoothDevice.ACTION_ACL_CONNECTED: // Device connected
                 BluetoothAdapter.getDefaultAdapter().cancelDiscovery();
                 prevScanMode = BluetoothListener.TURN_BLUETOOTH_ON;
                 requestCode = BluetoothListener.NO_ACTION;
-                Log.i(TAG, "Device connected");
+                BtLog.i(TAG, "Device connected");
                 break;
             case BluetoothDevice.ACTION_ACL_DISCONNECTED: // Device disconnected
                 requestCode = BluetoothListener.DEVICE_DISCONNECTED;
-                Log.i(TAG, "Device disconnected");
+                BtLog.i(TAG, "Device disconnected");
                 break;
         } // end switch intent.getAction()
 
@@ -162,10 +161,10 @@ final class BluetoothBroadcast extends BroadcastReceiver {
      * @param bluetoothListener observer to be registered
      */
     protected void registerObserver(BluetoothListener bluetoothListener) {
-        Log.i(TAG, "Trying register a new observer");
+        BtLog.i(TAG, "Trying register a new observer");
         if (!bluetoothListeners.contains(bluetoothListener)) {
             bluetoothListeners.add(bluetoothListener);
-            Log.i(TAG, "A new Observer was registered");
+            BtLog.i(TAG, "A new Observer was registered");
         }
     }
 
@@ -177,10 +176,10 @@ final class BluetoothBroadcast extends BroadcastReceiver {
      * @param bluetoothListener observer to be unregistered
      */
     protected void unregisterObserver(BluetoothListener bluetoothListener) {
-        Log.i(TAG, "Trying unregister a observer");
+        BtLog.i(TAG, "Trying unregister a observer");
         if (bluetoothListeners.contains(bluetoothListener)) {
             bluetoothListeners.remove(bluetoothListener);
-            Log.i(TAG, "A Observer was unregistered");
+            BtLog.i(TAG, "A Observer was unregistered");
         }
     }
 } // end BluetoothBroadcast class
@@ -5,7 +5,6 @@
 package com.mimmarcelo.btconn;
 
 import android.app.Activity;
-import android.util.Log;
 
 import java.util.UUID;
 
@@ -18,7 +17,7 @@ public class BluetoothBuilder {
     public BluetoothBuilder(Activity activity, UUID uuid){
         this.activity = activity;
         this.uuid = uuid;
-        Log.i(TAG, "A new BluetoothBuilder was created");
+        BtLog.i(TAG, "A new BluetoothBuilder was created");
     }
 
     public BluetoothBuilder(Activity activity){
@@ -41,10 +40,10 @@ public class BluetoothBuilder {
         manager.setUuid(uuid);
 
         if(manager.getActivity() == null){
-            Log.e(TAG, "An Activity implementing BluetoothListener is required", new Throwable());
+            BtLog.e(TAG, "An Activity implementing BluetoothListener is required", new Throwable());
         }
         else{
-            Log.i(TAG, "A BluetoothManager was build");
+            BtLog.i(TAG, "A BluetoothManager was build");
         }
         return manager;
     }
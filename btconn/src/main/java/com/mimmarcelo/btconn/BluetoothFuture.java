@@ -0,0 +1,253 @@
+/**
+ * File name: BluetoothFuture
+ * Result of a {@link BluetoothManager} operation that finishes later
+ *
+ * <p>
+ * The same results are still sent to {@link BluetoothListener#onActivityResult(int, int, Intent)},
+ * the future lets them be waited or chained without a requestCode switch.
+ * CompletableFuture is available only from Android API 24, so this one keeps
+ * the small part of it that the operations need. The callbacks run on the
+ * thread that completes the future (or the caller, if already done), without
+ * any hop to the UI thread
+ * </p>
+ *
+ * @param <T> Type of the result
+ */
+package com.mimmarcelo.btconn;
+
+import android.content.Intent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public final class BluetoothFuture<T> implements Future<T> {
+
+    /* ** Private attributes ** */
+
+    private final CountDownLatch done;
+    private List<Callback<? super T>> callbacks; // Null after completed
+    private T value;
+    private Throwable failure;
+
+    /* ** Constructors ** */
+
+    BluetoothFuture() {
+        this.done = new CountDownLatch(1);
+        this.callbacks = new ArrayList<>();
+    }
+
+    /* ** Public methods ** */
+
+    /**
+     * @return A future already completed with the value
+     */
+    public static <T> BluetoothFuture<T> completed(T value) {
+        BluetoothFuture<T> future = new BluetoothFuture<>();
+        future.complete(value);
+        return future;
+    }
+
+    /**
+     * @return A future that completes when all the futures complete,
+     * or fails with the first one that fails
+     */
+    public static BluetoothFuture<Void> allOf(BluetoothFuture<?>... futures) {
+        final BluetoothFuture<Void> all = new BluetoothFuture<>();
+        final int[] left = {futures.length};
+        if (futures.length == 0) all.complete(null);
+        for (BluetoothFuture<?> future : futures) {
+            future.whenComplete(new Callback<Object>() {
+                @Override
+                public void onComplete(Object value, Throwable failure) {
+                    if (failure != null) {
+                        all.fail(failure);
+                        return;
+                    }
+                    boolean last;
+                    synchronized (left) {
+                        last = --left[0] == 0;
+                    }
+                    if (last) all.complete(null);
+                }
+            });
+        }
+        return all;
+    } // end allOf method
+
+    /**
+     * Calls the callback when the future completes, right now if already completed
+     *
+     * @return This future
+     */
+    public BluetoothFuture<T> whenComplete(Callback<? super T> callback) {
+        synchronized (this) {
+            if (callbacks != null) {
+                callbacks.add(callback);
+                return this;
+            }
+        }
+        callback.onComplete(value, failure);
+        return this;
+    }
+
+    /**
+     * Starts the next operation when this one succeeds
+     *
+     * @param next Receives the result and returns the future of the next operation
+     * @return Future of the next operation, it fails if this one fails
+     */
+    public <R> BluetoothFuture<R> thenCompose(final Function<? super T, BluetoothFuture<R>> next) {
+        final BluetoothFuture<R> result = new BluetoothFuture<>();
+        whenComplete(new Callback<T>() {
+            @Override
+            public void onComplete(T value, Throwable failure) {
+                if (failure != null) {
+                    result.fail(failure);
+                    return;
+                }
+                try {
+                    next.apply(value).whenComplete(new Callback<R>() {
+                        @Override
+                        public void onComplete(R value, Throwable failure) {
+                            if (failure != null) result.fail(failure);
+                            else result.complete(value);
+                        }
+                    });
+                } catch (RuntimeException e) {
+                    result.fail(e);
+                }
+            }
+        });
+        return result;
+    } // end thenCompose method
+
+    /**
+     * @return The result, or valueIfNotDone if the future is not completed
+     * @throws IllegalStateException if the operation failed
+     */
+    public T getNow(T valueIfNotDone) {
+        synchronized (this) {
+            if (callbacks != null) return valueIfNotDone;
+        }
+        if (failure != null) throw new IllegalStateException(failure);
+        return value;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return fail(new CancellationException());
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return isDone() && failure instanceof CancellationException;
+    }
+
+    @Override
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    /**
+     * Waits the result, it must not be called on the UI thread
+     */
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        done.await();
+        return result();
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!done.await(timeout, unit)) throw new TimeoutException();
+        return result();
+    }
+
+    /* ** Protected methods ** */
+
+    /**
+     * @return false if the future was completed already
+     */
+    boolean complete(T value) {
+        return finish(value, null);
+    }
+
+    boolean fail(Throwable failure) {
+        return finish(null, failure);
+    }
+
+    /* ** Private methods ** */
+
+    private boolean finish(T value, Throwable failure) {
+        List<Callback<? super T>> pending;
+        synchronized (this) {
+            if (callbacks == null) return false;
+            this.value = value;
+            this.failure = failure;
+            pending = callbacks;
+            callbacks = null;
+        }
+        done.countDown();
+        for (Callback<? super T> callback : pending) {
+            callback.onComplete(value, failure);
+        }
+        return true;
+    } // end finish method
+
+    private T result() throws ExecutionException {
+        if (failure instanceof CancellationException) throw (CancellationException) failure;
+        if (failure != null) throw new ExecutionException(failure);
+        return value;
+    }
+
+    /* ** Inner classes ** */
+
+    public interface Callback<T> {
+
+        /**
+         * @param value   Result, null if the operation failed
+         * @param failure Why the operation failed, null if it succeeded
+         */
+        void onComplete(T value, Throwable failure);
+    } // end Callback interface
+
+    public interface Function<T, R> {
+        R apply(T value);
+    } // end Function interface
+
+    /**
+     * Operation that finished with a resultCode other than success
+     */
+    public static final class ResultException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private final int requestCode;
+        private final int resultCode;
+
+        ResultException(int requestCode, int resultCode, String message) {
+            super(message);
+            this.requestCode = requestCode;
+            this.resultCode = resultCode;
+        }
+
+        /**
+         * @return Operation, as in {@link BluetoothListener#onActivityResult(int, int, Intent)}
+         */
+        public int getRequestCode() {
+            return requestCode;
+        }
+
+        /**
+         * @return The resultCode sent to {@link BluetoothListener#onActivityResult(int, int, Intent)}
+         */
+        public int getResultCode() {
+            return resultCode;
+        }
+    } // end ResultException class
+} // end BluetoothFuture class
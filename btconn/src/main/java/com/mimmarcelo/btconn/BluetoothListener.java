@@ -15,6 +15,16 @@ public interface BluetoothListener {
     String EXTRA_MESSAGE = "extraMessage";
     String EXTRA_STATUS = "extraStatus";
     String EXTRA_CONNECTION = "extraConnection";
+    String EXTRA_CHANNEL = "extraChannel";
+    String EXTRA_DATA = "extraData";
+    String EXTRA_TRANSFER_ID = "extraTransferId";
+    String EXTRA_BYTES = "extraBytes";
+    String EXTRA_FILE = "extraFile";
+    String EXTRA_CONNECT_TIME = "extraConnectTime";
+    String EXTRA_HANDSHAKE_TIME = "extraHandshakeTime";
+    String EXTRA_TOPIC = "extraTopic";
+    String EXTRA_SOURCE = "extraSource";
+    String EXTRA_ADDRESS = "extraAddress";
     String EXTRA_DEVICE = BluetoothDevice.EXTRA_DEVICE;
 
     // Defines EXTRA_STATUS values
@@ -31,6 +41,9 @@ public interface BluetoothListener {
     int CLOSE_CONNECTION = 10;
     int MESSAGE_RECEIVED = 11;
     int ASK_CLOSE_CONNECTION = 12;
+    int TRANSFER_PROGRESS = 13;
+    int TRANSFER_COMPLETE = 14;
+    int TRANSFER_RECEIVED = 15;
 
     int BLUETOOTH_ALREADY_ON = 50;
     int BLUETOOTH_ALREADY_OFF = 51;
@@ -17,11 +17,16 @@ import android.content.pm.PackageManager;
 import android.os.Build;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.ContextCompat;
-import android.util.Log;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 public final class BluetoothManager implements BluetoothListener {
@@ -29,6 +34,7 @@ public final class BluetoothManager implements BluetoothListener {
     /* ** Constants ** */
 
     private static final String TAG = BluetoothManager.class.getName();
+    private static final String HIDDEN_ADDRESS = "02:00:00:00:00:00"; // Returned by the adapter since Android 6
 
     /* ** Private static attributes ** */
 
@@ -102,6 +108,74 @@ public final class BluetoothManager implements BluetoothListener {
      */
     private List<ConnectedThread> connectedThreads;
 
+    /**
+     * Directory where the received {@link FileTransfer}s are written.
+     * When null, it is "btconn-transfers" inside the Activity files directory
+     */
+    private File transferDirectory;
+
+    /**
+     * File transfers not completed, by device address, to be resumed
+     * when the same device connects again
+     */
+    private Map<String, List<FileTransfer>> unfinishedTransfers;
+
+    /**
+     * Messages to devices not connected, by device address, see {@link Outbox}
+     */
+    private Map<String, Outbox> outboxes;
+
+    /**
+     * Topics subscribed by this device, sent to every device that connects
+     */
+    private Set<String> subscriptions;
+
+    /**
+     * Connections subscribed to each topic by their devices
+     */
+    private TopicIndex topicIndex;
+
+    /**
+     * Devices reachable through the connections, to forward messages between them
+     */
+    private RoutingTable routingTable;
+
+    /**
+     * Typed observers by channel, applied to every connection
+     */
+    private Map<Integer, TypedListener<?>> typedListeners;
+
+    /**
+     * Keyframe interval of the channels sent as deltas, applied to every connection
+     */
+    private Map<Integer, Integer> deltaChannels;
+
+    /**
+     * Envelope size of the batched channels, applied to every connection
+     */
+    private Map<Integer, Integer> batchChannels;
+    private MessageStream messageStream; // Messages of every connection, null until asked
+    private Charset charset; // Of the text messages, sent and received
+    private TokenBucket sendRate; // Shared by all the connections
+    private long connectionRate;  // Bytes per second of each connection, 0 for no limit
+    private int connectionBurst;
+    private long pingInterval;    // Milliseconds between the pings of each connection, 0 for none
+    private int minReceiveBuffer; // Bounds of the receive buffers, 0 for the default
+    private int maxReceiveBuffer;
+
+    /**
+     * Futures waiting the result of a popup, by requestCode
+     */
+    private Map<Integer, List<BluetoothFuture<Integer>>> requests;
+
+    /**
+     * Futures waiting a client connection, by device address
+     */
+    private Map<String, List<BluetoothFuture<ConnectedThread>>> connecting;
+    private BluetoothFuture<ConnectedThread> searching; // Waiting the device selected, null if none
+    private int outboxCapacity;
+    private long outboxMaxAge;
+
     /**
      * Create and manage popups to the application
      */
@@ -134,7 +208,21 @@ public final class BluetoothManager implements BluetoothListener {
         this.bluetoothBroadcast.registerObserver(this);
 
         this.connectedThreads = new ArrayList<>();
-        Log.i(TAG, "New BluetoothManager created");
+        this.unfinishedTransfers = new HashMap<>();
+        this.outboxes = new HashMap<>();
+        this.subscriptions = new LinkedHashSet<>();
+        this.topicIndex = new TopicIndex();
+        this.routingTable = new RoutingTable();
+        this.typedListeners = new HashMap<>();
+        this.deltaChannels = new HashMap<>();
+        this.batchChannels = new HashMap<>();
+        this.requests = new HashMap<>();
+        this.charset = Charset.forName("UTF-8");
+        this.sendRate = new TokenBucket();
+        this.connecting = new HashMap<>();
+        this.outboxCapacity = Outbox.DEFAULT_CAPACITY;
+        this.outboxMaxAge = Outbox.DEFAULT_MAX_AGE;
+        BtLog.i(TAG, "New BluetoothManager created");
     } // end constructor BluetoothManager
 
     /* ** Protected static methods ** */
@@ -154,7 +242,7 @@ public final class BluetoothManager implements BluetoothListener {
         if (bluetoothManager == null) {
             bluetoothManager = new BluetoothManager();
         }
-        Log.i(TAG, "BluetoothManager required");
+        BtLog.v(TAG, "BluetoothManager required");
         return bluetoothManager;
     }
 
@@ -164,7 +252,7 @@ public final class BluetoothManager implements BluetoothListener {
      * @return The BluetoothAdapter
      */
     public BluetoothAdapter getBluetoothAdapter() {
-        Log.i(TAG, "BluetoothAdapter required");
+        BtLog.v(TAG, "BluetoothAdapter required");
         return BluetoothAdapter.getDefaultAdapter();
     }
 
@@ -172,7 +260,7 @@ public final class BluetoothManager implements BluetoothListener {
      * @return The registred Activity
      */
     public Activity getActivity() {
-        Log.i(TAG, "Activity required");
+        BtLog.v(TAG, "Activity required");
         return activity;
     }
 
@@ -183,7 +271,7 @@ public final class BluetoothManager implements BluetoothListener {
      */
     public List<ConnectedThread> getConnections() {
         stopUnutilizedConnections();
-        Log.i(TAG, "List of connections required");
+        BtLog.v(TAG, "List of connections required");
         return connectedThreads;
     }
 
@@ -198,19 +286,19 @@ public final class BluetoothManager implements BluetoothListener {
 
                 // If exist a previous Activity, unregister the BluetoothBroadcast
                 if (this.activity != null) {
-                    Log.i(TAG, "BluetoothBroadcast unregistered from previous Activity");
+                    BtLog.i(TAG, "BluetoothBroadcast unregistered from previous Activity");
                     this.activity.unregisterReceiver(bluetoothBroadcast);
                 }
                 this.activity = activity;
                 this.activity.registerReceiver(bluetoothBroadcast, filter);
-                Log.i(TAG, "Activity updated");
+                BtLog.i(TAG, "Activity updated");
             } // end if activity instanceof BluetoothListener
             else {
-                Log.e(TAG, "Activity needs to be a instance of BluetoothListener", new Throwable());
+                BtLog.e(TAG, "Activity needs to be a instance of BluetoothListener", new Throwable());
             }
         } // end if activity != null
         else {
-            Log.e(TAG, "Activity is null", new Throwable());
+            BtLog.e(TAG, "Activity is null", new Throwable());
         }
     } // end setActivity method
 
@@ -220,7 +308,7 @@ public final class BluetoothManager implements BluetoothListener {
      * @param uuid
      */
     public void setUuid(UUID uuid) {
-        Log.i(TAG, "UUID updated");
+        BtLog.i(TAG, "UUID updated");
         this.uuid = uuid;
     }
 
@@ -241,8 +329,11 @@ public final class BluetoothManager implements BluetoothListener {
         bluetoothBroadcast.unregisterObserver(this);
         activity.unregisterReceiver(bluetoothBroadcast);
         stopAllConnections();
+        closeOutboxes();
+        closeMessageStream();
+        Session.clear();
         bluetoothManager = null;
-        Log.i(TAG, "BluetoothManager removed from activity");
+        BtLog.i(TAG, "BluetoothManager removed from activity");
     }
 
     /**
@@ -259,7 +350,7 @@ public final class BluetoothManager implements BluetoothListener {
      * </p>
      */
     public void askPermissions() {
-        Log.i(TAG, "Asking required permission");
+        BtLog.i(TAG, "Asking required permission");
         ActivityCompat.requestPermissions(activity, new String[]{Manifest.permission.ACCESS_FINE_LOCATION}, PERMISSION_REQUIRED);
     }
 
@@ -294,16 +385,21 @@ public final class BluetoothManager implements BluetoothListener {
      * <li>{@link Activity#RESULT_CANCELED} when the user cancels the operation</li>
      * <li>{@link BluetoothListener#BLUETOOTH_ALREADY_ON} when the Bluetooth is already on</li>
      * </ul>
+     *
+     * @return Completes with the resultCode, fails with a {@link BluetoothFuture.ResultException}
+     * when the user cancels (see {@link #handleActivityResult(int, int)})
      */
-    public void turnBluetoothOn() {
+    public BluetoothFuture<Integer> turnBluetoothOn() {
+        BluetoothFuture<Integer> future = request(TURN_BLUETOOTH_ON);
         if (getBluetoothAdapter().isEnabled()) {
-            Log.i(TAG, "Bluetooth is already on");
+            BtLog.i(TAG, "Bluetooth is already on");
             onActivityResult(TURN_BLUETOOTH_ON, BLUETOOTH_ALREADY_ON, null);
         } else {
-            Log.i(TAG, "Asking permission to turn Bluetooth on");
+            BtLog.i(TAG, "Asking permission to turn Bluetooth on");
             Intent intent = new Intent(BluetoothAdapter.ACTION_REQUEST_ENABLE);
             activity.startActivityForResult(intent, TURN_BLUETOOTH_ON);
         }
+        return future;
     } // end turnBluetoothOn method
 
     /**
@@ -327,9 +423,9 @@ public final class BluetoothManager implements BluetoothListener {
         if (getBluetoothAdapter().isEnabled()) {
             stopAllConnections();
             getBluetoothAdapter().disable();
-            Log.i(TAG, "Turning Bluetooth off");
+            BtLog.i(TAG, "Turning Bluetooth off");
         } else {
-            Log.i(TAG, "Bluetooth is already off");
+            BtLog.i(TAG, "Bluetooth is already off");
             onActivityResult(TURN_BLUETOOTH_OFF, BLUETOOTH_ALREADY_OFF, null);
         }
     } // end turnBluetoothOff method
@@ -352,13 +448,18 @@ public final class BluetoothManager implements BluetoothListener {
      * </ul>
      *
      * @param seconds Time <em>,in seconds,</em> for discovering
+     * @return Completes when the device is discoverable, fails with a
+     * {@link BluetoothFuture.ResultException} when the user cancels
+     * (see {@link #handleActivityResult(int, int)})
      */
-    public void turnDiscoverableOn(int seconds) {
+    public BluetoothFuture<Integer> turnDiscoverableOn(int seconds) {
+        BluetoothFuture<Integer> future = request(TURN_DISCOVERABLE_ON);
         Intent intent = new Intent(BluetoothAdapter.ACTION_REQUEST_DISCOVERABLE);
         intent.putExtra(BluetoothAdapter.EXTRA_DISCOVERABLE_DURATION, seconds);
 
-        Log.i(TAG, "Asking to turn Bluetooth discoverable");
+        BtLog.i(TAG, "Asking to turn Bluetooth discoverable");
         activity.startActivityForResult(intent, TURN_DISCOVERABLE_ON);
+        return future;
     } // end turnDiscoverableOn method
 
     /**
@@ -382,24 +483,37 @@ public final class BluetoothManager implements BluetoothListener {
      * <li>{@link Activity#RESULT_CANCELED} when the Bluetooth is off</li>
      * <li>{@link BluetoothListener#PERMISSION_REQUIRED} when the permission is required</li>
      * </ul>
+     *
+     * @return Completes with the connection to the device selected, fails with a
+     * {@link BluetoothFuture.ResultException} when the search does not start,
+     * no device is selected or the connection fails
      */
-    public void searchForServices() {
+    public BluetoothFuture<ConnectedThread> searchForServices() {
+        BluetoothFuture<ConnectedThread> future = new BluetoothFuture<>();
+        BluetoothFuture<ConnectedThread> previous;
+        synchronized (this) {
+            previous = searching;
+            searching = future;
+        }
+        if (previous != null) previous.cancel(false);
+
         // Verify if permission Manifest.permission.ACCESS_FINE_LOCATION is enabled
         if (permissionsEnabled()) {
             if (getBluetoothAdapter().isEnabled()) {
-                Log.i(TAG, "Searching for discoverable services");
+                BtLog.i(TAG, "Searching for discoverable services");
                 onActivityResult(TURN_SEARCHING_ON, Activity.RESULT_OK, null);
                 selectItemDialog = new SelectItemDialog(activity, this, DEVICE_SELECTED);
                 getBluetoothAdapter().startDiscovery();
             } else {
-                Log.i(TAG, "Bluetooth is not enabled");
+                BtLog.i(TAG, "Bluetooth is not enabled");
                 onActivityResult(TURN_SEARCHING_ON, Activity.RESULT_CANCELED, null);
             }
         } else {
-            Log.i(TAG, "Permission Manifest.permission.ACCESS_FINE_LOCATION not enabled");
+            BtLog.i(TAG, "Permission Manifest.permission.ACCESS_FINE_LOCATION not enabled");
             onActivityResult(TURN_SEARCHING_ON, PERMISSION_REQUIRED, null);
         }
-    } // end turnDiscoverableOn method
+        return future;
+    } // end searchForServices method
 
     /**
      * Show a popup with all current connections
@@ -410,14 +524,75 @@ public final class BluetoothManager implements BluetoothListener {
      */
     public void selectConnectionToClose() {
         if (getConnections().size() > 0) {
-            Log.i(TAG, "Asking to select connection to be closed");
+            BtLog.i(TAG, "Asking to select connection to be closed");
             new SelectItemDialog(activity, this, (List<BluetoothItem>) (List<?>) connectedThreads, CLOSE_CONNECTION);
         } else {
-            Log.i(TAG, "There is no connection to be closed");
+            BtLog.i(TAG, "There is no connection to be closed");
             onActivityResult(CLOSE_CONNECTION, NO_CONNECTIONS, null);
         }
     } // End selectConnectionToClose
 
+    /**
+     * Closes the connection
+     *
+     * @return Completes when the connection is closed, fails with a
+     * {@link BluetoothFuture.ResultException} if it is not connected
+     */
+    public BluetoothFuture<Void> close(ConnectedThread conn) {
+        BluetoothFuture<Void> future = new BluetoothFuture<>();
+        int index = connectedThreads.indexOf(conn);
+        if (index < 0) {
+            future.fail(new BluetoothFuture.ResultException(CLOSE_CONNECTION, NO_CONNECTIONS, "Not connected"));
+        } else {
+            stopConnection(index);
+            future.complete(null);
+        }
+        return future;
+    } // end close method
+
+    /**
+     * Connects, as a client, to a device that has the service open
+     *
+     * <p>
+     * The connection is sent to {@link BluetoothListener#onActivityResult(int, int, Intent)}
+     * identified by requestCode {@link BluetoothListener#DEVICE_CONNECTED}, like the
+     * ones of {@link #searchForServices()}
+     * </p>
+     *
+     * @param macAddress MAC address of the device
+     * @return Completes with the connection, fails with a {@link BluetoothFuture.ResultException}
+     * if the device is not reached
+     */
+    public BluetoothFuture<ConnectedThread> connect(String macAddress) {
+        BluetoothFuture<ConnectedThread> future = new BluetoothFuture<>();
+        synchronized (this) {
+            List<BluetoothFuture<ConnectedThread>> list = connecting.get(macAddress);
+            if (list == null) {
+                list = new ArrayList<>();
+                connecting.put(macAddress, list);
+            }
+            list.add(future);
+        }
+        ConnectionThread client = new ConnectionThread(uuid, this, macAddress);
+        client.start();
+        BtLog.i(TAG, "Client thread started");
+        return future;
+    } // end connect method
+
+    /**
+     * Completes the futures of the popups shown by this manager
+     *
+     * <p>
+     * The answers to the popups of {@link #turnBluetoothOn()} and
+     * {@link #turnDiscoverableOn(int)} reach only the Activity, so it calls
+     * this method from its onActivityResult for the futures to fail when
+     * the user cancels. Calling it for other results does nothing
+     * </p>
+     */
+    public void handleActivityResult(int requestCode, int resultCode) {
+        completeRequests(requestCode, resultCode, null);
+    }
+
     public void closeAllConnections(Activity activity){
         if(connectedThreads.size() > 0) {
             new MessageDialog(activity, this, "Confirm", "Are you sure to close all connections?", ASK_CLOSE_CONNECTION);
@@ -433,23 +608,437 @@ public final class BluetoothManager implements BluetoothListener {
      * @param message Message to be send
      */
     public void sendMessage(String message) {
-        Log.i(TAG, "Sending message: " + message);
+        BtLog.d(TAG, "Sending message: ", message);
         for (ConnectedThread conn : connectedThreads) {
             conn.sendMessage(message);
         }
     } // end sendMessage method
 
+    /**
+     * Send the message to all connected devices through a logical channel
+     *
+     * @param message Message to be send
+     * @param channel Channel number, from 0 to 65535
+     * @see ConnectedThread#openChannel(int, BluetoothListener)
+     */
+    public void sendMessageOnChannel(String message, int channel) {
+        sendMessageOnChannel(message, channel, ConnectedThread.PRIORITY_NORMAL);
+    }
+
+    /**
+     * Send the message to all connected devices through a logical channel and priority lane
+     *
+     * <p>
+     * {@link ConnectedThread#PRIORITY_HIGH} messages are written before any pending
+     * normal or bulk data, so control commands are not delayed by big payloads
+     * </p>
+     *
+     * @param message  Message to be send
+     * @param channel  Channel number, from 0 to 65535
+     * @param priority {@link ConnectedThread#PRIORITY_HIGH}, {@link ConnectedThread#PRIORITY_NORMAL}
+     *                 or {@link ConnectedThread#PRIORITY_BULK}
+     */
+    public void sendMessageOnChannel(String message, int channel, int priority) {
+        sendMessageOnChannel(message, channel, priority, 0);
+    }
+
+    /**
+     * Send a message that is worthless after some time to all connected devices
+     *
+     * <p>
+     * If a connection is too slow and the message is not started before the
+     * time to live ends, it is dropped. See {@link LaneMetrics#getExpired()}
+     * </p>
+     *
+     * @param message   Message to be send
+     * @param channel   Channel number, from 0 to 65535
+     * @param priority  {@link ConnectedThread#PRIORITY_HIGH}, {@link ConnectedThread#PRIORITY_NORMAL}
+     *                  or {@link ConnectedThread#PRIORITY_BULK}
+     * @param ttlMillis Time to live, 0 to use the one of the priority lane
+     */
+    public void sendMessageOnChannel(String message, int channel, int priority, long ttlMillis) {
+        BtLog.d(TAG, "Sending message on channel ", channel);
+        byte[] data = message.getBytes(charset);
+        for (ConnectedThread conn : connectedThreads) {
+            conn.send(channel, data, priority, ttlMillis);
+        }
+    } // end sendMessageOnChannel method
+
     /**
      * Send the message to the specific conn
      *
+     * <p>
+     * If the connection is closed, the message is kept in the device outbox
+     * and sent when the same device connects again
+     * </p>
+     *
      * @param message
      * @param conn
      */
     public void sendMessage(String message, ConnectedThread conn) {
-        Log.i(TAG, "Sending message: " + message);
-        conn.sendMessage(message);
+        BtLog.d(TAG, "Sending message: ", message);
+        if (conn.isClosed()) {
+            storeMessage(conn.getAddress(), message);
+        } else {
+            conn.sendMessage(message);
+        }
+    }
+
+    /**
+     * Keeps the message in the outbox of a device not connected,
+     * it is sent as soon as the device connects
+     *
+     * @param address MAC address of the device
+     * @param message Message to be send
+     * @return false if the message does not fit in the outbox
+     */
+    public synchronized boolean storeMessage(String address, String message) {
+        try {
+            return outbox(address).append(ConnectedThread.DEFAULT_CHANNEL, ConnectedThread.PRIORITY_NORMAL,
+                    message.getBytes(charset));
+        } catch (IOException e) {
+            BtLog.e(TAG, "Outbox not available: " + e.getMessage());
+            return false;
+        }
+    } // end storeMessage method
+
+    /**
+     * @param address MAC address of the device
+     * @return Messages waiting the device to connect
+     */
+    public synchronized int getStoredMessages(String address) {
+        Outbox outbox = outboxes.get(address);
+        return outbox != null ? outbox.size() : 0;
+    }
+
+    /**
+     * Limits the outbox of each device, applied to the outboxes opened afterwards
+     *
+     * <p>
+     * When an outbox is full the expired messages are removed first
+     * and then the oldest ones
+     * </p>
+     *
+     * @param maxBytes     Size of the outbox file
+     * @param maxAgeMillis Messages older than that are not sent
+     */
+    public synchronized void setOutboxLimits(int maxBytes, long maxAgeMillis) {
+        this.outboxCapacity = maxBytes;
+        this.outboxMaxAge = maxAgeMillis;
+    }
+
+    /**
+     * Send a typed message to all connected devices
+     *
+     * @param channel Channel number, from 0 to 65535
+     * @param codec   Writes the value as binary, the devices must decode it with the same codec
+     * @param value   Message to be send
+     * @see Codecs
+     */
+    public <T> void send(int channel, Codec<T> codec, T value) {
+        BinaryWriter writer = new BinaryWriter();
+        codec.encode(value, writer);
+        byte[] data = writer.toByteArray();
+        for (ConnectedThread conn : connectedThreads) {
+            conn.send(channel, data, ConnectedThread.PRIORITY_NORMAL);
+        }
+    }
+
+    /**
+     * Send a typed message to the specific conn
+     */
+    public <T> void send(int channel, Codec<T> codec, T value, ConnectedThread conn) {
+        conn.send(channel, codec, value, ConnectedThread.PRIORITY_NORMAL);
+    }
+
+    /**
+     * Receives the messages of a channel, from every connection, as typed objects
+     *
+     * <p>
+     * The observer is called on the UI thread. The messages of the channel are
+     * not sent to {@link BluetoothListener#onActivityResult(int, int, Intent)} anymore
+     * </p>
+     *
+     * @param channel  Channel number, from 0 to 65535
+     * @param codec    Reads the messages
+     * @param listener Observer of the messages, null to remove it
+     */
+    public synchronized <T> void setMessageListener(int channel, Codec<T> codec, MessageListener<T> listener) {
+        TypedListener<?> typed = listener != null ? new TypedListener<>(channel, codec, listener) : null;
+        if (typed != null) typedListeners.put(channel, typed);
+        else typedListeners.remove(channel);
+        for (ConnectedThread conn : connectedThreads) {
+            if (typed != null) typed.apply(conn);
+            else conn.setMessageListener(channel, codec, null);
+        }
+    } // end setMessageListener method
+
+    /**
+     * Sends the messages of a channel, to every connection, as the difference
+     * to the previous message of the same channel
+     *
+     * @param channel          Channel number, from 0 to 65535
+     * @param keyframeInterval Messages between whole messages, 0 to disable
+     * @see ConnectedThread#setDeltaEncoding(int, int)
+     */
+    public synchronized void setDeltaEncoding(int channel, int keyframeInterval) {
+        if (keyframeInterval > 0) deltaChannels.put(channel, keyframeInterval);
+        else deltaChannels.remove(channel);
+        for (ConnectedThread conn : connectedThreads) {
+            conn.setDeltaEncoding(channel, keyframeInterval);
+        }
+    }
+
+    /**
+     * Packs the small messages waiting in a channel, to every connection,
+     * in a single frame
+     *
+     * @param channel  Channel number, from 0 to 65535
+     * @param maxBytes Maximum envelope size, 0 to send each message alone
+     * @see ConnectedThread#setBatching(int, int)
+     */
+    public synchronized void setBatching(int channel, int maxBytes) {
+        if (maxBytes > 0) batchChannels.put(channel, maxBytes);
+        else batchChannels.remove(channel);
+        for (ConnectedThread conn : connectedThreads) {
+            conn.setBatching(channel, maxBytes);
+        }
+    }
+
+    /**
+     * Send the current value of a key to all connected devices
+     *
+     * <p>
+     * A value still waiting to be sent is replaced by the new one of the
+     * same key, so slow connections receive only the newest values.
+     * See {@link LaneMetrics#getConflated()}
+     * </p>
+     *
+     * @param key     Identifies the value, it is not sent
+     * @param message Message to be send
+     */
+    public void sendLatest(String key, String message) {
+        byte[] data = message.getBytes(charset);
+        for (ConnectedThread conn : connectedThreads) {
+            conn.sendLatest(ConnectedThread.DEFAULT_CHANNEL, key, data, ConnectedThread.PRIORITY_NORMAL);
+        }
+    }
+
+    /**
+     * Send the current value of a key to the specific conn
+     *
+     * @param key     Identifies the value, it is not sent
+     * @param message Message to be send
+     * @param conn    Connection to the receiver
+     */
+    public void sendLatest(String key, String message, ConnectedThread conn) {
+        conn.sendLatest(ConnectedThread.DEFAULT_CHANNEL, key, message.getBytes(charset), ConnectedThread.PRIORITY_NORMAL);
+    }
+
+    /**
+     * Sets the charset of the text messages, sent and received, of every
+     * connection. It is UTF-8 by default and the devices must use the same
+     *
+     * @see ConnectedThread#setCharset(Charset)
+     */
+    public synchronized void setCharset(Charset charset) {
+        this.charset = charset;
+        for (ConnectedThread conn : connectedThreads) {
+            conn.setCharset(charset);
+        }
+    }
+
+    /**
+     * Limits the rate of the data sent by all the connections together
+     *
+     * @param bytesPerSecond Rate limit, 0 for no limit
+     * @param burstBytes     Bytes that may be sent at once after idle
+     * @see #getPacingDelays()
+     */
+    public void setSendRate(long bytesPerSecond, int burstBytes) {
+        sendRate.setRate(bytesPerSecond, burstBytes);
+    }
+
+    /**
+     * Limits the rate of the data sent by each connection, now and later
+     *
+     * @param bytesPerSecond Rate limit, 0 for no limit
+     * @param burstBytes     Bytes that may be sent at once after idle
+     * @see ConnectedThread#setSendRate(long, int)
+     */
+    public synchronized void setConnectionSendRate(long bytesPerSecond, int burstBytes) {
+        connectionRate = bytesPerSecond;
+        connectionBurst = burstBytes;
+        for (ConnectedThread conn : connectedThreads) {
+            conn.setSendRate(bytesPerSecond, burstBytes);
+        }
+    }
+
+    /**
+     * Pings every connection, now and later, periodically to keep their link quality up to date
+     *
+     * @param millis Interval between pings, 0 to stop
+     * @see ConnectedThread#setPingInterval(long)
+     */
+    public synchronized void setPingInterval(long millis) {
+        pingInterval = millis;
+        for (ConnectedThread conn : connectedThreads) {
+            conn.setPingInterval(millis);
+        }
+    }
+
+    /**
+     * @return The connection with the best link score, null if none is connected
+     * @see ConnectedThread#getLinkScore()
+     */
+    public ConnectedThread getBestConnection() {
+        ConnectedThread best = null;
+        for (ConnectedThread conn : new ArrayList<>(connectedThreads)) {
+            if (best == null || conn.getLinkScore() > best.getLinkScore()) best = conn;
+        }
+        return best;
+    }
+
+    /**
+     * @return A snapshot of the traffic counters of each connection
+     * @see ConnectedThread#getMetrics()
+     */
+    public List<ConnectionMetrics> getMetrics() {
+        List<ConnectionMetrics> metrics = new ArrayList<>();
+        for (ConnectedThread conn : new ArrayList<>(connectedThreads)) {
+            metrics.add(conn.getMetrics());
+        }
+        return metrics;
+    }
+
+    /**
+     * @return Time, in nanoseconds, the frames of all the connections waited
+     * for the send rates; empty while no rate is reached
+     */
+    public LatencyHistogram getPacingDelays() {
+        LatencyHistogram delays = new LatencyHistogram();
+        for (ConnectedThread conn : new ArrayList<>(connectedThreads)) {
+            delays.add(conn.getPacingDelays());
+        }
+        return delays;
+    }
+
+    /**
+     * Limits the receive buffer of every connection, now and later
+     *
+     * @param min Smallest size, in bytes
+     * @param max Biggest size, in bytes
+     * @see ConnectedThread#setReceiveBufferBounds(int, int)
+     */
+    public synchronized void setReceiveBufferBounds(int min, int max) {
+        minReceiveBuffer = min;
+        maxReceiveBuffer = max;
+        for (ConnectedThread conn : connectedThreads) {
+            conn.setReceiveBufferBounds(min, max);
+        }
+    }
+
+    /**
+     * Receives the messages of every device, connected now and later, as a
+     * stream with backpressure
+     *
+     * <p>
+     * While the stream has a subscriber, the messages are sent to it instead of
+     * {@link BluetoothListener#MESSAGE_RECEIVED}, and only as many as it
+     * requested. A slow subscriber makes the devices stop sending after
+     * {@link ConnectedThread#CONNECTION_WINDOW} bytes each. onNext is called on
+     * a connection reader thread, not on the UI thread
+     * </p>
+     *
+     * @return The stream, it accepts one subscriber at a time and completes on {@link #destroy()}
+     * @see ConnectedThread#messages()
+     */
+    public synchronized Flow.Publisher<ReceivedMessage> messages() {
+        if (messageStream == null) messageStream = new MessageStream();
+        for (ConnectedThread conn : connectedThreads) {
+            conn.setMessageStream(messageStream);
+        }
+        return messageStream;
+    }
+
+    /**
+     * Receives, from all devices connected now and later, the messages published on the topic
+     *
+     * <p>
+     * They are caught on {@link BluetoothListener#onActivityResult(int, int, Intent)}
+     * identified by requestCode {@link BluetoothListener#MESSAGE_RECEIVED}
+     * with {@link BluetoothListener#EXTRA_TOPIC}
+     * </p>
+     *
+     * @param topic Topic name
+     */
+    public synchronized void subscribe(String topic) {
+        if (subscriptions.add(topic)) {
+            for (ConnectedThread conn : connectedThreads) {
+                conn.subscribe(topic);
+            }
+        }
     }
 
+    public synchronized void unsubscribe(String topic) {
+        if (subscriptions.remove(topic)) {
+            for (ConnectedThread conn : connectedThreads) {
+                conn.unsubscribe(topic);
+            }
+        }
+    }
+
+    /**
+     * Send the message only to the devices subscribed to the topic
+     *
+     * @param topic   Topic name
+     * @param message Message to be send
+     * @return Number of devices that will receive the message
+     */
+    public int publish(String topic, String message) {
+        List<ConnectedThread> subscribers = topicIndex.get(topic);
+        if (subscribers.isEmpty()) return 0;
+        byte[] data = message.getBytes(charset);
+        int sent = 0;
+        for (ConnectedThread conn : subscribers) {
+            if (conn.publish(topic, data, ConnectedThread.PRIORITY_NORMAL)) sent++;
+        }
+        return sent;
+    } // end publish method
+
+    /**
+     * Send the message to a device, directly or forwarded by the connected devices
+     *
+     * <p>
+     * When the device is not connected to this one, the message goes in a single
+     * routed frame to the connection that reaches it or, if unknown, to all of them.
+     * The devices in the way forward it without delivering it to their Activity.
+     * It is received with {@link BluetoothListener#EXTRA_SOURCE}
+     * </p>
+     *
+     * @param address MAC address of the destination device
+     * @param message Message to be send, it must fit in one frame when routed
+     * @return false if no connection was able to take the message
+     */
+    public boolean sendTo(String address, String message) {
+        for (ConnectedThread conn : connectedThreads) {
+            if (conn.getAddress().equals(address) && !conn.isClosed()) {
+                conn.sendMessage(message);
+                return true;
+            }
+        }
+
+        byte[] payload = routingTable.routed(address, ConnectedThread.DEFAULT_CHANNEL, message.getBytes(charset));
+        ConnectedThread next = routingTable.next(address);
+        if (next != null) return next.writeRouted(payload, 0, payload.length);
+
+        boolean sent = false;
+        for (ConnectedThread conn : routingTable.getConnections()) {
+            sent |= conn.writeRouted(payload, 0, payload.length);
+        }
+        return sent;
+    } // end sendTo method
+
     /**
      * Send the message to connection specified by the connIndex
      *
@@ -460,6 +1049,58 @@ public final class BluetoothManager implements BluetoothListener {
         sendMessage(message, connectedThreads.get(connIndex));
     }
 
+    /**
+     * Defines where the files received from other devices are written
+     *
+     * @param directory Destination directory, it is created if not exists
+     */
+    public void setTransferDirectory(File directory) {
+        this.transferDirectory = directory;
+        for (ConnectedThread conn : connectedThreads) {
+            conn.setTransferDirectory(directory);
+        }
+    }
+
+    /**
+     * Sends a file in chunks to the specific conn
+     *
+     * <p>
+     * If the connection drops, the transfer is resumed from the last acknowledged
+     * offset when the same device connects again.
+     * The progress can be caught on {@link BluetoothListener#onActivityResult(int, int, Intent)}
+     * identified by requestCode {@link BluetoothListener#TRANSFER_PROGRESS} and
+     * {@link BluetoothListener#TRANSFER_COMPLETE}
+     * </p>
+     *
+     * @param file File to be sent
+     * @param conn Connection to the receiver
+     * @return The transfer, to follow its progress
+     */
+    public FileTransfer sendFile(File file, ConnectedThread conn) {
+        FileTransfer transfer = FileTransfer.fromFile(file);
+        startTransfer(transfer, conn);
+        return transfer;
+    }
+
+    /**
+     * Sends a file (or stream) in chunks to the specific conn
+     *
+     * @param transfer File or stream to be sent
+     * @param conn     Connection to the receiver
+     */
+    public synchronized void startTransfer(FileTransfer transfer, ConnectedThread conn) {
+        BtLog.i(TAG, "Sending " + transfer.getName() + " to " + conn.getAddress());
+        if (transfer.isResumable()) {
+            List<FileTransfer> transfers = unfinishedTransfers.get(conn.getAddress());
+            if (transfers == null) {
+                transfers = new ArrayList<>();
+                unfinishedTransfers.put(conn.getAddress(), transfers);
+            }
+            if (!transfers.contains(transfer)) transfers.add(transfer);
+        }
+        conn.startTransfer(transfer);
+    } // end startTransfer method
+
     /**
      * Main channel between BtConn and the client app.
      *
@@ -481,15 +1122,33 @@ public final class BluetoothManager implements BluetoothListener {
                 }
                 break; // end case DEVICE_FOUND
             case TURN_DISCOVERABLE_ON:
-                Log.i(TAG, "Service is open");
+                BtLog.i(TAG, "Service is open");
                 openService();
                 break;
             case DEVICE_CONNECTED:
                 if (resultCode == Activity.RESULT_OK) {
                     if (data.hasExtra(EXTRA_CONNECTION)) {
                         ConnectedThread conn = (ConnectedThread) data.getSerializableExtra(EXTRA_CONNECTION);
+                        conn.setTransferDirectory(transferDirectory != null ? transferDirectory
+                                : new File(activity.getFilesDir(), "btconn-transfers"));
+                        conn.setTopicIndex(topicIndex);
+                        applyTypedListeners(conn);
+                        applyDeltaEncoding(conn);
+                        applyBatching(conn);
+                        applyMessageStream(conn);
+                        conn.setCharset(charset);
+                        applyReceiveBufferBounds(conn);
+                        applySendRate(conn);
+                        applyPingInterval(conn);
+                        conn.setRoutingTable(routingTable);
+                        resolveLocalAddress();
+                        routingTable.addDirect(conn);
                         conn.start();
                         connectedThreads.add(conn);
+                        sendSubscriptions(conn);
+                        announceRoutes();
+                        drainOutbox(conn);
+                        resumeTransfers(conn);
                     }
                 } // End if (resultCode == Activity.RESULT_OK)
                 break; // End case DEVICE_CONNECTED
@@ -499,10 +1158,20 @@ public final class BluetoothManager implements BluetoothListener {
                 }
                 if (resultCode == Activity.RESULT_OK) {
                     BluetoothDevice d = data.getParcelableExtra(EXTRA_CONNECTION);
-                    Log.i(TAG, "Device selected: " + d.getAddress());
-                    connect(d.getAddress());
+                    BtLog.i(TAG, "Device selected: " + d.getAddress());
+                    BluetoothFuture<ConnectedThread> connected = connect(d.getAddress());
+                    final BluetoothFuture<ConnectedThread> search = takeSearching();
+                    if (search != null) {
+                        connected.whenComplete(new BluetoothFuture.Callback<ConnectedThread>() {
+                            @Override
+                            public void onComplete(ConnectedThread conn, Throwable failure) {
+                                if (failure != null) search.fail(failure);
+                                else search.complete(conn);
+                            }
+                        });
+                    }
                 } else {
-                    Log.i(TAG, "None device selected");
+                    BtLog.i(TAG, "None device selected");
                 }
                 break; // end case DEVICE_SELECTED
             case ASK_CLOSE_CONNECTION:
@@ -513,20 +1182,35 @@ public final class BluetoothManager implements BluetoothListener {
             case CLOSE_CONNECTION:
                 if (resultCode == Activity.RESULT_OK) {
                     stopConnection(connectedThreads.indexOf(data.getSerializableExtra(BluetoothListener.EXTRA_CONNECTION)));
-                    Log.i(TAG, "Closing connection");
+                    BtLog.i(TAG, "Closing connection");
+                }
+                break;
+            case TRANSFER_COMPLETE:
+                if (resultCode == Activity.RESULT_OK) {
+                    ConnectedThread conn = (ConnectedThread) data.getSerializableExtra(EXTRA_CONNECTION);
+                    forgetTransfer(conn.getAddress(), data.getLongExtra(EXTRA_TRANSFER_ID, 0));
                 }
                 break;
             case DEVICE_DISCONNECTED:
                 stopUnutilizedConnections();
-                Log.i(TAG, "Connection closed");
+                BtLog.i(TAG, "Connection closed");
                 break;
         } // end switch EXTRA_STATUS
 
+        // Only now a new connection is started and registered, so the callbacks may use it
+        completeRequests(requestCode, resultCode, data);
+
         // To send the data for activity is necessary run in its own thread
         activity.runOnUiThread(new Runnable() {
             @Override
             public void run() {
                 ((BluetoothListener) activity).onActivityResult(requestCode, resultCode, data);
+
+                // Only now the peer may send more, so messages do not pile up in the UI queue
+                if (requestCode == MESSAGE_RECEIVED && data.hasExtra(EXTRA_BYTES)) {
+                    ConnectedThread conn = (ConnectedThread) data.getSerializableExtra(EXTRA_CONNECTION);
+                    conn.messageConsumed((int) data.getLongExtra(EXTRA_BYTES, 0));
+                }
             }
         });
     } // end onActivityResult method
@@ -551,20 +1235,212 @@ public final class BluetoothManager implements BluetoothListener {
      */
     private void openService() {
         ConnectionThread conn = new ConnectionThread(uuid, this);
-        Log.i(TAG, "Server thread started");
+        BtLog.i(TAG, "Server thread started");
         conn.start();
     }
 
     /**
-     * Starts a new thread for connection as a Bluetooth client and adds to connectedThreads list
-     *
-     * @param macAddress MAC address from Bluetooth server
+     * Creates a future completed by the next result of the popup
      */
-    private void connect(String macAddress) {
-        ConnectionThread client = new ConnectionThread(uuid, this, macAddress);
-        client.start();
-        Log.i(TAG, "Client thread started");
-    } // end connect method
+    private synchronized BluetoothFuture<Integer> request(int requestCode) {
+        List<BluetoothFuture<Integer>> list = requests.get(requestCode);
+        if (list == null) {
+            list = new ArrayList<>();
+            requests.put(requestCode, list);
+        }
+        BluetoothFuture<Integer> future = new BluetoothFuture<>();
+        list.add(future);
+        return future;
+    } // end request method
+
+    private synchronized BluetoothFuture<ConnectedThread> takeSearching() {
+        BluetoothFuture<ConnectedThread> future = searching;
+        searching = null;
+        return future;
+    }
+
+    /**
+     * Completes the futures waiting the result, they are completed on this thread
+     */
+    private void completeRequests(int requestCode, int resultCode, Intent data) {
+        List<BluetoothFuture<Integer>> popups = null;
+        List<BluetoothFuture<ConnectedThread>> connections = null;
+        BluetoothFuture<ConnectedThread> search = null;
+        synchronized (this) {
+            switch (requestCode) {
+                case TURN_BLUETOOTH_ON:
+                case TURN_DISCOVERABLE_ON:
+                    popups = requests.remove(requestCode);
+                    break;
+                case TURN_SEARCHING_ON:
+                case DEVICE_SELECTED:
+                    if (resultCode != Activity.RESULT_OK) search = takeSearching();
+                    break;
+                case DEVICE_CONNECTED:
+                    // The result without address is not of a client connection
+                    String address = data != null ? data.getStringExtra(EXTRA_ADDRESS) : null;
+                    if (address != null) connections = connecting.remove(address);
+                    break;
+            }
+        } // end synchronized
+
+        if (popups != null) {
+            for (BluetoothFuture<Integer> future : popups) {
+                if (resultCode == Activity.RESULT_CANCELED) {
+                    future.fail(new BluetoothFuture.ResultException(requestCode, resultCode, "Canceled by the user"));
+                } else {
+                    future.complete(resultCode);
+                }
+            }
+        }
+        if (search != null) {
+            search.fail(new BluetoothFuture.ResultException(requestCode, resultCode, "No device selected"));
+        }
+        if (connections != null) {
+            for (BluetoothFuture<ConnectedThread> future : connections) {
+                if (resultCode == Activity.RESULT_OK && data.hasExtra(EXTRA_CONNECTION)) {
+                    future.complete((ConnectedThread) data.getSerializableExtra(EXTRA_CONNECTION));
+                } else {
+                    future.fail(new BluetoothFuture.ResultException(requestCode, resultCode,
+                            data.hasExtra(EXTRA_MESSAGE) ? data.getStringExtra(EXTRA_MESSAGE) : "Not connected"));
+                }
+            }
+        }
+    } // end completeRequests method
+
+    /**
+     * Opens the outbox of the device, it is created if not exists
+     */
+    private Outbox outbox(String address) throws IOException {
+        Outbox outbox = outboxes.get(address);
+        if (outbox == null) {
+            File file = outboxFile(address);
+            File directory = file.getParentFile();
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Unable to create " + directory);
+            }
+            outbox = new Outbox(file, outboxCapacity, outboxMaxAge);
+            outboxes.put(address, outbox);
+        }
+        return outbox;
+    } // end outbox method
+
+    private File outboxFile(String address) {
+        return new File(new File(activity.getFilesDir(), "btconn-outbox"), address.replace(':', '-') + ".outbox");
+    }
+
+    /**
+     * Sends the messages kept while the device was not connected,
+     * including the ones kept before the application restarted
+     */
+    private synchronized void drainOutbox(ConnectedThread conn) {
+        String address = conn.getAddress();
+        if (!outboxes.containsKey(address) && !outboxFile(address).exists()) return;
+        try {
+            int sent = outbox(address).drain(conn);
+            if (sent > 0) BtLog.i(TAG, sent + " stored messages sent to " + address);
+        } catch (IOException e) {
+            BtLog.e(TAG, "Outbox not available: " + e.getMessage());
+        }
+    } // end drainOutbox method
+
+    /**
+     * Gives the routing table the address of this device before the first
+     * frame is routed. Since Android 6 the adapter hides it behind a fixed
+     * value, then it is learned from the first ROUTES frame instead
+     */
+    private void resolveLocalAddress() {
+        if (routingTable.getLocalAddress() != null) return;
+        BluetoothAdapter adapter = getBluetoothAdapter();
+        String address = adapter != null ? adapter.getAddress() : null;
+        if (address != null && !HIDDEN_ADDRESS.equals(address)) {
+            routingTable.setLocalAddress(address);
+        }
+    } // end resolveLocalAddress method
+
+    /**
+     * Tells every connected device which devices it reaches through this one
+     */
+    private void announceRoutes() {
+        for (ConnectedThread conn : connectedThreads) {
+            conn.sendRoutes();
+        }
+    }
+
+    private synchronized void applyDeltaEncoding(ConnectedThread conn) {
+        for (Map.Entry<Integer, Integer> entry : deltaChannels.entrySet()) {
+            conn.setDeltaEncoding(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private synchronized void applyBatching(ConnectedThread conn) {
+        for (Map.Entry<Integer, Integer> entry : batchChannels.entrySet()) {
+            conn.setBatching(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private synchronized void applyPingInterval(ConnectedThread conn) {
+        if (pingInterval > 0) conn.setPingInterval(pingInterval);
+    }
+
+    private synchronized void applySendRate(ConnectedThread conn) {
+        conn.setSharedRate(sendRate);
+        if (connectionRate > 0) conn.setSendRate(connectionRate, connectionBurst);
+    }
+
+    private synchronized void applyReceiveBufferBounds(ConnectedThread conn) {
+        if (maxReceiveBuffer > 0) conn.setReceiveBufferBounds(minReceiveBuffer, maxReceiveBuffer);
+    }
+
+    private synchronized void applyMessageStream(ConnectedThread conn) {
+        if (messageStream != null) conn.setMessageStream(messageStream);
+    }
+
+    private synchronized void closeMessageStream() {
+        if (messageStream != null) messageStream.complete();
+    }
+
+    private synchronized void applyTypedListeners(ConnectedThread conn) {
+        for (TypedListener<?> typed : typedListeners.values()) {
+            typed.apply(conn);
+        }
+    }
+
+    private synchronized void sendSubscriptions(ConnectedThread conn) {
+        for (String topic : subscriptions) {
+            conn.subscribe(topic);
+        }
+    }
+
+    private synchronized void closeOutboxes() {
+        for (Outbox outbox : outboxes.values()) {
+            outbox.close();
+        }
+        outboxes.clear();
+    }
+
+    /**
+     * Starts again the transfers interrupted by a previous connection to the same device
+     */
+    private synchronized void resumeTransfers(ConnectedThread conn) {
+        List<FileTransfer> transfers = unfinishedTransfers.get(conn.getAddress());
+        if (transfers != null) {
+            for (FileTransfer transfer : transfers) {
+                BtLog.i(TAG, "Resuming " + transfer.getName() + " from " + transfer.getAcknowledged());
+                conn.startTransfer(transfer);
+            }
+        }
+    } // end resumeTransfers method
+
+    private synchronized void forgetTransfer(String address, long id) {
+        List<FileTransfer> transfers = unfinishedTransfers.get(address);
+        if (transfers != null) {
+            for (int index = transfers.size() - 1; index >= 0; index--) {
+                if (transfers.get(index).getId() == id) transfers.remove(index);
+            }
+            if (transfers.isEmpty()) unfinishedTransfers.remove(address);
+        }
+    } // end forgetTransfer method
 
     /**
      * Stops the connection referred by the index
@@ -576,15 +1452,17 @@ public final class BluetoothManager implements BluetoothListener {
                     ConnectedThread conn = connectedThreads.get(index);
                     conn.cancel();
                     conn.interrupt();
-                    Log.i(TAG, "Connection closed");
+                    routingTable.remove(conn);
+                    BtLog.i(TAG, "Connection closed");
                 } catch (IOException e) {
-                    Log.e(TAG, "Exception: ", new Throwable());
+                    BtLog.e(TAG, "Exception: ", new Throwable());
                     e.printStackTrace();
                 } // End try catch
 
                 connectedThreads.remove(index);
+                announceRoutes();
             } // end if connection != null
-            Log.i(TAG, "Connection removed from list");
+            BtLog.i(TAG, "Connection removed from list");
         } // end if index >= 0
     } // end stopConnection method
 
@@ -609,4 +1487,35 @@ public final class BluetoothManager implements BluetoothListener {
             }
         }
     } // end stopUnutilizedConnections method
+
+    /* ** Inner classes ** */
+
+    /**
+     * Typed observer that runs on the UI thread
+     */
+    private final class TypedListener<T> implements MessageListener<T> {
+        private final int channel;
+        private final Codec<T> codec;
+        private final MessageListener<T> listener;
+
+        TypedListener(int channel, Codec<T> codec, MessageListener<T> listener) {
+            this.channel = channel;
+            this.codec = codec;
+            this.listener = listener;
+        }
+
+        void apply(ConnectedThread conn) {
+            conn.setMessageListener(channel, codec, this);
+        }
+
+        @Override
+        public void onMessage(final ConnectedThread conn, final int channel, final T message) {
+            activity.runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onMessage(conn, channel, message);
+                }
+            });
+        }
+    } // end TypedListener class
 } // End BluetoothManager class
@@ -0,0 +1,213 @@
+/**
+ * File name: BtLog
+ * Logging of the library, checked against the level before any message is built
+ *
+ * <p>
+ * The messages that pass the level are kept in a bounded ring in memory,
+ * that {@link #dump()} returns on demand, and written to logcat if enabled.
+ * The overloads with arguments concatenate them only after the level check,
+ * so a disabled message costs one comparison, and the int overloads do not
+ * box their argument. The level is {@link #INFO} until the application
+ * changes it, which may also remove the calls when minified (see setLevel)
+ * </p>
+ */
+package com.mimmarcelo.btconn;
+
+import android.util.Log;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+public final class BtLog {
+
+    /* ** Constants ** */
+
+    public static final int VERBOSE = Log.VERBOSE;
+    public static final int DEBUG = Log.DEBUG;
+    public static final int INFO = Log.INFO;
+    public static final int WARN = Log.WARN;
+    public static final int ERROR = Log.ERROR;
+    public static final int NONE = Integer.MAX_VALUE;
+
+    static final int DEFAULT_CAPACITY = 256;
+
+    private static final String LEVELS = "??VDIWE";
+
+    /* ** Private attributes ** */
+
+    private static volatile int level = INFO; // The library BuildConfig is always a release one
+    private static volatile boolean logcat = true;
+
+    // Ring of the last messages, guarded by BtLog.class
+    private static long[] times = new long[DEFAULT_CAPACITY];
+    private static int[] levels = new int[DEFAULT_CAPACITY];
+    private static String[] tags = new String[DEFAULT_CAPACITY];
+    private static String[] messages = new String[DEFAULT_CAPACITY];
+    private static int next;   // Position of the next message
+    private static int count;  // Messages in the ring
+
+    /* ** Constructors ** */
+
+    private BtLog() {
+    }
+
+    /* ** Public methods ** */
+
+    /**
+     * Changes the level, e.g. to {@link #WARN} in the release builds of the application
+     *
+     * <p>
+     * Minified applications may also strip the verbose, debug and info calls
+     * with the -assumenosideeffects rule in the proguard-rules.pro of the
+     * library. It is not applied unless copied to the application rules,
+     * and once applied those levels are gone whatever the level set here
+     * </p>
+     *
+     * @param minimum Lowest level kept, {@link #NONE} to disable the logging
+     */
+    public static void setLevel(int minimum) {
+        level = minimum;
+    }
+
+    public static int getLevel() {
+        return level;
+    }
+
+    /**
+     * @return true if the messages of the level are kept; check it before
+     * building an expensive message
+     */
+    public static boolean isLoggable(int messageLevel) {
+        return messageLevel >= level;
+    }
+
+    /**
+     * @param enabled false to keep the messages only in the ring
+     */
+    public static void setLogcat(boolean enabled) {
+        logcat = enabled;
+    }
+
+    /**
+     * Changes how many messages the ring keeps, the kept ones are dropped
+     */
+    public static synchronized void setCapacity(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        times = new long[capacity];
+        levels = new int[capacity];
+        tags = new String[capacity];
+        messages = new String[capacity];
+        next = 0;
+        count = 0;
+    }
+
+    /**
+     * @return The messages in the ring, the oldest first, one line each
+     */
+    public static synchronized List<String> dump() {
+        SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss.SSS", Locale.US);
+        List<String> lines = new ArrayList<>(count);
+        int capacity = messages.length;
+        for (int i = 0; i < count; i++) {
+            int index = (next - count + i + capacity) % capacity;
+            lines.add(format.format(new Date(times[index])) + " " + LEVELS.charAt(levels[index]) + "/"
+                    + tags[index] + ": " + messages[index]);
+        }
+        return lines;
+    } // end dump method
+
+    public static synchronized void clear() {
+        for (int i = 0; i < messages.length; i++) {
+            tags[i] = null;
+            messages[i] = null;
+        }
+        next = 0;
+        count = 0;
+    }
+
+    public static void v(String tag, String message) {
+        if (VERBOSE >= level) log(VERBOSE, tag, message, null);
+    }
+
+    public static void d(String tag, String message) {
+        if (DEBUG >= level) log(DEBUG, tag, message, null);
+    }
+
+    public static void d(String tag, String message, Object arg) {
+        if (DEBUG >= level) log(DEBUG, tag, message + arg, null);
+    }
+
+    public static void d(String tag, String message, int arg) {
+        if (DEBUG >= level) log(DEBUG, tag, message + arg, null);
+    }
+
+    public static void d(String tag, String message, Object arg1, Object arg2) {
+        if (DEBUG >= level) log(DEBUG, tag, message + arg1 + arg2, null);
+    }
+
+    public static void i(String tag, String message) {
+        if (INFO >= level) log(INFO, tag, message, null);
+    }
+
+    public static void i(String tag, String message, Object arg) {
+        if (INFO >= level) log(INFO, tag, message + arg, null);
+    }
+
+    public static void i(String tag, String message, int arg) {
+        if (INFO >= level) log(INFO, tag, message + arg, null);
+    }
+
+    public static void i(String tag, String message, Object arg1, Object arg2) {
+        if (INFO >= level) log(INFO, tag, message + arg1 + arg2, null);
+    }
+
+    public static void w(String tag, String message) {
+        if (WARN >= level) log(WARN, tag, message, null);
+    }
+
+    public static void w(String tag, String message, Object arg) {
+        if (WARN >= level) log(WARN, tag, message + arg, null);
+    }
+
+    public static void w(String tag, String message, int arg) {
+        if (WARN >= level) log(WARN, tag, message + arg, null);
+    }
+
+    public static void w(String tag, String message, Throwable throwable) {
+        if (WARN >= level) log(WARN, tag, message, throwable);
+    }
+
+    public static void e(String tag, String message) {
+        if (ERROR >= level) log(ERROR, tag, message, null);
+    }
+
+    public static void e(String tag, String message, Throwable throwable) {
+        if (ERROR >= level) log(ERROR, tag, message, throwable);
+    }
+
+    /* ** Private methods ** */
+
+    private static void log(int messageLevel, String tag, String message, Throwable throwable) {
+        if (message == null) message = "null";
+        synchronized (BtLog.class) {
+            times[next] = System.currentTimeMillis();
+            levels[next] = messageLevel;
+            tags[next] = tag;
+            messages[next] = throwable != null ? message + " " + throwable : message;
+            next = (next + 1) % messages.length;
+            if (count < messages.length) count++;
+        }
+
+        if (!logcat) return;
+        if (throwable == null) {
+            Log.println(messageLevel, tag, message);
+        } else if (messageLevel == ERROR) {
+            Log.e(tag, message, throwable);
+        } else {
+            Log.w(tag, message, throwable);
+        }
+    } // end log method
+} // end BtLog class
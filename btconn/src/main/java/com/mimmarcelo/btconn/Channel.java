@@ -0,0 +1,304 @@
+/**
+ * File name: Channel
+ * A logical stream multiplexed over the single socket of a {@link ConnectedThread}
+ *
+ * <p>
+ * Each channel is identified by a number (0 - 65535) that both peers share,
+ * it has its own receive observer and its own send window, so a busy channel
+ * never blocks the others
+ * </p>
+ */
+package com.mimmarcelo.btconn;
+
+import android.content.Intent;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+public final class Channel {
+
+    /* ** Constants ** */
+
+    /**
+     * Bytes that a channel may send before the peer gives credits back
+     */
+    public static final int INITIAL_WINDOW = 16 * 1024;
+
+    /**
+     * Part of the window only {@link ConnectedThread#PRIORITY_HIGH} may use,
+     * so bulk traffic never takes the credits a control message needs
+     */
+    static final int HIGH_RESERVE = INITIAL_WINDOW / 4;
+
+    /* ** Private attributes ** */
+
+    private final int number;
+
+    /**
+     * Observer that receives the {@link BluetoothListener#MESSAGE_RECEIVED} of this channel.
+     * When null, the messages are sent to the {@link ConnectedThread} observer
+     */
+    private volatile BluetoothListener listener;
+
+    /**
+     * Decodes the messages of this channel, when defined it receives the messages instead of listener
+     */
+    private volatile MessageReader reader;
+
+    /* ** Sending side, guarded by the OutboundQueue lock ** */
+
+    int credits;
+    int creditTotal; // Last total given by the peer
+    final ArrayDeque<Outgoing>[] pending; // One queue per priority lane
+    final Map<String, Outgoing> latest;   // Last pending message of each conflation key
+    DeltaEncoder deltaEncoder;            // Null when whole messages are sent
+    int batchLimit;                       // Envelope size of the batches, 0 when not batched
+
+    /* ** Receiving side, used only by the reader thread ** */
+
+    private byte[][] received; // One message being reassembled per priority lane
+    private int[] receivedLength;
+    private int[] receivedWire; // Frame bytes of the message held from the connection window
+    private boolean[] discarding; // Message lost a frame, the rest is dropped until its end
+    private DeltaDecoder deltaDecoder; // Created by the first delta received
+    int unacknowledged; // Bytes processed but not given back to the peer
+    int granted;        // Total given back to the peer
+
+    /* ** Constructors ** */
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    Channel(int number, BluetoothListener listener) {
+        if (number < 0 || number > Frame.MAX_CHANNEL) {
+            throw new IllegalArgumentException("Invalid channel number: " + number);
+        }
+        this.number = number;
+        this.listener = listener;
+        this.credits = INITIAL_WINDOW;
+        this.pending = new ArrayDeque[Frame.LANES];
+        this.latest = new HashMap<>();
+        this.received = new byte[Frame.LANES][];
+        this.receivedLength = new int[Frame.LANES];
+        this.receivedWire = new int[Frame.LANES];
+        this.discarding = new boolean[Frame.LANES];
+        for (int lane = 0; lane < Frame.LANES; lane++) {
+            this.pending[lane] = new ArrayDeque<>();
+            this.received[lane] = new byte[256];
+        }
+        this.unacknowledged = 0;
+        this.granted = 0;
+    }
+
+    /* ** Public methods ** */
+
+    public int getNumber() {
+        return number;
+    }
+
+    public BluetoothListener getListener() {
+        return listener;
+    }
+
+    /**
+     * Defines who receives the messages of this channel
+     *
+     * <p>
+     * The observer is called on the connection reader thread,
+     * not on the UI thread
+     * </p>
+     *
+     * @param listener observer of this channel, null to use the connection one
+     */
+    public void setListener(BluetoothListener listener) {
+        this.listener = listener;
+    }
+
+    /* ** Protected methods ** */
+
+    /**
+     * Delivers the messages of this channel through the reader
+     *
+     * @param reader Decoder of the messages, null to go back to {@link #getListener()}
+     */
+    void setReader(MessageReader reader) {
+        this.reader = reader;
+    }
+
+    boolean hasReader() {
+        return reader != null;
+    }
+
+    /**
+     * Sends the message reassembled in the lane to the reader, straight
+     * from the reassembly buffer
+     *
+     * @throws IOException when the reader is not able to decode it, the message is dropped
+     */
+    void deliverToReader(ConnectedThread conn, byte[] data, int offset, int length) throws IOException {
+        reader.read(conn, number, data, offset, length);
+    }
+
+    void deliverToReader(int lane, ConnectedThread conn) throws IOException {
+        try {
+            reader.read(conn, number, received[lane], 0, receivedLength[lane]);
+        } finally {
+            receivedLength[lane] = 0;
+            receivedWire[lane] = 0;
+        }
+    }
+
+    /**
+     * Appends a fragment to the message being reassembled in the lane
+     *
+     * @param wireLength Frame payload bytes held from the connection window until
+     *                   the message is consumed, 0 if they were given back already
+     */
+    void append(int lane, byte[] data, int offset, int length, int wireLength) {
+        receivedWire[lane] += wireLength;
+        int used = receivedLength[lane];
+        if (used + length > received[lane].length) {
+            received[lane] = Arrays.copyOf(received[lane], Math.max(received[lane].length * 2, used + length));
+        }
+        System.arraycopy(data, offset, received[lane], used, length);
+        receivedLength[lane] = used + length;
+    }
+
+    /**
+     * @return Frame payload bytes of the message being reassembled in the lane
+     * still held from the connection window, see {@link #append(int, byte[], int, int, int)}
+     */
+    int wireLength(int lane) {
+        return receivedWire[lane];
+    }
+
+    /**
+     * Finishes the message reassembled in the lane
+     *
+     * @return A copy of the whole message, it can be kept by the observers
+     */
+    byte[] takeMessage(int lane) {
+        byte[] message = Arrays.copyOf(received[lane], receivedLength[lane]);
+        receivedLength[lane] = 0;
+        receivedWire[lane] = 0;
+        return message;
+    }
+
+    /**
+     * Replaces the envelope reassembled in the lane by the message it rebuilds
+     *
+     * @return false if the delta base was lost, the message is dropped and
+     * the frame payload bytes can be taken by {@link #wireLength(int)} until the next append
+     */
+    boolean undelta(int lane) {
+        if (deltaDecoder == null) deltaDecoder = new DeltaDecoder();
+        int size;
+        try {
+            size = deltaDecoder.decode(lane, received[lane], receivedLength[lane]);
+        } catch (IOException e) {
+            receivedLength[lane] = 0;
+            return false;
+        }
+        if (received[lane].length < size) received[lane] = new byte[Math.max(size, received[lane].length * 2)];
+        System.arraycopy(deltaDecoder.buffer(lane), 0, received[lane], 0, size);
+        receivedLength[lane] = size;
+        return true;
+    } // end undelta method
+
+    /**
+     * Forgets the message reassembled in the lane
+     *
+     * @return Frame payload bytes dropped
+     */
+    int drop(int lane) {
+        int wire = receivedWire[lane];
+        receivedLength[lane] = 0;
+        receivedWire[lane] = 0;
+        return wire;
+    }
+
+    /**
+     * Drops the message being reassembled in the lane, and its next
+     * fragments until the last one, because one of its frames was lost
+     *
+     * @return Frame payload bytes dropped
+     */
+    int discard(int lane) {
+        int wire = receivedWire[lane];
+        receivedLength[lane] = 0;
+        receivedWire[lane] = 0;
+        discarding[lane] = true;
+        return wire;
+    }
+
+    /**
+     * {@link #discard(int)} every lane with a message being reassembled
+     *
+     * @return Frame payload bytes dropped
+     */
+    int discardPartial() {
+        int wire = 0;
+        for (int lane = 0; lane < Frame.LANES; lane++) {
+            if (receivedLength[lane] > 0 || receivedWire[lane] > 0) wire += discard(lane);
+        }
+        return wire;
+    }
+
+    /**
+     * {@link #drop(int)} every lane with a message being reassembled, their
+     * next fragments are received as new messages
+     *
+     * @return Frame payload bytes dropped
+     */
+    int dropPartial() {
+        int wire = 0;
+        for (int lane = 0; lane < Frame.LANES; lane++) {
+            if (receivedLength[lane] > 0 || receivedWire[lane] > 0) wire += drop(lane);
+        }
+        return wire;
+    }
+
+    boolean isDiscarding(int lane) {
+        return discarding[lane];
+    }
+
+    /**
+     * The last fragment of the dropped message arrived
+     */
+    void endDiscard(int lane) {
+        discarding[lane] = false;
+    }
+
+    /**
+     * Continues the messages being reassembled by the same channel of the
+     * previous connection, its stream resumed in this one
+     *
+     * <p>
+     * The peer continues its started messages in the new connection, after
+     * sending again the frames this side did not acknowledge. If its replay
+     * buffer lost some of them, it sends a {@link Frame#TYPE_SYNC} and the
+     * partial messages are discarded until their last fragment
+     * </p>
+     */
+    void adopt(Channel previous) {
+        received = previous.received;
+        receivedLength = previous.receivedLength;
+        receivedWire = previous.receivedWire;
+        discarding = previous.discarding;
+        if (listener == null) listener = previous.listener;
+        if (reader == null) reader = previous.reader;
+        if (deltaDecoder == null) deltaDecoder = previous.deltaDecoder;
+    }
+
+    /**
+     * Sends the message to the channel observer or, if not defined, to the default one
+     *
+     * @return true if the channel observer received the message
+     */
+    boolean deliver(BluetoothListener defaultListener, int requestCode, int resultCode, Intent intent) {
+        BluetoothListener l = listener;
+        (l != null ? l : defaultListener).onActivityResult(requestCode, resultCode, intent);
+        return l != null;
+    }
+} // end Channel class
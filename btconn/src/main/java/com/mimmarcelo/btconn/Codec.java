@@ -0,0 +1,31 @@
+/**
+ * File name: Codec
+ * Converts typed objects to the bytes of a message and back
+ *
+ * <p>
+ * Registered by channel in {@link ConnectedThread#setMessageListener(int, Codec, MessageListener)}
+ * or {@link BluetoothManager#setMessageListener(int, Codec, MessageListener)}.
+ * The values are written straight as binary primitives, see {@link BinaryWriter}
+ * and {@link Codecs} for the ones included in the library
+ * </p>
+ *
+ * @param <T> Type of the messages
+ */
+package com.mimmarcelo.btconn;
+
+import java.io.IOException;
+
+public interface Codec<T> {
+
+    /**
+     * Writes the value in the message
+     */
+    void encode(T value, BinaryWriter writer);
+
+    /**
+     * Reads a value written by {@link #encode(Object, BinaryWriter)}
+     *
+     * @throws IOException when the message is not a valid value
+     */
+    T decode(BinaryReader reader) throws IOException;
+}
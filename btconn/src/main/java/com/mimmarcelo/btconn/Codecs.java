@@ -0,0 +1,146 @@
+/**
+ * File name: Codecs
+ * {@link Codec}s of the common message types
+ *
+ * <p>
+ * {@link #VALUES} is a compact binary alternative to formatting records as
+ * text: a map of names to primitive values, each one written with a one
+ * byte type tag and its binary value
+ * </p>
+ */
+package com.mimmarcelo.btconn;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public final class Codecs {
+
+    /* ** Constants ** */
+
+    // Type tags of VALUES
+    private static final int TAG_NULL = 0;
+    private static final int TAG_FALSE = 1;
+    private static final int TAG_TRUE = 2;
+    private static final int TAG_LONG = 3;    // Integer and Long, variable length
+    private static final int TAG_DOUBLE = 4;
+    private static final int TAG_FLOAT = 5;
+    private static final int TAG_STRING = 6;
+    private static final int TAG_BYTES = 7;
+
+    public static final Codec<String> STRING = new Codec<String>() {
+        @Override
+        public void encode(String value, BinaryWriter writer) {
+            writer.writeString(value);
+        }
+
+        @Override
+        public String decode(BinaryReader reader) throws IOException {
+            return reader.readString();
+        }
+    };
+
+    public static final Codec<Long> LONG = new Codec<Long>() {
+        @Override
+        public void encode(Long value, BinaryWriter writer) {
+            writer.writeVarLong(value);
+        }
+
+        @Override
+        public Long decode(BinaryReader reader) throws IOException {
+            return reader.readVarLong();
+        }
+    };
+
+    public static final Codec<Double> DOUBLE = new Codec<Double>() {
+        @Override
+        public void encode(Double value, BinaryWriter writer) {
+            writer.writeDouble(value);
+        }
+
+        @Override
+        public Double decode(BinaryReader reader) throws IOException {
+            return reader.readDouble();
+        }
+    };
+
+    /**
+     * Maps of names to null, Boolean, Integer, Long, Float, Double, String or byte[].
+     * Integers are decoded as Long
+     */
+    public static final Codec<Map<String, Object>> VALUES = new Codec<Map<String, Object>>() {
+        @Override
+        public void encode(Map<String, Object> value, BinaryWriter writer) {
+            writer.writeVarInt(value.size());
+            for (Map.Entry<String, Object> entry : value.entrySet()) {
+                writer.writeString(entry.getKey());
+                writeValue(entry.getValue(), writer);
+            }
+        }
+
+        @Override
+        public Map<String, Object> decode(BinaryReader reader) throws IOException {
+            int size = reader.readVarInt();
+            if (size < 0 || size > reader.remaining()) throw new IOException("Invalid map size: " + size);
+            Map<String, Object> map = new LinkedHashMap<>(size * 2);
+            for (int i = 0; i < size; i++) {
+                String key = reader.readString();
+                map.put(key, readValue(reader));
+            }
+            return map;
+        }
+    };
+
+    /* ** Constructors ** */
+
+    private Codecs() {
+    }
+
+    /* ** Private methods ** */
+
+    private static void writeValue(Object value, BinaryWriter writer) {
+        if (value == null) {
+            writer.writeByte(TAG_NULL);
+        } else if (value instanceof Boolean) {
+            writer.writeByte((Boolean) value ? TAG_TRUE : TAG_FALSE);
+        } else if (value instanceof Integer || value instanceof Long
+                || value instanceof Short || value instanceof Byte) {
+            writer.writeByte(TAG_LONG).writeVarLong(((Number) value).longValue());
+        } else if (value instanceof Double) {
+            writer.writeByte(TAG_DOUBLE).writeDouble((Double) value);
+        } else if (value instanceof Float) {
+            writer.writeByte(TAG_FLOAT).writeFloat((Float) value);
+        } else if (value instanceof String) {
+            writer.writeByte(TAG_STRING).writeString((String) value);
+        } else if (value instanceof byte[]) {
+            byte[] bytes = (byte[]) value;
+            writer.writeByte(TAG_BYTES).writeBytes(bytes, 0, bytes.length);
+        } else {
+            throw new IllegalArgumentException("Unsupported value type: " + value.getClass().getName());
+        }
+    } // end writeValue method
+
+    private static Object readValue(BinaryReader reader) throws IOException {
+        int tag = reader.readByte();
+        switch (tag) {
+            case TAG_NULL:
+                return null;
+            case TAG_FALSE:
+                return Boolean.FALSE;
+            case TAG_TRUE:
+                return Boolean.TRUE;
+            case TAG_LONG:
+                return reader.readVarLong();
+            case TAG_DOUBLE:
+                return reader.readDouble();
+            case TAG_FLOAT:
+                return reader.readFloat();
+            case TAG_STRING:
+                return reader.readString();
+            case TAG_BYTES:
+                return reader.readBytes();
+            default:
+                throw new IOException("Invalid value tag: " + tag);
+        }
+    } // end readValue method
+} // end Codecs class
@@ -0,0 +1,110 @@
+/**
+ * File name: Compressor
+ * Compresses and decompresses frame payloads of one connection
+ *
+ * <p>
+ * The {@link Deflater}, the {@link Inflater} and their buffers are created
+ * once per connection and reset for each frame, so no memory is allocated
+ * per message. Compression is used only after the peer tells it is able
+ * to decompress and only for payloads bigger than the threshold
+ * </p>
+ * <p>
+ * The sending half is used only by the sender thread and the receiving
+ * half only by the reader thread
+ * </p>
+ */
+package com.mimmarcelo.btconn;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+final class Compressor {
+
+    /* ** Constants ** */
+
+    static final int DEFAULT_THRESHOLD = 128;
+
+    /* ** Private attributes ** */
+
+    private final Deflater deflater;
+    private final Inflater inflater;
+    private final byte[] compressed;   // Sender thread output
+    private final byte[] decompressed; // Reader thread output
+    private volatile boolean enabled;
+    private volatile int threshold;
+
+    /* ** Constructors ** */
+
+    Compressor(int maxPayload) {
+        this.deflater = new Deflater(Deflater.BEST_SPEED);
+        this.inflater = new Inflater();
+        this.compressed = new byte[maxPayload];
+        this.decompressed = new byte[maxPayload];
+        this.enabled = false;
+        this.threshold = DEFAULT_THRESHOLD;
+    }
+
+    /* ** Methods ** */
+
+    void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    void setThreshold(int threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * Compresses the payload if it is enabled, big enough and the result is smaller
+     *
+     * @return Size of the compressed payload in {@link #compressed()}, or -1 when not compressed
+     */
+    int compress(byte[] data, int offset, int length) {
+        if (!enabled || length < threshold) return -1;
+
+        deflater.reset();
+        deflater.setInput(data, offset, length);
+        deflater.finish();
+        int size = deflater.deflate(compressed, 0, compressed.length);
+        return deflater.finished() && size < length ? size : -1;
+    } // end compress method
+
+    byte[] compressed() {
+        return compressed;
+    }
+
+    /**
+     * @return Size of the decompressed payload in {@link #decompressed()}
+     * @throws DataFormatException if the payload is not valid
+     */
+    int decompress(byte[] data, int offset, int length) throws DataFormatException {
+        inflater.reset();
+        inflater.setInput(data, offset, length);
+        int size = inflater.inflate(decompressed, 0, decompressed.length);
+        if (!inflater.finished()) throw new DataFormatException("Decompressed frame too big");
+        return size;
+    }
+
+    byte[] decompressed() {
+        return decompressed;
+    }
+
+    /**
+     * Frees the native memory of the sending half, called by the sender thread when it stops
+     */
+    void endDeflater() {
+        deflater.end();
+    }
+
+    /**
+     * Frees the native memory of the receiving half, called by the reader thread when it stops
+     */
+    void endInflater() {
+        inflater.end();
+    }
+} // end Compressor class
@@ -11,23 +11,102 @@ import android.app.Activity;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothSocket;
 import android.content.Intent;
-import android.util.Log;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.charset.Charset;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
 
 public class ConnectedThread extends Thread implements BluetoothItem, Serializable {
 
+    /* ** Public constants ** */
+
+    /**
+     * Channel used by {@link #sendMessage(String)}
+     */
+    public static final int DEFAULT_CHANNEL = 0;
+
+    // Send priorities, a higher priority message preempts the lower ones at frame boundaries
+    public static final int PRIORITY_HIGH = 0;   // Control messages
+    public static final int PRIORITY_NORMAL = 1; // Default
+    public static final int PRIORITY_BULK = 2;   // Big payloads, sent in small frames
+
+    /**
+     * Channel reserved to {@link FileTransfer}s
+     */
+    public static final int TRANSFER_CHANNEL = Frame.MAX_CHANNEL;
+
+    /**
+     * Channel reserved to the messages sent by {@link #publish(String, byte[], int)}
+     */
+    public static final int TOPIC_CHANNEL = Frame.MAX_CHANNEL - 1;
+
+    /**
+     * Bytes that may be sent before the peer application processes them. The
+     * fragments of a message are given back once reassembled, so only the
+     * last frame of each message waits the application and any size fits
+     */
+    public static final int CONNECTION_WINDOW = 32 * 1024;
+
+    /* ** Private constants ** */
+
+    private static final int ACK_INTERVAL = 8;  // Frames accepted between acknowledgements
+    private static final int NACK_RETRY = 32;   // Frames dropped before asking again
+    private static final int MAX_ROUTED_WAITING = 64; // Control frames waiting before routed ones are dropped
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
     /* ** Private attributes ** */
 
     private BluetoothListener bluetoothListener; // Observer pattern
     private BluetoothSocket bluetoothSocket;
+    private String address;
     private InputStream input;
     private OutputStream output;
     private boolean running;
+    private volatile boolean closed; // Cancelled or the socket dropped
+
+    private FrameReader frameReader;
+    private FrameWriter frameWriter;
+    private OutboundQueue outboundQueue;
+    private SenderThread senderThread;
+    private ConcurrentHashMap<Integer, Channel> channels;
+    private TransferSender transferSender;
+    private TransferReceiver transferReceiver;
+    private AtomicInteger consumedBytes; // Processed by the application, not given back yet
+    private AtomicInteger grantedBytes;  // Total given back to the peer
+    private volatile long corruptFrames;
+    private volatile long messagesReceived; // Written by the reader thread only
+    private volatile long deltaDropped;  // Deltas received without their base
+    private volatile long corruptReported; // Frames the peer received corrupted
+    private Compressor compressor;
+    private volatile boolean compressionAllowed;
+    private Handshake handshake;  // Settings agreed with the peer
+    private long connectNanos;    // Time to open the socket
+    private long handshakeNanos;  // Time to agree the settings
+    private Session session;      // State kept between connections to the same peer
+    private boolean sequencing;   // Data frames carry sequence numbers
+    private int unackedFrames;    // Accepted but not acknowledged yet
+    private int droppedSinceNack; // Out of sequence frames since the last NACK, -1 if no NACK pending
+    private Set<String> peerTopics; // Topics the peer subscribed
+    private TopicIndex topicIndex;  // Shared with the other connections, may be null
+    private RoutingTable routingTable; // Shared with the other connections, may be null
+    private final MessageStream ownStream; // Messages of this connection only
+    private volatile MessageStream stream; // Receives the messages while it has a subscriber, may be null
+    private volatile TextDecoder textDecoder; // Used by the reader thread, replaced when the charset changes
+    private final SendPacer pacer;
+    private final LinkProbe probe;
 
     /* ** Constructors ** */
 
@@ -37,17 +116,66 @@ public class ConnectedThread extends Thread implements BluetoothItem, Serializab
      * @param bluetoothListener observer pattern
      */
     protected ConnectedThread(BluetoothListener bluetoothListener, BluetoothSocket bluetoothSocket) {
+        this(bluetoothListener, bluetoothSocket, bluetoothSocket.getRemoteDevice().getAddress(),
+                inputOf(bluetoothSocket), outputOf(bluetoothSocket));
+    }
+
+    /**
+     * Connection over any pair of streams, like the in memory ones of the tests
+     *
+     * @param address MAC address of the peer, it names its {@link Session}
+     */
+    ConnectedThread(BluetoothListener bluetoothListener, String address, InputStream input, OutputStream output) {
+        this(bluetoothListener, null, address, input, output);
+    }
+
+    private ConnectedThread(BluetoothListener bluetoothListener, BluetoothSocket bluetoothSocket,
+                            String address, InputStream input, OutputStream output) {
         this.bluetoothSocket = bluetoothSocket;
         this.bluetoothListener = bluetoothListener;
+        this.address = address;
+        this.input = input;
+        this.output = output;
+        if (input != null && output != null) BtLog.i("ConnectedThread", "Connection created");
+        this.running = false;
+
+        this.frameReader = new FrameReader(input, Frame.DEFAULT_MAX_PAYLOAD);
+        this.frameWriter = new FrameWriter(output, Frame.DEFAULT_MAX_PAYLOAD);
+        this.outboundQueue = new OutboundQueue(Frame.DEFAULT_MAX_PAYLOAD);
+        this.channels = new ConcurrentHashMap<>();
+        openChannel(DEFAULT_CHANNEL, null);
+        this.transferSender = new TransferSender(this);
+        this.transferReceiver = new TransferReceiver(this);
+        this.consumedBytes = new AtomicInteger();
+        this.grantedBytes = new AtomicInteger();
+        this.compressor = new Compressor(Frame.DEFAULT_MAX_PAYLOAD);
+        this.compressionAllowed = true;
+        this.peerTopics = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        this.ownStream = new MessageStream();
+        this.textDecoder = new TextDecoder(UTF_8, Frame.DEFAULT_MAX_PAYLOAD);
+        this.pacer = new SendPacer();
+        this.probe = new LinkProbe(this);
+    } // end constructor ConnectedThread
+
+    /* ** Static methods ** */
+
+    private static InputStream inputOf(BluetoothSocket bluetoothSocket) {
         try {
-            this.input = bluetoothSocket.getInputStream();
-            this.output = bluetoothSocket.getOutputStream();
-            Log.i("ConnectedThread", "Connection created");
+            return bluetoothSocket.getInputStream();
         } catch (IOException e) {
-            Log.i("ConnectedThread", e.getMessage());
+            BtLog.i("ConnectedThread", e.getMessage());
+            return null;
         }
-        this.running = false;
-    } // end constructor ConnectedThread
+    }
+
+    private static OutputStream outputOf(BluetoothSocket bluetoothSocket) {
+        try {
+            return bluetoothSocket.getOutputStream();
+        } catch (IOException e) {
+            BtLog.i("ConnectedThread", e.getMessage());
+            return null;
+        }
+    }
 
     /* ** Public methods ** */
 
@@ -55,19 +183,35 @@ public class ConnectedThread extends Thread implements BluetoothItem, Serializab
         return running;
     }
 
+    /**
+     * @return true if this connection ended, messages sent to it are lost
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
     /**
      * Verifies and returns, if exist, the connected device
      *
-     * @return connected device
+     * @return connected device, null if not connected through a socket
      */
     public BluetoothDevice getDevice() {
-        Log.i("ConnectedThread", "device required");
-        return bluetoothSocket.getRemoteDevice();
+        BtLog.v("ConnectedThread", "device required");
+        BluetoothSocket socket = bluetoothSocket;
+        return socket != null ? socket.getRemoteDevice() : null;
     } // end getDevice method
 
+    /**
+     * @return MAC address of the connected device, it is kept after the connection is closed
+     */
+    public String getAddress() {
+        return address;
+    }
+
     @Override
     public String getText() {
-        return bluetoothSocket.getRemoteDevice().getName();
+        BluetoothSocket socket = bluetoothSocket;
+        return socket != null ? socket.getRemoteDevice().getName() : address;
     }
 
     @Override
@@ -75,14 +219,49 @@ public class ConnectedThread extends Thread implements BluetoothItem, Serializab
         return this;
     }
 
+    /**
+     * Opens (or updates the observer of) a logical channel over this connection
+     *
+     * <p>
+     * The peer does not need to open the channel before sending to it,
+     * messages from unknown channels go to this connection observer
+     * </p>
+     *
+     * @param number   Channel number, from 0 to 65535
+     * @param listener Observer of the channel messages, null to use the connection one
+     * @return The channel
+     */
+    public Channel openChannel(int number, BluetoothListener listener) {
+        Channel channel = getChannel(number);
+        channel.setListener(listener);
+        return channel;
+    } // end openChannel method
+
+    /**
+     * @param number Channel number, from 0 to 65535
+     * @return The channel, it is created if not exists
+     */
+    public Channel getChannel(int number) {
+        Channel channel = channels.get(number);
+        if (channel == null) {
+            Channel created = new Channel(number, null);
+            channel = channels.putIfAbsent(number, created);
+            if (channel == null) channel = created;
+        }
+        return channel;
+    } // end getChannel method
+
     /**
      * Process parallel to UI to prevent the UI process freezes
      * Ask for the right connection type
      */
     @Override
     public void run() {
-        if (bluetoothSocket != null) {
+        if (input != null) {
             running = true;
+            senderThread = new SenderThread(this, outboundQueue, frameWriter, compressor,
+                    handshake != null ? handshake.keepalive : 0, sequencing ? session.replay : null, pacer);
+            senderThread.start();
             try {
                 connectionLoop(); // Receive all bluetooth messages
                 cancel();
@@ -92,46 +271,626 @@ public class ConnectedThread extends Thread implements BluetoothItem, Serializab
                 e.printStackTrace();
             }
             finally {
+                boolean cancelled = !running; // By cancel(), not by a lost link
                 running = false;
+                closed = true;
+                if (session != null) Session.release(session, cancelled);
+                if (topicIndex != null) topicIndex.removeAll(this);
+                if (routingTable != null) routingTable.remove(this);
+                ownStream.complete();
+                probe.close();
+                transferReceiver.close();
+                compressor.endInflater();
             }
-        } // end if bluetoothSocket != null
+        } // end if input != null
     } // end run method
 
-    /* ** Protected methods ** */
+    /**
+     * Sends the message through the {@link #DEFAULT_CHANNEL}
+     *
+     * @param message Message to be send
+     */
+    public void sendMessage(String message) {
+        sendMessage(message, DEFAULT_CHANNEL);
+    }
 
     /**
-     * Prepares and sends the message by Bluetooth
+     * Sends the message through the specified channel
      *
-     * @param intent data with the message
+     * @param message Message to be send
+     * @param channel Channel number
      */
-    private void sendMessage(Intent intent) {
-        if (intent.hasExtra(BluetoothListener.EXTRA_MESSAGE)) {
-            String message = intent.getStringExtra(BluetoothListener.EXTRA_MESSAGE);
+    public void sendMessage(String message, int channel) {
+        sendMessage(message, channel, PRIORITY_NORMAL);
+    }
 
-            /*
-             * "\n" is important for adapter send the message
-             * without it the message is added to the older one
-             * and it is send only the thread is finished
-             */
-            if (message.endsWith("\n")) message += "\n";
+    /**
+     * Sends the message through the specified channel and priority lane
+     *
+     * @param message  Message to be send
+     * @param channel  Channel number
+     * @param priority {@link #PRIORITY_HIGH}, {@link #PRIORITY_NORMAL} or {@link #PRIORITY_BULK}
+     */
+    public void sendMessage(String message, int channel, int priority) {
+        send(channel, message.getBytes(textDecoder.getCharset()), priority);
+    }
 
-            byte[] buffer = message.getBytes();
+    /**
+     * Queues the data to be sent through the specified channel
+     *
+     * <p>
+     * It does not block, the data is written by the sender thread
+     * interleaved with the other channels
+     * </p>
+     *
+     * @param channel Channel number
+     * @param data    Bytes to be send, it must not be changed after this call
+     */
+    public void send(int channel, byte[] data) {
+        send(channel, data, PRIORITY_NORMAL);
+    }
 
-            if (output != null) {
-                try {
-                    output.write(buffer);
-                    output.flush();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            } // end if output != null
-        } // end if has EXTRA_MESSAGE
-    } // end sendMessage method
+    /**
+     * Queues the data to be sent through the specified channel and priority lane
+     *
+     * @param channel  Channel number
+     * @param data     Bytes to be send, it must not be changed after this call
+     * @param priority {@link #PRIORITY_HIGH}, {@link #PRIORITY_NORMAL} or {@link #PRIORITY_BULK}
+     */
+    public void send(int channel, byte[] data, int priority) {
+        send(channel, data, priority, 0);
+    }
 
-    public void sendMessage(String message){
-        Intent intent = new Intent();
-        intent.putExtra(BluetoothListener.EXTRA_MESSAGE, message);
-        sendMessage(intent);
+    /**
+     * Queues data that is worthless after some time, like sensor readings
+     *
+     * <p>
+     * If the time to live ends before the data starts being written, it is
+     * dropped and counted in {@link LaneMetrics#getExpired()}
+     * </p>
+     *
+     * @param channel   Channel number
+     * @param data      Bytes to be send, it must not be changed after this call
+     * @param priority  {@link #PRIORITY_HIGH}, {@link #PRIORITY_NORMAL} or {@link #PRIORITY_BULK}
+     * @param ttlMillis Time to live, 0 to use the one of the priority lane
+     */
+    public void send(int channel, byte[] data, int priority, long ttlMillis) {
+        checkPriority(priority);
+        Outgoing outgoing = new Outgoing(getChannel(channel), priority, data);
+        if (ttlMillis > 0) outgoing.expiresAt = outgoing.enqueuedAt + ttlMillis * 1000000L;
+        outboundQueue.offer(outgoing);
+    } // end send method
+
+    /**
+     * Queues data whose listener is told when it is written, see {@link Outgoing.Listener}
+     */
+    void send(int channel, byte[] data, int priority, Outgoing.Listener listener) {
+        checkPriority(priority);
+        Outgoing outgoing = new Outgoing(getChannel(channel), priority, data);
+        outgoing.listener = listener;
+        outboundQueue.offer(outgoing);
+    }
+
+    /**
+     * Encodes the value and queues it to be sent through the specified channel
+     *
+     * @param channel  Channel number
+     * @param codec    Writes the value as binary, the peer must decode it with the same codec
+     * @param value    Message to be send
+     * @param priority {@link #PRIORITY_HIGH}, {@link #PRIORITY_NORMAL} or {@link #PRIORITY_BULK}
+     */
+    public <T> void send(int channel, Codec<T> codec, T value, int priority) {
+        BinaryWriter writer = new BinaryWriter();
+        codec.encode(value, writer);
+        send(channel, writer.toByteArray(), priority);
+    }
+
+    /**
+     * Receives the messages of a channel as typed objects
+     *
+     * <p>
+     * The messages are decoded straight from the receive buffer and the observer
+     * is called on the connection reader thread, instead of
+     * {@link BluetoothListener#MESSAGE_RECEIVED}. Messages that the codec is not
+     * able to decode are dropped
+     * </p>
+     *
+     * @param channel  Channel number
+     * @param codec    Reads the messages
+     * @param listener Observer of the messages, null to receive them as
+     *                 {@link BluetoothListener#MESSAGE_RECEIVED} again
+     */
+    public <T> void setMessageListener(int channel, Codec<T> codec, MessageListener<T> listener) {
+        getChannel(channel).setReader(listener != null ? new TypedReader<>(codec, listener) : null);
+    }
+
+    /**
+     * Sets the charset of the text messages, sent and received as
+     * {@link BluetoothListener#EXTRA_MESSAGE}, UTF-8 by default.
+     * Both peers must use the same
+     */
+    public void setCharset(Charset charset) {
+        if (!charset.equals(textDecoder.getCharset())) {
+            textDecoder = new TextDecoder(charset, Frame.DEFAULT_MAX_PAYLOAD);
+        }
+    }
+
+    public Charset getCharset() {
+        return textDecoder.getCharset();
+    }
+
+    /**
+     * Receives the messages of this connection as a stream with backpressure
+     *
+     * <p>
+     * While the stream has a subscriber, the messages of the channels without
+     * their own observer are sent to it instead of
+     * {@link BluetoothListener#MESSAGE_RECEIVED}, and only as many as it
+     * requested. The bytes of a message are given back to the peer when the
+     * subscriber receives it, so a slow subscriber makes the peer stop sending
+     * after {@link #CONNECTION_WINDOW} bytes. The stream completes when the
+     * connection closes, onNext is called on the connection reader thread or
+     * on the thread that calls request
+     * </p>
+     *
+     * @return The stream of this connection, it accepts one subscriber at a time
+     */
+    public Flow.Publisher<ReceivedMessage> messages() {
+        stream = ownStream;
+        return ownStream;
+    }
+
+    /**
+     * Receives the messages of a channel as fixed layout records
+     *
+     * <p>
+     * The fields are read straight from the receive buffer through one reused
+     * {@link Record}, called on the connection reader thread once per record.
+     * Messages whose size is not a multiple of the record size are dropped.
+     * To send, fill the records in a {@link RecordSchema#newBuffer(int)} and
+     * {@link #send(int, byte[], int)} it. The array is queued without a copy,
+     * so it must not be changed after that call
+     * </p>
+     *
+     * @param channel  Channel number
+     * @param schema   Layout of the records, the same of the peer
+     * @param listener Observer of the records, null to receive the messages as
+     *                 {@link BluetoothListener#MESSAGE_RECEIVED} again
+     */
+    public void setRecordListener(int channel, RecordSchema schema, RecordListener listener) {
+        getChannel(channel).setReader(listener != null ? new RecordReader(schema, listener) : null);
+    }
+
+    /**
+     * Sends the next messages of the channel as the difference to the previous one
+     *
+     * <p>
+     * Only the byte ranges that changed are sent, XORed with the previous message,
+     * and a whole message (keyframe) every keyframeInterval messages. The peer
+     * rebuilds the messages without any setting, slowly changing state takes
+     * a fraction of the bytes
+     * </p>
+     *
+     * @param channel          Channel number
+     * @param keyframeInterval Messages between keyframes, 0 to send whole messages again
+     */
+    public void setDeltaEncoding(int channel, int keyframeInterval) {
+        outboundQueue.setDeltaEncoder(getChannel(channel),
+                keyframeInterval > 0 ? new DeltaEncoder(keyframeInterval) : null);
+    }
+
+    /**
+     * Packs the small messages waiting in the channel in a single frame
+     *
+     * <p>
+     * When the link is busy, messages pile up in the queue; with batching
+     * the next message and the ones waiting behind it are written as one
+     * envelope of up to maxBytes. The peer delivers each message on its own
+     * </p>
+     *
+     * @param channel  Channel number, not {@link #TRANSFER_CHANNEL}
+     * @param maxBytes Maximum envelope size, 0 to send each message alone
+     */
+    public void setBatching(int channel, int maxBytes) {
+        if (channel == TRANSFER_CHANNEL) throw new IllegalArgumentException("Transfer channel is not batched");
+        outboundQueue.setBatchLimit(getChannel(channel), maxBytes);
+    }
+
+    /**
+     * Queues many messages to be sent as a single envelope, the peer
+     * delivers each one on its own in the same order
+     *
+     * @param channel  Channel number, not {@link #TRANSFER_CHANNEL}
+     * @param messages Messages to be send, they must not be changed after this call
+     * @param priority {@link #PRIORITY_HIGH}, {@link #PRIORITY_NORMAL} or {@link #PRIORITY_BULK}
+     */
+    public void sendBatch(int channel, List<byte[]> messages, int priority) {
+        checkPriority(priority);
+        if (channel == TRANSFER_CHANNEL) throw new IllegalArgumentException("Transfer channel is not batched");
+        if (messages.isEmpty()) return;
+        Outgoing outgoing = new Outgoing(getChannel(channel), priority, Batch.pack(messages));
+        outgoing.batch = true;
+        outboundQueue.offer(outgoing);
+    }
+
+    /**
+     * @return Messages dropped because their delta base was lost, until the next keyframe
+     */
+    public long getDeltaDropped() {
+        return deltaDropped;
+    }
+
+    /**
+     * Queues the current value of a key, replacing the value of the same key
+     * that is still waiting in the channel
+     *
+     * <p>
+     * On a slow link only the newest value of each key is sent, so the
+     * traffic is limited by the number of keys instead of the update rate.
+     * The key is not sent, the peer receives only the data
+     * </p>
+     *
+     * @param channel  Channel number
+     * @param key      Identifies the value, e.g. the sensor name
+     * @param data     Bytes to be send, it must not be changed after this call
+     * @param priority {@link #PRIORITY_HIGH}, {@link #PRIORITY_NORMAL} or {@link #PRIORITY_BULK}
+     */
+    public void sendLatest(int channel, String key, byte[] data, int priority) {
+        checkPriority(priority);
+        Outgoing outgoing = new Outgoing(getChannel(channel), priority, data);
+        outgoing.key = key;
+        outboundQueue.offer(outgoing);
+    } // end sendLatest method
+
+    /**
+     * Asks the peer to send the messages it publishes on the topic
+     *
+     * <p>
+     * They are received as {@link BluetoothListener#MESSAGE_RECEIVED} on
+     * {@link #TOPIC_CHANNEL}, with {@link BluetoothListener#EXTRA_TOPIC}.
+     * The subscription lasts until this connection is closed. It does not
+     * block, the request is written by the sender thread
+     * </p>
+     *
+     * @param topic Topic name, up to {@link #getMaxPayload()} bytes in UTF-8
+     */
+    public void subscribe(String topic) {
+        writeTopic(Frame.TYPE_SUBSCRIBE, topic);
+    }
+
+    public void unsubscribe(String topic) {
+        writeTopic(Frame.TYPE_UNSUBSCRIBE, topic);
+    }
+
+    /**
+     * @return true if the peer subscribed the topic
+     */
+    public boolean isSubscribed(String topic) {
+        return peerTopics.contains(topic);
+    }
+
+    /**
+     * Sends the data on {@link #TOPIC_CHANNEL} only if the peer subscribed the topic
+     *
+     * @param topic    Topic name
+     * @param data     Bytes to be send
+     * @param priority {@link #PRIORITY_HIGH}, {@link #PRIORITY_NORMAL} or {@link #PRIORITY_BULK}
+     * @return false if the peer is not interested, nothing was sent
+     */
+    public boolean publish(String topic, byte[] data, int priority) {
+        if (!peerTopics.contains(topic)) return false;
+        byte[] name = topic.getBytes(UTF_8);
+        byte[] message = new byte[2 + name.length + data.length];
+        message[0] = (byte) (name.length >>> 8);
+        message[1] = (byte) name.length;
+        System.arraycopy(name, 0, message, 2, name.length);
+        System.arraycopy(data, 0, message, 2 + name.length, data.length);
+        send(TOPIC_CHANNEL, message, priority);
+        return true;
+    } // end publish method
+
+    /**
+     * Informs that the application finished processing a received message,
+     * so the peer may send that many bytes again
+     *
+     * <p>
+     * {@link BluetoothManager} calls it after the Activity handles each
+     * {@link BluetoothListener#MESSAGE_RECEIVED}. Messages delivered to a
+     * {@link Channel} observer are consumed when the observer returns.
+     * It does not block, the credits are written by the sender thread
+     * </p>
+     *
+     * @param bytes Size of the message processed, as received in
+     *              {@link BluetoothListener#EXTRA_BYTES}
+     */
+    public void messageConsumed(int bytes) {
+        int total = consumedBytes.addAndGet(bytes);
+        if (total >= CONNECTION_WINDOW / 4 && consumedBytes.compareAndSet(total, 0)) {
+            outboundQueue.grantConnection(grantedBytes.addAndGet(total));
+        }
+    } // end messageConsumed method
+
+    /**
+     * @return Time, in nanoseconds, spent opening the socket (or waiting it, as a server)
+     */
+    public long getConnectNanos() {
+        return connectNanos;
+    }
+
+    /**
+     * @return Time, in nanoseconds, spent agreeing the settings with the peer after connected
+     */
+    public long getHandshakeNanos() {
+        return handshakeNanos;
+    }
+
+    /**
+     * @return Protocol version agreed with the peer, 0 before the handshake
+     */
+    public int getProtocolVersion() {
+        return handshake != null ? handshake.version : 0;
+    }
+
+    /**
+     * @return true if the frames are numbered, so a reconnection to the same
+     * peer sends again only the frames it did not receive
+     */
+    public boolean isSequencing() {
+        return sequencing;
+    }
+
+    /**
+     * @return Frames of this peer sent but lost because the replay buffer was full
+     */
+    public long getReplayEvicted() {
+        return session != null ? session.replay.getEvicted() : 0;
+    }
+
+    /**
+     * @return Frames received with a wrong checksum, they were dropped
+     */
+    public long getCorruptFrames() {
+        return corruptFrames;
+    }
+
+    /**
+     * @return Frames that the peer received with a wrong checksum
+     */
+    public long getCorruptFramesReported() {
+        return corruptReported;
+    }
+
+    /**
+     * @return Maximum frame payload agreed with the peer
+     */
+    public int getMaxPayload() {
+        return handshake != null ? handshake.maxPayload : Frame.DEFAULT_MAX_PAYLOAD;
+    }
+
+    /**
+     * Allows (or not) this side to compress frames, it is used only
+     * if the peer is also able to decompress them
+     *
+     * @param allowed false to always send raw payloads
+     */
+    public void setCompressionAllowed(boolean allowed) {
+        this.compressionAllowed = allowed;
+        compressor.setEnabled(allowed && handshake != null && handshake.has(Handshake.CAP_COMPRESSION));
+    }
+
+    /**
+     * Frames smaller than the threshold are not worth compressing
+     *
+     * @param bytes Minimum payload size to try compression
+     */
+    public void setCompressionThreshold(int bytes) {
+        compressor.setThreshold(bytes);
+    }
+
+    /**
+     * @return true if both peers agreed to compress frames
+     */
+    public boolean isCompressing() {
+        return compressor.isEnabled();
+    }
+
+    /**
+     * Measures the round trip time to the peer now
+     *
+     * <p>
+     * The ping is written before the messages waiting and the peer answers
+     * from its reader thread, so the time does not include the send queues.
+     * Each answer (or loss) updates {@link #getLinkQuality()}
+     * </p>
+     *
+     * @return Completes with the round trip time, in nanoseconds, or fails
+     * with a TimeoutException if not answered in {@link LinkProbe#DEFAULT_TIMEOUT_MILLIS},
+     * or with an UnsupportedOperationException if the peer does not answer pings
+     */
+    public BluetoothFuture<Long> ping() {
+        if (!canPing()) {
+            BluetoothFuture<Long> future = new BluetoothFuture<>();
+            future.fail(new UnsupportedOperationException("The peer does not answer pings"));
+            return future;
+        }
+        return probe.ping();
+    }
+
+    /**
+     * Pings the peer periodically, to keep the link quality up to date.
+     * Peers that do not answer pings are not pinged
+     *
+     * @param millis Interval between pings, 0 to stop
+     */
+    public void setPingInterval(long millis) {
+        probe.setInterval(canPing() ? millis : 0);
+    }
+
+    /**
+     * @return A snapshot of the round trip time, jitter and loss estimates,
+     * with the round trip percentiles
+     */
+    public LinkQuality getLinkQuality() {
+        return probe.getQuality();
+    }
+
+    /**
+     * Reads the link score without building a snapshot, it is cheap enough
+     * to be called on every send decision
+     *
+     * @return From 0 (unusable) to 100 (fast and without loss), -1 before the first ping answered
+     */
+    public int getLinkScore() {
+        return probe.getScore();
+    }
+
+    /**
+     * @return A snapshot of the traffic counters of this connection, read
+     * without stopping the sender and reader threads
+     */
+    public ConnectionMetrics getMetrics() {
+        ConnectionMetrics metrics = new ConnectionMetrics();
+        ReadMetrics reads = frameReader.getMetrics();
+        metrics.address = address;
+        metrics.bytesReceived = reads.readBytes;
+        metrics.messagesReceived = messagesReceived;
+        metrics.bytesSent = frameWriter.getBytes();
+        metrics.framesSent = frameWriter.getFrames();
+        metrics.messagesSent = outboundQueue.getMessagesSent();
+        metrics.queueDepth = outboundQueue.getQueued();
+        metrics.creditStallNanos = outboundQueue.getStallNanos();
+        metrics.writeNanos = frameWriter.getWriteNanos();
+        metrics.reads = reads;
+        metrics.corruptFrames = corruptFrames;
+        if (session != null) {
+            synchronized (session) {
+                metrics.reconnects = Math.max(0, session.connections - 1);
+            }
+        }
+        metrics.sendLatency = outboundQueue.getSendLatency();
+        metrics.pacingDelays = pacer.getDelays();
+        metrics.linkQuality = probe.getQuality();
+        return metrics;
+    } // end getMetrics method
+
+    /**
+     * @return A snapshot of the flow control counters, including the time
+     * stalled waiting the peer application
+     */
+    public FlowMetrics getFlowMetrics() {
+        return outboundQueue.getFlowMetrics();
+    }
+
+    /**
+     * Limits the rate of the data frames sent by this connection
+     *
+     * <p>
+     * The frames are spread at the rate instead of sent in bursts, so the
+     * other connections sharing the radio keep a low latency. Credits,
+     * acknowledgements and keepalives are not limited
+     * </p>
+     *
+     * @param bytesPerSecond Rate limit, 0 for no limit
+     * @param burstBytes     Bytes that may be sent at once after idle
+     */
+    public void setSendRate(long bytesPerSecond, int burstBytes) {
+        pacer.setRate(bytesPerSecond, burstBytes);
+    }
+
+    /**
+     * @return A snapshot of the time, in nanoseconds, the data frames waited
+     * for the send rate; empty while the rate is not reached
+     */
+    public LatencyHistogram getPacingDelays() {
+        return pacer.getDelays();
+    }
+
+    /**
+     * Shapes the frames also to a rate shared with the other connections
+     */
+    void setSharedRate(TokenBucket bucket) {
+        pacer.setShared(bucket);
+    }
+
+    /**
+     * Limits the size of the receive buffer
+     *
+     * <p>
+     * It grows, up to max, while the reads fill it and shrinks, down to min,
+     * while they stay small, so a bulk link needs fewer reads and an idle
+     * one holds less memory
+     * </p>
+     *
+     * @param min Smallest size, in bytes, raised to one whole frame if smaller
+     * @param max Biggest size, in bytes
+     */
+    public void setReceiveBufferBounds(int min, int max) {
+        frameReader.setBufferBounds(min, max);
+    }
+
+    /**
+     * @return A snapshot of the socket read counters, including the receive buffer size
+     */
+    public ReadMetrics getReadMetrics() {
+        return frameReader.getMetrics();
+    }
+
+    /**
+     * Starts (or resumes) sending a file in chunks
+     *
+     * <p>
+     * The progress is sent to the connection observer as
+     * {@link BluetoothListener#TRANSFER_PROGRESS} and the end as
+     * {@link BluetoothListener#TRANSFER_COMPLETE}, with
+     * {@link BluetoothListener#EXTRA_TRANSFER_ID} and {@link BluetoothListener#EXTRA_BYTES}
+     * </p>
+     *
+     * @param transfer File or stream to be sent
+     */
+    public void startTransfer(FileTransfer transfer) {
+        transferSender.start(transfer);
+    }
+
+    /**
+     * Defines where the received {@link FileTransfer}s are written
+     *
+     * @param directory Destination directory, it is created if not exists
+     */
+    public void setTransferDirectory(File directory) {
+        transferReceiver.setDirectory(directory);
+    }
+
+    /**
+     * Defines the frame size of {@link #PRIORITY_BULK} messages
+     *
+     * <p>
+     * A high priority message waits, at most, the writing of one bulk frame
+     * </p>
+     *
+     * @param bytes Frame payload size
+     */
+    public void setBulkChunkSize(int bytes) {
+        outboundQueue.setMaxChunk(PRIORITY_BULK, bytes);
+    }
+
+    /**
+     * Defines how long the messages of a priority lane are worth sending
+     *
+     * @param priority  {@link #PRIORITY_HIGH}, {@link #PRIORITY_NORMAL} or {@link #PRIORITY_BULK}
+     * @param ttlMillis Time to live of the messages sent afterwards, 0 to keep them until sent
+     */
+    public void setLaneTtl(int priority, long ttlMillis) {
+        checkPriority(priority);
+        outboundQueue.setTtl(priority, ttlMillis);
+    }
+
+    /**
+     * @param priority {@link #PRIORITY_HIGH}, {@link #PRIORITY_NORMAL} or {@link #PRIORITY_BULK}
+     * @return A snapshot of the send queue counters of the lane
+     */
+    public LaneMetrics getLaneMetrics(int priority) {
+        checkPriority(priority);
+        return outboundQueue.getMetrics(priority);
     }
 
     /**
@@ -140,7 +899,17 @@ public class ConnectedThread extends Thread implements BluetoothItem, Serializab
      * @throws IOException when some object is closed unexpectedly
      */
     public void cancel() throws IOException {
+        boolean reading = running; // The reader releases the session when it stops
         running = false;
+        closed = true;
+        if (!reading && session != null) Session.release(session, true);
+        outboundQueue.close();
+        transferSender.close();
+        if (senderThread != null) {
+            senderThread.interrupt();
+            senderThread = null;
+        }
+
         if (input != null) {
             input.close();
             input = null;
@@ -157,18 +926,403 @@ public class ConnectedThread extends Thread implements BluetoothItem, Serializab
         }
     } // end cancel method
 
+    /* ** Protected methods ** */
+
+    /**
+     * Agrees with the peer the protocol version and features,
+     * it must be called once, right after the socket connects. The socket
+     * is closed if the peer does not answer in {@link Handshake#TIMEOUT_MILLIS}
+     *
+     * @param connectNanos Time spent opening the socket
+     * @throws IOException when the peer is not compatible
+     */
+    void handshake(long connectNanos) throws IOException {
+        // This side is always able to decompress, compressionAllowed only controls sending
+        int capabilities = Handshake.CAP_KEEPALIVE | Handshake.CAP_COMPRESSION | Handshake.CAP_CHECKSUM
+                | Handshake.CAP_SEQUENCE | Handshake.CAP_PING;
+        session = Session.get(address);
+        Handshake local;
+        synchronized (session) {
+            local = new Handshake(capabilities, Frame.DEFAULT_MAX_PAYLOAD, Handshake.DEFAULT_KEEPALIVE, session);
+        }
+
+        long start = System.nanoTime();
+        TimerTask timeout = Handshake.closeOnTimeout(bluetoothSocket != null ? bluetoothSocket : input);
+        IOException failure = null;
+        try {
+            handshake = Handshake.exchange(input, output, local);
+        } catch (IOException e) {
+            failure = e;
+        }
+        if (!timeout.cancel()) {
+            failure = new IOException("Handshake timed out after " + Handshake.TIMEOUT_MILLIS + " ms");
+        }
+        if (failure != null) {
+            Session.release(session, false); // Kept until it expires, the peer may try again
+            throw failure;
+        }
+        this.handshakeNanos = System.nanoTime() - start;
+        this.connectNanos = connectNanos;
+
+        sequencing = handshake.has(Handshake.CAP_SEQUENCE);
+        if (sequencing) {
+            outboundQueue.setMaxPayload(handshake.maxPayload - Frame.SEQUENCE_SIZE);
+            resume(handshake);
+        } else {
+            outboundQueue.setMaxPayload(handshake.maxPayload);
+        }
+        if (handshake.has(Handshake.CAP_CHECKSUM)) {
+            frameReader.setChecksum(Crc32c.create());
+            frameWriter.setChecksum(Crc32c.create());
+        }
+        compressor.setEnabled(compressionAllowed && handshake.has(Handshake.CAP_COMPRESSION));
+        BtLog.i("ConnectedThread", "Handshake done, version " + handshake.version
+                + ", capabilities " + handshake.capabilities);
+    } // end handshake method
+
+    /**
+     * Uses the credits of a frame sent again after a reconnection, see {@link ReplayBuffer}
+     */
+    void charge(int channel, int bytes) {
+        outboundQueue.charge(getChannel(channel), bytes);
+    }
+
+    /**
+     * Registers the topics the peer subscribes in the index, it must be
+     * called before the connection starts
+     */
+    void setTopicIndex(TopicIndex topicIndex) {
+        this.topicIndex = topicIndex;
+    }
+
+    /**
+     * Queues a ping for the sender thread, see {@link #pingWriting(int)}
+     *
+     * @return false if the connection is closed
+     */
+    boolean queuePing(int id) {
+        if (closed) return false;
+        byte[] payload = new byte[4];
+        Frame.writeInt(payload, 0, id);
+        outboundQueue.offerControl(new Outgoing(Frame.TYPE_PING, payload));
+        return true;
+    }
+
+    /**
+     * The sender thread is about to write the ping
+     */
+    void pingWriting(int id) {
+        probe.writing(id);
+    }
+
+    /**
+     * @return Bytes written to the socket, frame headers included
+     */
+    long getBytesWritten() {
+        return frameWriter.getBytes();
+    }
+
+    /**
+     * Sends the received messages to a stream shared with the other connections
+     */
+    void setMessageStream(MessageStream stream) {
+        this.stream = stream;
+    }
+
+    /**
+     * Forwards the routed frames received, it must be called before the connection starts
+     */
+    void setRoutingTable(RoutingTable routingTable) {
+        this.routingTable = routingTable;
+    }
+
+    /**
+     * Tells the peer its address and the devices reachable through this one,
+     * the frame is written by the sender thread
+     */
+    void sendRoutes() {
+        if (routingTable == null || closed) return;
+        byte[] payload = routingTable.routesFor(this, getMaxPayload());
+        outboundQueue.offerControl(new Outgoing(Frame.TYPE_ROUTES, payload));
+    } // end sendRoutes method
+
+    /**
+     * Queues a routed frame to be written by the sender thread, before the
+     * data waiting and without using the channel credits. The payload is
+     * copied, it may be the read buffer of another connection
+     *
+     * @return false if the connection is closed, the frame is too big for it
+     * or {@link #MAX_ROUTED_WAITING} control frames are already waiting
+     */
+    boolean writeRouted(byte[] payload, int offset, int length) {
+        if (closed || length > getMaxPayload()) return false;
+        byte[] copy = Arrays.copyOfRange(payload, offset, offset + length);
+        if (!outboundQueue.offerControl(new Outgoing(Frame.TYPE_ROUTED, copy), MAX_ROUTED_WAITING)) {
+            BtLog.i("ConnectedThread", "Routed frame dropped, the link is behind");
+            return false;
+        }
+        return true;
+    } // end writeRouted method
+
+    TransferSender getTransferSender() {
+        return transferSender;
+    }
+
+    /**
+     * Sends the data to the connection observer
+     */
+    void notifyListener(int requestCode, int resultCode, Intent intent) {
+        bluetoothListener.onActivityResult(requestCode, resultCode, intent);
+    }
+
     /* ** Private methods ** */
 
     /**
      * Converts and cleans the messages received by Bluetooth
      *
+     * <p>
+     * The decoder and its buffers are reused, only the String is created
+     * </p>
+     *
      * @param input Bytes received
      * @return the message as a String
      */
     private String sanitizeString(byte[] input) {
-        String m = new String(input);
-        if (m.endsWith("\n")) m = m.substring(0, m.length() - 1);
-        return m;
+        return textDecoder.decodeMessage(input, 0, input.length);
+    }
+
+    /**
+     * Continues the streams of the previous connection to the same peer
+     *
+     * <p>
+     * If the peer still has the stream this side was receiving, the messages
+     * being reassembled are kept. If the peer knows this side stream, the
+     * frames it did not acknowledge are sent again, otherwise they are dropped.
+     * The messages not sent by the previous connection are moved to this one,
+     * the started ones continue where they stopped only if the peer kept their
+     * first fragments, otherwise they are sent whole again
+     * </p>
+     *
+     * @param agreed Session fields as sent by the peer
+     */
+    private void resume(Handshake agreed) {
+        synchronized (session) {
+            session.connections++;
+            Map<Integer, Channel> previousChannels = session.channels;
+            if (agreed.sessionId != session.peerId) {
+                session.peerId = agreed.sessionId;
+                session.expected = 0;
+            } else if (previousChannels != null) {
+                for (Channel previous : previousChannels.values()) {
+                    getChannel(previous.getNumber()).adopt(previous);
+                }
+            }
+            session.channels = channels;
+
+            ReplayBuffer replay = session.replay;
+            boolean resumed = agreed.peerSessionId == session.id;
+            if (session.outbound != null && previousChannels != null) {
+                // Closed first, so the previous sender keeps no more frames for replay
+                for (Outgoing unsent : session.outbound.drain(previousChannels.values())) {
+                    outboundQueue.offer(unsent.moveTo(getChannel(unsent.channel.getNumber()), resumed));
+                }
+            }
+            session.outbound = outboundQueue;
+
+            if (resumed) {
+                replay.release(agreed.expected);
+                if (replay.nextSeq() != agreed.expected) {
+                    outboundQueue.requestReplay(agreed.expected, true);
+                }
+                BtLog.i("ConnectedThread", "Session resumed, " + (replay.nextSeq() - agreed.expected)
+                        + " frames to send again");
+            } else {
+                replay.reset(0);
+            }
+        }
+        unackedFrames = 0;
+        droppedSinceNack = -1;
+    } // end resume method
+
+    /**
+     * Checks the sequence of a data frame and removes it from the payload
+     *
+     * @return true if it is the next frame expected, duplicates and frames
+     * after a gap are dropped until the peer sends them again
+     */
+    private boolean inSequence(Frame frame) throws IOException {
+        if (frame.length < Frame.SEQUENCE_SIZE) throw new IOException("Data frame without sequence");
+        int seq = Frame.readInt(frame.data, frame.offset);
+        frame.offset += Frame.SEQUENCE_SIZE;
+        frame.length -= Frame.SEQUENCE_SIZE;
+
+        synchronized (session) {
+            if (seq == session.expected) {
+                session.expected++;
+                droppedSinceNack = -1;
+                return true;
+            }
+            if (seq - session.expected <= 0) return false; // Duplicate
+        }
+        requestMissing();
+        return false;
+    } // end inSequence method
+
+    /**
+     * Asks the peer to send again from the first frame missing, once for each
+     * {@link #NACK_RETRY} frames dropped in case the request itself is lost
+     */
+    private void requestMissing() {
+        if (droppedSinceNack < 0 || droppedSinceNack >= NACK_RETRY) {
+            droppedSinceNack = 0;
+            byte[] payload = new byte[4];
+            Frame.writeInt(payload, 0, expected());
+            outboundQueue.offerControl(new Outgoing(Frame.TYPE_NACK, payload));
+        } else {
+            droppedSinceNack++;
+        }
+    }
+
+    /**
+     * Acknowledges the accepted frames every {@link #ACK_INTERVAL} frames
+     * or when no other frame is already waiting
+     */
+    private void acknowledge() {
+        if (++unackedFrames >= ACK_INTERVAL || !frameReader.hasBuffered()) {
+            unackedFrames = 0;
+            outboundQueue.acknowledge(expected());
+        }
+    }
+
+    /**
+     * The peer lost frames before seq, the messages they belonged to are dropped
+     */
+    private void skipTo(int seq) {
+        int lost;
+        synchronized (session) {
+            lost = seq - session.expected;
+            if (lost <= 0) return;
+            session.expected = seq;
+        }
+        BtLog.w("ConnectedThread", lost + " frames lost by the peer");
+        droppedSinceNack = -1;
+        for (Channel channel : channels.values()) {
+            channel.discardPartial();
+        }
+    }
+
+    /**
+     * @return Next sequence expected from the peer
+     */
+    private int expected() {
+        synchronized (session) {
+            return session.expected;
+        }
+    }
+
+    /**
+     * Queues a subscription frame, written by the sender thread before the data waiting
+     */
+    private void writeTopic(int type, String topic) {
+        byte[] name = topic.getBytes(UTF_8);
+        if (name.length > getMaxPayload()) {
+            throw new IllegalArgumentException("Topic too long: " + topic);
+        }
+        outboundQueue.offerControl(new Outgoing(type, name));
+    } // end writeTopic method
+
+    /**
+     * Updates the topics the peer wants to receive
+     */
+    private void peerSubscription(Frame frame) {
+        String topic = new String(frame.data, frame.offset, frame.length, UTF_8);
+        if (frame.type == Frame.TYPE_SUBSCRIBE) {
+            peerTopics.add(topic);
+            if (topicIndex != null) topicIndex.add(topic, this);
+        } else {
+            peerTopics.remove(topic);
+            if (topicIndex != null) topicIndex.remove(topic, this);
+        }
+    } // end peerSubscription method
+
+    /**
+     * Learns the peer routes from a {@link Frame#TYPE_ROUTES} frame
+     */
+    private void peerRoutes(Frame frame) {
+        if (routingTable == null || frame.length < RoutingTable.ADDRESS_SIZE) return;
+        routingTable.setLocalAddress(RoutingTable.readAddress(frame.data, frame.offset));
+        int end = frame.offset + frame.length;
+        boolean changed = false;
+        for (int position = frame.offset + RoutingTable.ADDRESS_SIZE;
+             position + RoutingTable.ADDRESS_SIZE < end; position += RoutingTable.ADDRESS_SIZE + 1) {
+            int hops = frame.data[position + RoutingTable.ADDRESS_SIZE] & 0xFF;
+            changed |= routingTable.learn(RoutingTable.readAddress(frame.data, position), this, hops + 1);
+        }
+        if (changed) announceRoutes();
+    } // end peerRoutes method
+
+    /**
+     * Tells the other connections the routes changed, only when they did,
+     * so the announcements stop once every table is up to date
+     */
+    private void announceRoutes() {
+        for (ConnectedThread conn : routingTable.getConnections()) {
+            if (conn != this) conn.sendRoutes();
+        }
+    }
+
+    /**
+     * Delivers a routed frame addressed to this device or forwards it,
+     * copying the payload from the read buffer to the next connection writer
+     */
+    private void routed(Frame frame) {
+        if (routingTable == null || frame.length < RoutingTable.ROUTED_HEADER) return;
+        byte[] data = frame.data;
+        int position = frame.offset;
+        int ttlPosition = position + RoutingTable.ADDRESS_SIZE * 2 + 8;
+        if (!routingTable.firstSeen(TransferProtocol.readLong(data, position + RoutingTable.ADDRESS_SIZE * 2))) {
+            return; // Duplicate
+        }
+
+        String destination = RoutingTable.readAddress(data, position);
+        String source = RoutingTable.readAddress(data, position + RoutingTable.ADDRESS_SIZE);
+        int ttl = data[ttlPosition] & 0xFF;
+        if (routingTable.learn(source, this, Math.max(0, RoutingTable.DEFAULT_TTL - ttl))) announceRoutes();
+
+        if (destination.equals(routingTable.getLocalAddress())) {
+            int channel = ((data[ttlPosition + 1] & 0xFF) << 8) | (data[ttlPosition + 2] & 0xFF);
+            byte[] message = Arrays.copyOfRange(data, position + RoutingTable.ROUTED_HEADER, position + frame.length);
+            Intent intent = new Intent();
+            intent.putExtra(BluetoothListener.EXTRA_MESSAGE, sanitizeString(message));
+            intent.putExtra(BluetoothListener.EXTRA_DATA, message);
+            intent.putExtra(BluetoothListener.EXTRA_CHANNEL, channel);
+            intent.putExtra(BluetoothListener.EXTRA_SOURCE, source);
+            intent.putExtra(BluetoothListener.EXTRA_CONNECTION, this);
+            getChannel(channel).deliver(bluetoothListener, BluetoothListener.MESSAGE_RECEIVED, Activity.RESULT_OK, intent);
+        } else if (ttl > 1) {
+            data[ttlPosition] = (byte) (ttl - 1);
+            ConnectedThread next = routingTable.next(destination);
+            if (next != null && next != this) {
+                next.writeRouted(data, position, frame.length);
+            } else {
+                for (ConnectedThread conn : routingTable.getConnections()) {
+                    if (conn != this) conn.writeRouted(data, position, frame.length);
+                }
+            }
+        }
+    } // end routed method
+
+    /**
+     * @return true if the peer answers {@link Frame#TYPE_PING}
+     */
+    private boolean canPing() {
+        return handshake != null && handshake.has(Handshake.CAP_PING);
+    }
+
+    private void checkPriority(int priority) {
+        if (priority < PRIORITY_HIGH || priority > PRIORITY_BULK) {
+            throw new IllegalArgumentException("Invalid priority: " + priority);
+        }
     }
 
     /**
@@ -177,16 +1331,246 @@ public class ConnectedThread extends Thread implements BluetoothItem, Serializab
      * @throws IOException when the input is closed unexpectedly
      */
     private void connectionLoop() throws IOException {
-        Intent intent = new Intent();
-        byte[] buffer = new byte[1024];
-        int bytes;
+        Frame frame = new Frame();
 
-        //Reads and registers all messages received
+        //Reads and registers all frames received
         while (running) {
-            bytes = input.read(buffer);
-            intent.putExtra(BluetoothListener.EXTRA_MESSAGE, sanitizeString(Arrays.copyOfRange(buffer, 0, bytes)));
-            intent.putExtra(BluetoothListener.EXTRA_CONNECTION, this);
-            bluetoothListener.onActivityResult(BluetoothListener.MESSAGE_RECEIVED, Activity.RESULT_OK, intent);
+            frameReader.next(frame);
+            if (frame.corrupt) {
+                dropCorrupt(frame);
+                continue;
+            }
+
+            switch (frame.type) {
+                case Frame.TYPE_DATA:
+                    if (!sequencing) {
+                        receive(frame);
+                    } else if (inSequence(frame)) {
+                        receive(frame);
+                        acknowledge();
+                    }
+                    break;
+                case Frame.TYPE_CREDIT:
+                    outboundQueue.credit(getChannel(frame.channel), Frame.readInt(frame.data, frame.offset));
+                    break;
+                case Frame.TYPE_CONNECTION_CREDIT:
+                    outboundQueue.connectionCredit(Frame.readInt(frame.data, frame.offset));
+                    break;
+                case Frame.TYPE_KEEPALIVE:
+                    if (droppedSinceNack >= 0) {
+                        droppedSinceNack = -1;
+                        requestMissing(); // The peer is idle, the last request may be lost
+                    }
+                    break;
+                case Frame.TYPE_NACK:
+                    corruptReported++;
+                    if (sequencing && frame.length >= Frame.SEQUENCE_SIZE) {
+                        outboundQueue.requestReplay(Frame.readInt(frame.data, frame.offset), false);
+                    }
+                    break;
+                case Frame.TYPE_ACK:
+                    session.replay.release(Frame.readInt(frame.data, frame.offset));
+                    break;
+                case Frame.TYPE_SYNC:
+                    skipTo(Frame.readInt(frame.data, frame.offset));
+                    break;
+                case Frame.TYPE_ROUTED:
+                    routed(frame);
+                    break;
+                case Frame.TYPE_ROUTES:
+                    peerRoutes(frame);
+                    break;
+                case Frame.TYPE_SUBSCRIBE:
+                case Frame.TYPE_UNSUBSCRIBE:
+                    peerSubscription(frame);
+                    break;
+                case Frame.TYPE_PING:
+                    outboundQueue.offerControl(new Outgoing(Frame.TYPE_PONG,
+                            Arrays.copyOfRange(frame.data, frame.offset, frame.offset + 4)));
+                    break;
+                case Frame.TYPE_PONG:
+                    probe.pong(Frame.readInt(frame.data, frame.offset));
+                    break;
+                default:
+                    BtLog.i("ConnectedThread", "Unknown frame type: ", frame.type);
+            } // end switch frame.type
         }
     } // end connectionLoop method
+
+    /**
+     * Reassembles the message fragments and, when the last one arrives,
+     * sends the message to the channel observer
+     *
+     * @param frame Data frame received
+     */
+    private void receive(Frame frame) throws IOException {
+        Channel channel = getChannel(frame.channel);
+        int lane = frame.lane();
+
+        if (channel.isDiscarding(lane)) {
+            if (frame.hasFlag(Frame.FLAG_END)) channel.endDiscard(lane);
+            giveCredits(channel, frame.length);
+            messageConsumed(frame.length);
+            return;
+        }
+
+        // Only the last frame waits the application, a message bigger than the window still completes
+        boolean end = frame.hasFlag(Frame.FLAG_END);
+        int held = end ? frame.length : 0;
+        if (frame.hasFlag(Frame.FLAG_COMPRESSED)) {
+            try {
+                int size = compressor.decompress(frame.data, frame.offset, frame.length);
+                channel.append(lane, compressor.decompressed(), 0, size, held);
+            } catch (DataFormatException e) {
+                throw new IOException("Invalid compressed frame", e);
+            }
+        } else {
+            channel.append(lane, frame.data, frame.offset, frame.length, held);
+        }
+        if (!end) messageConsumed(frame.length);
+
+        if (frame.hasFlag(Frame.FLAG_END) && frame.hasFlag(Frame.FLAG_DELTA) && !channel.undelta(lane)) {
+            deltaDropped++;
+            messageConsumed(channel.drop(lane));
+        } else if (frame.hasFlag(Frame.FLAG_END) && frame.hasFlag(Frame.FLAG_BATCH)) {
+            int wireLength = channel.wireLength(lane);
+            byte[] envelope = channel.takeMessage(lane);
+            try {
+                int[] bounds = Batch.unpack(envelope, envelope.length);
+                for (int i = 0; i < bounds.length; i += 2) {
+                    // The whole envelope is consumed with its last message
+                    int wire = i + 2 == bounds.length ? wireLength : 0;
+                    deliver(channel, envelope, bounds[i], bounds[i + 1], wire);
+                }
+            } catch (IOException e) {
+                BtLog.w("ConnectedThread", "Batch dropped, channel " + channel.getNumber() + ": " + e.getMessage());
+                messageConsumed(wireLength);
+            }
+        } else if (frame.hasFlag(Frame.FLAG_END) && channel.getNumber() == TRANSFER_CHANNEL) {
+            int wireLength = channel.wireLength(lane);
+            transferReceiver.receive(channel.takeMessage(lane));
+            messageConsumed(wireLength);
+        } else if (frame.hasFlag(Frame.FLAG_END) && channel.hasReader()) {
+            int wireLength = channel.wireLength(lane);
+            try {
+                messagesReceived++;
+                channel.deliverToReader(lane, this);
+            } catch (IOException e) {
+                BtLog.w("ConnectedThread", "Message dropped, channel " + channel.getNumber() + ": " + e.getMessage());
+            } catch (RuntimeException e) { // Thrown by the application reader, the connection goes on
+                BtLog.e("ConnectedThread", "Reader failed, channel " + channel.getNumber(), e);
+            }
+            messageConsumed(wireLength);
+        } else if (frame.hasFlag(Frame.FLAG_END)) {
+            int wireLength = channel.wireLength(lane);
+            byte[] message = channel.takeMessage(lane);
+            deliver(channel, message, 0, message.length, wireLength);
+        }
+
+        giveCredits(channel, frame.length);
+    } // end receive method
+
+    /**
+     * Sends a whole message to the channel reader or observer
+     *
+     * @param wireLength Frame payload bytes to be consumed with the message
+     */
+    private void deliver(Channel channel, byte[] data, int offset, int length, int wireLength) {
+        messagesReceived++;
+        if (channel.hasReader()) {
+            try {
+                channel.deliverToReader(this, data, offset, length);
+            } catch (IOException e) {
+                BtLog.w("ConnectedThread", "Message dropped, channel " + channel.getNumber() + ": " + e.getMessage());
+            } catch (RuntimeException e) { // Thrown by the application reader, the connection goes on
+                BtLog.e("ConnectedThread", "Reader failed, channel " + channel.getNumber(), e);
+            }
+            messageConsumed(wireLength);
+            return;
+        }
+
+        String topic = null;
+        if (channel.getNumber() == TOPIC_CHANNEL) {
+            int size = length >= 2 ? ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF) : 0;
+            if (length < 2 || 2 + size > length) { // The peer broke the format, the connection goes on
+                corruptFrames++;
+                BtLog.w("ConnectedThread", "Malformed topic message dropped");
+                messageConsumed(wireLength);
+                return;
+            }
+            topic = new String(data, offset + 2, size, UTF_8);
+            offset += 2 + size;
+            length -= 2 + size;
+        }
+        byte[] message = offset == 0 && length == data.length ? data : Arrays.copyOfRange(data, offset, offset + length);
+
+        MessageStream s = stream;
+        if (s != null && channel.getListener() == null
+                && s.offer(new ReceivedMessage(this, channel.getNumber(), topic, message, wireLength))) {
+            return; // Consumed when the subscriber receives it
+        }
+
+        Intent intent = new Intent();
+        if (topic != null) intent.putExtra(BluetoothListener.EXTRA_TOPIC, topic);
+        intent.putExtra(BluetoothListener.EXTRA_MESSAGE, sanitizeString(message));
+        intent.putExtra(BluetoothListener.EXTRA_DATA, message);
+        intent.putExtra(BluetoothListener.EXTRA_CHANNEL, channel.getNumber());
+        if (wireLength > 0) intent.putExtra(BluetoothListener.EXTRA_BYTES, (long) wireLength);
+        intent.putExtra(BluetoothListener.EXTRA_CONNECTION, this);
+        if (channel.deliver(bluetoothListener, BluetoothListener.MESSAGE_RECEIVED, Activity.RESULT_OK, intent)) {
+            messageConsumed(wireLength);
+        }
+    } // end deliver method
+
+    /**
+     * Gives the channel credits back in blocks to avoid a credit frame per message.
+     * The sender thread writes them, the reader never blocks on the socket
+     */
+    private void giveCredits(Channel channel, int bytes) {
+        channel.unacknowledged += bytes;
+        if (channel.unacknowledged >= Channel.INITIAL_WINDOW / 4) {
+            channel.granted += channel.unacknowledged;
+            channel.unacknowledged = 0;
+            outboundQueue.grantCredit(channel.getNumber(), channel.granted);
+        }
+    }
+
+    /**
+     * Drops a frame that failed the checksum and tells the peer
+     *
+     * <p>
+     * The messages being reassembled may miss that frame, so they are dropped.
+     * Their next fragments are not discarded, the lost frame may have been the
+     * last one of a message and nothing would end the discard.
+     * </p>
+     * <p>
+     * The header is not trusted: the payload bytes read go back to the
+     * connection window whatever the type, so a corruption does not shrink it
+     * forever, and the channel credits go back only if that channel could
+     * still have sent that many bytes
+     * </p>
+     * <p>
+     * With sequence numbers nothing is discarded, the peer sends the frame again
+     * </p>
+     */
+    private void dropCorrupt(Frame frame) {
+        corruptFrames++;
+        BtLog.w("ConnectedThread", "Corrupt frame dropped");
+        if (sequencing) {
+            requestMissing();
+            return;
+        }
+
+        int dropped = frame.length; // As consumed by the reader
+        for (Channel channel : channels.values()) {
+            dropped += channel.dropPartial();
+        }
+        Channel channel = channels.get(frame.channel);
+        if (frame.type == Frame.TYPE_DATA && channel != null
+                && frame.length <= Channel.INITIAL_WINDOW - channel.unacknowledged) {
+            giveCredits(channel, frame.length);
+        }
+        messageConsumed(dropped);
+        outboundQueue.offerControl(new Outgoing(Frame.TYPE_NACK, new byte[0]));
+    } // end dropCorrupt method
 }
@@ -0,0 +1,130 @@
+/**
+ * File name: ConnectionMetrics
+ * Traffic counters of a {@link ConnectedThread}
+ *
+ * <p>
+ * The counters are kept by the sender and reader threads in fields that
+ * are read without their locks, so a snapshot never delays the traffic;
+ * the values of a snapshot may be a few frames apart from each other.
+ * Instances returned by {@link ConnectedThread#getMetrics()} and
+ * {@link BluetoothManager#getMetrics()} are snapshots
+ * </p>
+ */
+package com.mimmarcelo.btconn;
+
+public final class ConnectionMetrics {
+
+    /* ** Attributes ** */
+
+    String address;
+    long bytesReceived;    // Read from the socket, frame headers included
+    long messagesReceived;
+    long bytesSent;        // Written to the socket, frame headers included
+    long framesSent;
+    long messagesSent;
+    int queueDepth;        // Messages waiting to be sent
+    long creditStallNanos; // Time waiting the peer to give credits
+    long writeNanos;       // Time blocked in the socket writes
+    long corruptFrames;
+    int reconnects;        // Connections to the same peer that resumed this session
+    ReadMetrics reads;
+    LatencyHistogram sendLatency;
+    LatencyHistogram pacingDelays;
+    LinkQuality linkQuality;
+
+    /* ** Public methods ** */
+
+    /**
+     * @return MAC address of the connected device
+     */
+    public String getAddress() {
+        return address;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public long getMessagesReceived() {
+        return messagesReceived;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public long getFramesSent() {
+        return framesSent;
+    }
+
+    public long getMessagesSent() {
+        return messagesSent;
+    }
+
+    /**
+     * @return Messages waiting to be sent, in all the priority lanes
+     */
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * @return Time, in nanoseconds, the sender had data but no credits from the peer
+     */
+    public long getCreditStallNanos() {
+        return creditStallNanos;
+    }
+
+    /**
+     * @return Time, in nanoseconds, blocked writing to the socket
+     */
+    public long getWriteNanos() {
+        return writeNanos;
+    }
+
+    public long getCorruptFrames() {
+        return corruptFrames;
+    }
+
+    /**
+     * @return Times the peer connected again and resumed the session
+     */
+    public int getReconnects() {
+        return reconnects;
+    }
+
+    /**
+     * @return Socket reads, their sizes and the receive buffer size
+     */
+    public ReadMetrics getReads() {
+        return reads;
+    }
+
+    /**
+     * @return Time, in nanoseconds, from sending a message to its last frame written
+     */
+    public LatencyHistogram getSendLatency() {
+        return sendLatency;
+    }
+
+    /**
+     * @return Time, in nanoseconds, the frames waited for the send rate
+     */
+    public LatencyHistogram getPacingDelays() {
+        return pacingDelays;
+    }
+
+    /**
+     * @return Round trip time, jitter and loss measured by the pings
+     */
+    public LinkQuality getLinkQuality() {
+        return linkQuality;
+    }
+
+    @Override
+    public String toString() {
+        return address + ": in " + messagesReceived + " msgs/" + bytesReceived + " B, out "
+                + messagesSent + " msgs/" + bytesSent + " B, queued " + queueDepth
+                + ", latency " + sendLatency;
+    }
+} // end ConnectionMetrics class
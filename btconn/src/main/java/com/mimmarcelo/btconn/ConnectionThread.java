@@ -19,6 +19,7 @@ final class ConnectionThread extends Thread {
     /* ** Constants ** */
 
     private static final String APP = "btconn";
+    private static final String TAG = ConnectionThread.class.getName();
 
     /* ** Private attributes ** */
 
@@ -64,8 +65,11 @@ final class ConnectionThread extends Thread {
     @Override
     public void run() {
         Intent intent = new Intent();
-        BluetoothSocket bluetoothSocket;
+        if (!macAddress.equals(APP)) intent.putExtra(BluetoothListener.EXTRA_ADDRESS, macAddress);
+        BluetoothSocket bluetoothSocket = null;
         try {
+            long start = System.nanoTime();
+
             // Connect as a server
             if(macAddress.equals(APP)){
                 BluetoothServerSocket serverSocket = BluetoothAdapter.getDefaultAdapter().listenUsingRfcommWithServiceRecord(APP, uuid);
@@ -79,11 +83,23 @@ final class ConnectionThread extends Thread {
                 bluetoothSocket.connect();
             }
 
+            long connectNanos = System.nanoTime() - start;
+
             ConnectedThread conn = new ConnectedThread(bluetoothListener, bluetoothSocket);
+            conn.handshake(connectNanos);
             intent.putExtra(BluetoothListener.EXTRA_CONNECTION, conn);
+            intent.putExtra(BluetoothListener.EXTRA_CONNECT_TIME, conn.getConnectNanos());
+            intent.putExtra(BluetoothListener.EXTRA_HANDSHAKE_TIME, conn.getHandshakeNanos());
             bluetoothListener.onActivityResult(BluetoothListener.DEVICE_CONNECTED, Activity.RESULT_OK, intent);
         } // end try clause
         catch (IOException e) {
+            if (bluetoothSocket != null) {
+                try {
+                    bluetoothSocket.close();
+                } catch (IOException closeException) {
+                    BtLog.w(TAG, "Socket not closed after a failed connection", closeException);
+                }
+            }
             intent.putExtra(BluetoothListener.EXTRA_MESSAGE, e.getMessage());
             bluetoothListener.onActivityResult(BluetoothListener.DEVICE_CONNECTED, Activity.RESULT_CANCELED, intent);
         }
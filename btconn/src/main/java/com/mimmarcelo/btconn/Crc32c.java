@@ -0,0 +1,96 @@
+/**
+ * File name: Crc32c
+ * CRC-32C (Castagnoli) checksum of the frames
+ *
+ * <p>
+ * {@link #create()} returns the platform java.util.zip.CRC32C when it exists
+ * (Android 14 / Java 9 and later), it is implemented with the CPU CRC
+ * instructions. On older platforms this table driven implementation
+ * (slicing-by-8) is used, both give the same values
+ * </p>
+ */
+package com.mimmarcelo.btconn;
+
+import java.util.zip.Checksum;
+
+final class Crc32c implements Checksum {
+
+    /* ** Constants ** */
+
+    private static final int POLYNOMIAL = 0x82F63B78; // Castagnoli, reversed
+    private static final int[][] TABLE = new int[8][256];
+
+    static {
+        for (int n = 0; n < 256; n++) {
+            int crc = n;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+            }
+            TABLE[0][n] = crc;
+        }
+        for (int n = 0; n < 256; n++) {
+            for (int slice = 1; slice < 8; slice++) {
+                int previous = TABLE[slice - 1][n];
+                TABLE[slice][n] = (previous >>> 8) ^ TABLE[0][previous & 0xFF];
+            }
+        }
+    }
+
+    /* ** Private attributes ** */
+
+    private int crc;
+
+    /* ** Constructors ** */
+
+    Crc32c() { // Package-private so the tests check this one and not the platform one
+        this.crc = 0xFFFFFFFF;
+    }
+
+    /* ** Static methods ** */
+
+    /**
+     * @return The fastest CRC-32C available in this platform
+     */
+    static Checksum create() {
+        try {
+            return (Checksum) Class.forName("java.util.zip.CRC32C").newInstance();
+        } catch (Exception e) {
+            return new Crc32c();
+        }
+    }
+
+    /* ** Public methods ** */
+
+    @Override
+    public void update(int b) {
+        crc = (crc >>> 8) ^ TABLE[0][(crc ^ b) & 0xFF];
+    }
+
+    @Override
+    public void update(byte[] b, int off, int len) {
+        int c = crc;
+        while (len >= 8) {
+            int low = c ^ ((b[off] & 0xFF) | (b[off + 1] & 0xFF) << 8 | (b[off + 2] & 0xFF) << 16 | (b[off + 3] & 0xFF) << 24);
+            c = TABLE[7][low & 0xFF] ^ TABLE[6][(low >>> 8) & 0xFF]
+                    ^ TABLE[5][(low >>> 16) & 0xFF] ^ TABLE[4][low >>> 24]
+                    ^ TABLE[3][b[off + 4] & 0xFF] ^ TABLE[2][b[off + 5] & 0xFF]
+                    ^ TABLE[1][b[off + 6] & 0xFF] ^ TABLE[0][b[off + 7] & 0xFF];
+            off += 8;
+            len -= 8;
+        }
+        while (len-- > 0) {
+            c = (c >>> 8) ^ TABLE[0][(c ^ b[off++]) & 0xFF];
+        }
+        crc = c;
+    } // end update method
+
+    @Override
+    public long getValue() {
+        return (~crc) & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public void reset() {
+        crc = 0xFFFFFFFF;
+    }
+} // end Crc32c class
@@ -0,0 +1,115 @@
+/**
+ * File name: DeltaDecoder
+ * Rebuilds the messages sent by a {@link DeltaEncoder}
+ *
+ * <p>
+ * The last message of each lane is kept in a buffer that is reused,
+ * each delta is applied in place over it. A delta may declare any size,
+ * so messages bigger than the limit are refused instead of allocated
+ * </p>
+ */
+package com.mimmarcelo.btconn;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+final class DeltaDecoder {
+
+    /* ** Constants ** */
+
+    static final int DEFAULT_MAX_SIZE = 1024 * 1024;
+
+    /* ** Private attributes ** */
+
+    private final int maxSize;
+    private final byte[][] base;
+    private final int[] length;
+    private final int[] version; // 0 while there is no base
+
+    /* ** Constructors ** */
+
+    DeltaDecoder() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param maxSize Biggest message rebuilt, in bytes
+     */
+    DeltaDecoder(int maxSize) {
+        this.maxSize = maxSize;
+        this.base = new byte[Frame.LANES][];
+        this.length = new int[Frame.LANES];
+        this.version = new int[Frame.LANES];
+        for (int lane = 0; lane < Frame.LANES; lane++) {
+            this.base[lane] = new byte[256];
+        }
+    }
+
+    /* ** Methods ** */
+
+    /**
+     * Applies the envelope over the previous message of the lane
+     *
+     * @return Size of the rebuilt message, see {@link #buffer(int)}
+     * @throws IOException if the envelope is invalid or its base was lost,
+     *                     the deltas are dropped until the next keyframe
+     */
+    int decode(int lane, byte[] data, int size) throws IOException {
+        BinaryReader reader = new BinaryReader(data, 0, size);
+        int kind = reader.readByte();
+        int current = reader.readVarInt();
+
+        if (kind == DeltaEncoder.KEYFRAME) {
+            int bytes = reader.remaining();
+            ensure(lane, bytes);
+            System.arraycopy(data, size - bytes, base[lane], 0, bytes);
+            length[lane] = bytes;
+            version[lane] = current;
+            return bytes;
+        }
+        if (kind != DeltaEncoder.DELTA) throw new IOException("Invalid delta kind: " + kind);
+        if (version[lane] == 0 || current != version[lane] + 1) {
+            version[lane] = 0;
+            throw new IOException("Delta base lost");
+        }
+
+        int bytes = reader.readVarInt();
+        if (bytes < 0) throw new IOException("Invalid delta size: " + bytes);
+        ensure(lane, bytes);
+        byte[] buffer = base[lane];
+        if (bytes > length[lane]) Arrays.fill(buffer, length[lane], bytes, (byte) 0);
+
+        int ranges = reader.readVarInt();
+        int position = 0;
+        for (int range = 0; range < ranges; range++) {
+            position += reader.readVarInt();
+            int end = position + reader.readVarInt();
+            if (position < 0 || end > bytes || end < position) throw new IOException("Invalid delta range");
+            for (; position < end; position++) {
+                buffer[position] ^= reader.readByte();
+            }
+        }
+        length[lane] = bytes;
+        version[lane] = current;
+        return bytes;
+    } // end decode method
+
+    /**
+     * @return Buffer with the last message rebuilt in the lane
+     */
+    byte[] buffer(int lane) {
+        return base[lane];
+    }
+
+    /* ** Private methods ** */
+
+    private void ensure(int lane, int bytes) throws IOException {
+        if (bytes > maxSize) {
+            version[lane] = 0;
+            throw new IOException("Delta message too big: " + bytes);
+        }
+        if (base[lane].length < bytes) {
+            base[lane] = Arrays.copyOf(base[lane], Math.min(Math.max(bytes, base[lane].length * 2), maxSize));
+        }
+    }
+} // end DeltaDecoder class
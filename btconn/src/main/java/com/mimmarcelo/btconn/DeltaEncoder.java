@@ -0,0 +1,129 @@
+/**
+ * File name: DeltaEncoder
+ * Sends the messages of a channel as the difference to the previous one
+ *
+ * <p>
+ * Each message becomes an envelope:
+ * </p>
+ * <pre>
+ * byte   kind ({@link #KEYFRAME} or {@link #DELTA})
+ * varint version, one more than the previous message of the lane
+ * KEYFRAME: bytes of the message
+ * DELTA:    varint message size, varint ranges count and, per range,
+ *           varint bytes skipped, varint range size and the range
+ *           XORed with the previous message (missing bytes count as 0)
+ * </pre>
+ * <p>
+ * A keyframe is sent every "interval" messages, and when the delta is not
+ * smaller than the message, so a receiver that lost the base recovers.
+ * The state is kept per priority lane, since the lanes are delivered in
+ * their own order. It is used by the {@link OutboundQueue} when the first
+ * frame of a message is taken, so expired or replaced messages never
+ * become the base
+ * </p>
+ */
+package com.mimmarcelo.btconn;
+
+import java.util.Arrays;
+
+final class DeltaEncoder {
+
+    /* ** Constants ** */
+
+    static final int KEYFRAME = 0;
+    static final int DELTA = 1;
+
+    /**
+     * Unchanged bytes shorter than that do not end a range, a new range costs more
+     */
+    private static final int MIN_GAP = 4;
+
+    /* ** Private attributes ** */
+
+    private final int interval;
+    private final byte[][] last;     // Previous message of each lane
+    private final int[] version;
+    private final int[] sinceKeyframe;
+
+    /* ** Constructors ** */
+
+    /**
+     * @param interval Messages between keyframes
+     */
+    DeltaEncoder(int interval) {
+        if (interval <= 0) throw new IllegalArgumentException("Invalid keyframe interval: " + interval);
+        this.interval = interval;
+        this.last = new byte[Frame.LANES][];
+        this.version = new int[Frame.LANES];
+        this.sinceKeyframe = new int[Frame.LANES];
+    }
+
+    /* ** Methods ** */
+
+    /**
+     * @return The envelope to be sent instead of the message
+     */
+    byte[] encode(int lane, byte[] message) {
+        byte[] previous = last[lane];
+        last[lane] = message.clone(); // The caller may reuse the array once it is written
+        int current = ++version[lane];
+
+        if (previous != null && ++sinceKeyframe[lane] < interval) {
+            byte[] delta = delta(current, previous, message);
+            if (delta != null) return delta;
+        }
+        sinceKeyframe[lane] = 0;
+        BinaryWriter writer = new BinaryWriter(message.length + 6);
+        writer.writeByte(KEYFRAME).writeVarInt(current);
+        writer.writeRaw(message, 0, message.length);
+        return writer.toByteArray();
+    } // end encode method
+
+    /* ** Private methods ** */
+
+    /**
+     * @return The delta envelope, or null if it is not smaller than the message
+     */
+    private static byte[] delta(int version, byte[] previous, byte[] message) {
+        int length = message.length;
+        int[] ranges = new int[16]; // Start and end of each changed range
+        int count = 0;
+        int index = 0;
+        while (index < length) {
+            if (at(previous, index) == message[index]) {
+                index++;
+                continue;
+            }
+            int start = index;
+            int end = index + 1;
+            // Extends the range while the unchanged gaps are short
+            for (int i = end; i < length && i - end < MIN_GAP; i++) {
+                if (at(previous, i) != message[i]) end = i + 1;
+            }
+            if (count * 2 == ranges.length) ranges = Arrays.copyOf(ranges, ranges.length * 2);
+            ranges[count * 2] = start;
+            ranges[count * 2 + 1] = end;
+            count++;
+            index = end;
+        }
+
+        BinaryWriter writer = new BinaryWriter(Math.min(length, 64));
+        writer.writeByte(DELTA).writeVarInt(version).writeVarInt(length).writeVarInt(count);
+        int previousEnd = 0;
+        for (int range = 0; range < count; range++) {
+            int start = ranges[range * 2];
+            int end = ranges[range * 2 + 1];
+            writer.writeVarInt(start - previousEnd).writeVarInt(end - start);
+            for (int i = start; i < end; i++) {
+                writer.writeByte(at(previous, i) ^ message[i]);
+            }
+            previousEnd = end;
+            if (writer.size() >= length) return null;
+        }
+        return writer.toByteArray();
+    } // end delta method
+
+    private static byte at(byte[] data, int index) {
+        return index < data.length ? data[index] : 0;
+    }
+} // end DeltaEncoder class
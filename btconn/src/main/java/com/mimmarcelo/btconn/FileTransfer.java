@@ -0,0 +1,200 @@
+/**
+ * File name: FileTransfer
+ * A file (or stream) sent in chunks through a {@link ConnectedThread}
+ *
+ * <p>
+ * Only the chunks inside the transfer window are in memory at a time.
+ * Files are read through a memory-mapped region instead of heap buffers.
+ * </p>
+ * <p>
+ * The transfer id identifies the partial file on the receiver, so sending
+ * again a transfer with the same id, after a disconnection, continues from
+ * the last offset acknowledged by the receiver
+ * </p>
+ */
+package com.mimmarcelo.btconn;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+public final class FileTransfer {
+
+    /* ** Constants ** */
+
+    /**
+     * Bytes of file in each {@link TransferProtocol#DATA} message
+     */
+    public static final int CHUNK_SIZE = 4 * 1024;
+
+    private static final long MAP_WINDOW = 1024 * 1024; // Mapped region size
+
+    /* ** Private attributes ** */
+
+    private final long id;
+    private final String name;
+    private final long size;
+    private final File file;
+    private InputStream stream;
+
+    private volatile long acknowledged; // Bytes confirmed by the receiver
+
+    private FileInputStream fileInput;
+    private FileChannel fileChannel;
+    private MappedByteBuffer mapped;
+    private long mappedStart;
+
+    /* ** Sending state, used by TransferSender ** */
+
+    long sent;       // Bytes already queued
+    long progressAt; // System.nanoTime() of the last progress reported, 0 if none
+
+    /* ** Constructors ** */
+
+    private FileTransfer(long id, String name, long size, File file, InputStream stream) {
+        this.id = id;
+        this.name = name;
+        this.size = size;
+        this.file = file;
+        this.stream = stream;
+        this.acknowledged = 0;
+        this.sent = 0;
+    }
+
+    /* ** Public static methods ** */
+
+    /**
+     * Creates a transfer of a file
+     *
+     * <p>
+     * The id is derived from the file path, size and last modification,
+     * so the same unchanged file always resumes the same partial transfer
+     * </p>
+     *
+     * @param file File to be sent
+     * @return The transfer, ready to {@link ConnectedThread#startTransfer(FileTransfer)}
+     */
+    public static FileTransfer fromFile(File file) {
+        long id = ((long) file.getAbsolutePath().hashCode() << 32) ^ (file.length() * 31 + file.lastModified());
+        return new FileTransfer(id, file.getName(), file.length(), file, null);
+    }
+
+    /**
+     * Creates a transfer of a stream
+     *
+     * <p>
+     * To resume, the same id must be used and the stream must start
+     * again from the beginning, the acknowledged bytes are skipped
+     * </p>
+     *
+     * @param id     Transfer id, it must be the same when resuming
+     * @param name   File name on the receiver
+     * @param size   Bytes to be read from the stream
+     * @param stream Data source
+     * @return The transfer, ready to {@link ConnectedThread#startTransfer(FileTransfer)}
+     */
+    public static FileTransfer fromStream(long id, String name, long size, InputStream stream) {
+        return new FileTransfer(id, name, size, null, stream);
+    }
+
+    /* ** Public methods ** */
+
+    public long getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return Bytes confirmed by the receiver
+     */
+    public long getAcknowledged() {
+        return acknowledged;
+    }
+
+    public boolean isComplete() {
+        return acknowledged >= size;
+    }
+
+    /**
+     * @return true if the transfer can be started again after a disconnection
+     */
+    public boolean isResumable() {
+        return file != null;
+    }
+
+    /* ** Protected methods ** */
+
+    void setAcknowledged(long acknowledged) {
+        this.acknowledged = acknowledged;
+    }
+
+    /**
+     * Moves the source to the offset accepted by the receiver
+     */
+    void seek(long offset) throws IOException {
+        if (file != null) {
+            if (fileChannel == null) {
+                fileInput = new FileInputStream(file);
+                fileChannel = fileInput.getChannel();
+            }
+            mapped = null;
+        } else {
+            long skip = offset;
+            while (skip > 0) {
+                long skipped = stream.skip(skip);
+                if (skipped <= 0) throw new EOFException("Stream ended before offset " + offset);
+                skip -= skipped;
+            }
+        }
+        sent = offset;
+    } // end seek method
+
+    /**
+     * Reads exactly "length" bytes starting at {@link #sent}
+     */
+    void read(byte[] buffer, int offset, int length) throws IOException {
+        if (file != null) {
+            if (mapped == null || sent < mappedStart || sent + length > mappedStart + mapped.limit()) {
+                mappedStart = sent;
+                mapped = fileChannel.map(FileChannel.MapMode.READ_ONLY, mappedStart, Math.min(MAP_WINDOW, size - mappedStart));
+            }
+            mapped.position((int) (sent - mappedStart));
+            mapped.get(buffer, offset, length);
+        } else {
+            while (length > 0) {
+                int bytes = stream.read(buffer, offset, length);
+                if (bytes < 0) throw new EOFException("Stream ended before " + size + " bytes");
+                offset += bytes;
+                length -= bytes;
+            }
+        }
+    } // end read method
+
+    void close() {
+        mapped = null;
+        try {
+            if (fileInput != null) {
+                fileInput.close();
+                fileInput = null;
+                fileChannel = null;
+            }
+            if (stream != null && isComplete()) {
+                stream.close();
+                stream = null;
+            }
+        } catch (IOException e) {
+            BtLog.w("FileTransfer", "File not closed", e);
+        }
+    } // end close method
+} // end FileTransfer class
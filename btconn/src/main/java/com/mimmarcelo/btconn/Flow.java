@@ -0,0 +1,63 @@
+/**
+ * File name: Flow
+ * Reactive streams interfaces, the same of java.util.concurrent.Flow
+ *
+ * <p>
+ * java.util.concurrent.Flow is available only from Android API 30, these
+ * ones have the same methods and rules so adapting them is a thin wrapper.
+ * A {@link Subscriber} receives at most the items it asked with
+ * {@link Subscription#request(long)}, the calls to it are never concurrent
+ * </p>
+ */
+package com.mimmarcelo.btconn;
+
+public final class Flow {
+
+    /* ** Constructors ** */
+
+    private Flow() {
+    }
+
+    /* ** Inner classes ** */
+
+    public interface Publisher<T> {
+
+        /**
+         * Starts sending items to the subscriber, through
+         * {@link Subscriber#onSubscribe(Subscription)} first
+         */
+        void subscribe(Subscriber<? super T> subscriber);
+    } // end Publisher interface
+
+    public interface Subscriber<T> {
+
+        void onSubscribe(Subscription subscription);
+
+        void onNext(T item);
+
+        /**
+         * No other call follows it
+         */
+        void onError(Throwable throwable);
+
+        /**
+         * No other call follows it
+         */
+        void onComplete();
+    } // end Subscriber interface
+
+    public interface Subscription {
+
+        /**
+         * Adds n items to the demand of the subscriber
+         *
+         * @param n Greater than 0, Long.MAX_VALUE for no limit
+         */
+        void request(long n);
+
+        /**
+         * Stops the items, some may still arrive
+         */
+        void cancel();
+    } // end Subscription interface
+} // end Flow class
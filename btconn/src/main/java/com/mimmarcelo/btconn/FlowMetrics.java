@@ -0,0 +1,59 @@
+/**
+ * File name: FlowMetrics
+ * Counters of the connection flow control of a {@link ConnectedThread}
+ *
+ * <p>
+ * A stall is the time the sender has data but no credits, waiting the
+ * peer application to process what was already sent.
+ * Instances returned by {@link ConnectedThread#getFlowMetrics()} are snapshots
+ * </p>
+ */
+package com.mimmarcelo.btconn;
+
+public final class FlowMetrics {
+
+    /* ** Attributes ** */
+
+    int credits;         // Bytes the sender may still send
+    long stallCount;
+    volatile long stallNanos;   // Time stalled, summed; volatile to be read without the queue lock
+    long maxStallNanos;
+    volatile long stalledSince; // System.nanoTime() of the current stall, 0 if not stalled
+
+    /* ** Public methods ** */
+
+    public int getCredits() {
+        return credits;
+    }
+
+    public long getStallCount() {
+        return stallCount;
+    }
+
+    /**
+     * @return Time stalled, in nanoseconds, including the current stall
+     */
+    public long getStallNanos() {
+        return stalledSince == 0 ? stallNanos : stallNanos + System.nanoTime() - stalledSince;
+    }
+
+    public long getMaxStallNanos() {
+        return maxStallNanos;
+    }
+
+    public boolean isStalled() {
+        return stalledSince != 0;
+    }
+
+    /* ** Protected methods ** */
+
+    FlowMetrics copy() {
+        FlowMetrics copy = new FlowMetrics();
+        copy.credits = credits;
+        copy.stallCount = stallCount;
+        copy.stallNanos = stallNanos;
+        copy.maxStallNanos = maxStallNanos;
+        copy.stalledSince = stalledSince;
+        return copy;
+    }
+} // end FlowMetrics class
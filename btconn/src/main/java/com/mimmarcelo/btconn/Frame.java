@@ -0,0 +1,136 @@
+/**
+ * File name: Frame
+ * Defines the wire format shared by both peers of a {@link ConnectedThread}
+ * and works as a reusable holder for the last frame read from the socket
+ *
+ * <p>
+ * Each frame has a fixed header followed by the payload:
+ * </p>
+ * <pre>
+ * byte  type
+ * byte  flags
+ * short channel (unsigned)
+ * int   payload length
+ * </pre>
+ * <p>
+ * When both peers agree on {@link Handshake#CAP_CHECKSUM}, every frame after the
+ * handshake ends with a CRC-32C of header and payload ({@link #TRAILER_SIZE} bytes)
+ * </p>
+ */
+package com.mimmarcelo.btconn;
+
+final class Frame {
+
+    /* ** Constants ** */
+
+    static final int HEADER_SIZE = 8;
+    static final int TRAILER_SIZE = 4;
+
+    /**
+     * Default payload limit, header + payload fits in the old 1024 bytes read buffer
+     */
+    static final int DEFAULT_MAX_PAYLOAD = 1024 - HEADER_SIZE;
+
+    static final int MAX_CHANNEL = 0xFFFF;
+
+    /**
+     * Number of priority lanes, see {@link ConnectedThread#PRIORITY_HIGH}
+     */
+    static final int LANES = 3;
+
+    // Frame types
+    static final int TYPE_DATA = 1;
+    static final int TYPE_CREDIT = 2;
+    static final int TYPE_CONNECTION_CREDIT = 3;
+    static final int TYPE_HELLO = 4;     // See Handshake
+    static final int TYPE_KEEPALIVE = 5; // Sent when the connection is idle
+    static final int TYPE_NACK = 6;      // A frame arrived corrupted (or missing, with the sequence)
+    static final int TYPE_ACK = 7;       // Every sequence before the one in the payload arrived
+    static final int TYPE_SYNC = 8;      // Sequences before the one in the payload are lost
+    static final int TYPE_SUBSCRIBE = 9;   // The payload is a topic the peer wants to receive
+    static final int TYPE_UNSUBSCRIBE = 10;
+    static final int TYPE_ROUTED = 11;     // Addressed message forwarded between peers, see RoutingTable
+    static final int TYPE_ROUTES = 12;     // Devices reachable through the sender
+    static final int TYPE_PING = 13;       // The payload is an id the peer sends back in a PONG
+    static final int TYPE_PONG = 14;
+
+    /**
+     * When both peers agree on {@link Handshake#CAP_SEQUENCE}, the data
+     * payload starts with its sequence number
+     */
+    static final int SEQUENCE_SIZE = 4;
+
+    // Frame flags
+    static final int FLAG_END = 0x01; // Last fragment of a message
+    static final int LANE_SHIFT = 1;   // Bits 1 and 2 keep the priority lane
+    static final int LANE_MASK = 0x03 << LANE_SHIFT;
+    static final int FLAG_COMPRESSED = 0x08; // Payload deflated by Compressor
+    static final int FLAG_DELTA = 0x10;      // Message is a DeltaEncoder envelope
+    static final int FLAG_BATCH = 0x20;      // Message is a Batch envelope
+
+    /* ** Attributes ** */
+
+    int type;
+    int flags;
+    int channel;
+    int length;
+    boolean corrupt; // Checksum did not match, header fields may be wrong
+
+    /**
+     * Bytes holding the payload, it is shared with the {@link FrameReader}
+     * buffer and it is valid only until the next read
+     */
+    byte[] data;
+    int offset;
+
+    /* ** Methods ** */
+
+    boolean hasFlag(int flag) {
+        return (flags & flag) != 0;
+    }
+
+    /**
+     * @return The priority lane of a data frame
+     */
+    int lane() {
+        return Math.min((flags & LANE_MASK) >>> LANE_SHIFT, LANES - 1);
+    }
+
+    /**
+     * Writes the header in the first {@link #HEADER_SIZE} bytes from offset
+     *
+     * @return The offset just after the header
+     */
+    static int writeHeader(byte[] buffer, int offset, int type, int flags, int channel, int length) {
+        buffer[offset] = (byte) type;
+        buffer[offset + 1] = (byte) flags;
+        buffer[offset + 2] = (byte) (channel >>> 8);
+        buffer[offset + 3] = (byte) channel;
+        writeInt(buffer, offset + 4, length);
+        return offset + HEADER_SIZE;
+    }
+
+    /**
+     * Reads the header from buffer into this frame, the payload is not touched
+     */
+    void readHeader(byte[] buffer, int offset) {
+        type = buffer[offset] & 0xFF;
+        flags = buffer[offset + 1] & 0xFF;
+        channel = ((buffer[offset + 2] & 0xFF) << 8) | (buffer[offset + 3] & 0xFF);
+        length = readInt(buffer, offset + 4);
+    }
+
+    static void writeInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    static int readInt(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xFF) << 24)
+                | ((buffer[offset + 1] & 0xFF) << 16)
+                | ((buffer[offset + 2] & 0xFF) << 8)
+                | (buffer[offset + 3] & 0xFF);
+    }
+} // end Frame class
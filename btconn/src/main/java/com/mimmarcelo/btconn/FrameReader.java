@@ -0,0 +1,204 @@
+/**
+ * File name: FrameReader
+ * Splits the Bluetooth input stream into {@link Frame}s
+ *
+ * <p>
+ * The bytes are read in blocks into a single buffer and frames are
+ * parsed straight from it, so one {@link InputStream#read(byte[], int, int)}
+ * can deliver many small frames
+ * </p>
+ * <p>
+ * The buffer adapts to the link: it doubles when the reads keep filling
+ * it (bulk traffic, fewer and bigger reads) and halves when the reads stay
+ * small (idle or chatty links), always within the bounds and never
+ * smaller than one whole frame
+ * </p>
+ */
+package com.mimmarcelo.btconn;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Checksum;
+
+final class FrameReader {
+
+    /* ** Constants ** */
+
+    static final int DEFAULT_BUFFER_SIZE = 1024;
+    static final int DEFAULT_MAX_BUFFER_SIZE = 64 * 1024;
+
+    private static final int GROW_AFTER = 4;    // Consecutive reads that filled the buffer
+    private static final int SHRINK_AFTER = 64; // Consecutive reads smaller than a quarter of it
+
+    /* ** Private attributes ** */
+
+    private final InputStream input;
+    private byte[] buffer;
+    private int position; // First byte not parsed yet
+    private int limit;    // First byte not read yet
+    private int maxPayload;
+    private Checksum checksum; // Null while frames have no trailer
+    private volatile int minBuffer;
+    private volatile int maxBuffer;
+    private int fullReads;   // Consecutive reads that filled the free space
+    private int smallReads;  // Consecutive reads smaller than a quarter of the buffer
+    private volatile long reads;
+    private volatile long readBytes;
+    private volatile int averageRead; // Moving average, 1/8 weight of the last read
+    private volatile int resizes;
+    private volatile int bufferSize; // buffer.length, for the other threads
+
+    /* ** Constructors ** */
+
+    FrameReader(InputStream input, int maxPayload) {
+        this.input = input;
+        this.maxPayload = maxPayload;
+        this.minBuffer = Math.max(DEFAULT_BUFFER_SIZE, frameSize());
+        this.maxBuffer = Math.max(DEFAULT_MAX_BUFFER_SIZE, minBuffer);
+        this.buffer = new byte[minBuffer];
+        this.bufferSize = minBuffer;
+        this.position = 0;
+        this.limit = 0;
+    }
+
+    /* ** Methods ** */
+
+    /**
+     * From now on every frame has a CRC-32C trailer
+     */
+    void setChecksum(Checksum checksum) {
+        this.checksum = checksum;
+    }
+
+    /**
+     * Blocks until a whole frame is available
+     *
+     * @param frame holder that receives the frame, its payload points to the
+     *              internal buffer and is valid until the next call.
+     *              {@link Frame#corrupt} tells if the trailer did not match
+     * @throws IOException when the input is closed or the peer breaks the protocol
+     */
+    void next(Frame frame) throws IOException {
+        fill(Frame.HEADER_SIZE);
+        frame.readHeader(buffer, position);
+
+        if (frame.length < 0 || frame.length > maxPayload) {
+            throw new IOException("Invalid frame length: " + frame.length);
+        }
+
+        int trailer = checksum != null ? Frame.TRAILER_SIZE : 0;
+        fill(Frame.HEADER_SIZE + frame.length + trailer);
+        frame.data = buffer;
+        frame.offset = position + Frame.HEADER_SIZE;
+        frame.corrupt = false;
+
+        if (checksum != null) {
+            checksum.reset();
+            checksum.update(buffer, position, Frame.HEADER_SIZE + frame.length);
+            int expected = Frame.readInt(buffer, frame.offset + frame.length);
+            frame.corrupt = (int) checksum.getValue() != expected;
+        }
+        position += Frame.HEADER_SIZE + frame.length + trailer;
+    } // end next method
+
+    /**
+     * Limits the size of the buffer, it changes on the next read
+     *
+     * @param min Smallest size, raised to one whole frame if smaller
+     * @param max Biggest size
+     */
+    void setBufferBounds(int min, int max) {
+        int lower = Math.max(min, frameSize());
+        maxBuffer = Math.max(max, lower);
+        minBuffer = lower;
+    }
+
+    /**
+     * @return A snapshot of the read counters, it may be called by any thread
+     */
+    ReadMetrics getMetrics() {
+        ReadMetrics metrics = new ReadMetrics();
+        metrics.bufferSize = bufferSize;
+        metrics.minBufferSize = minBuffer;
+        metrics.maxBufferSize = maxBuffer;
+        metrics.reads = reads;
+        metrics.readBytes = readBytes;
+        metrics.averageRead = averageRead;
+        metrics.resizes = resizes;
+        return metrics;
+    } // end getMetrics method
+
+    /**
+     * @return true if bytes of the next frame were already read from the input
+     */
+    boolean hasBuffered() {
+        return limit > position;
+    }
+
+    /* ** Private methods ** */
+
+    /**
+     * Reads from input until at least "needed" bytes are available from position
+     */
+    private void fill(int needed) throws IOException {
+        if (limit - position >= needed) return;
+
+        // Moves the remaining bytes to the beginning of the buffer
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+        }
+
+        resize();
+        while (limit < needed) {
+            int free = buffer.length - limit;
+            int bytes = input.read(buffer, limit, free);
+            if (bytes < 0) throw new EOFException("Bluetooth input closed");
+            limit += bytes;
+            observe(bytes, free);
+        }
+    } // end fill method
+
+    private int frameSize() {
+        return Frame.HEADER_SIZE + maxPayload + Frame.TRAILER_SIZE;
+    }
+
+    /**
+     * Counts the read and decides the next buffer size
+     *
+     * @param free Bytes the read was able to fill
+     */
+    private void observe(int bytes, int free) {
+        reads++;
+        readBytes += bytes;
+        averageRead += (bytes - averageRead) >> 3;
+
+        fullReads = bytes == free ? fullReads + 1 : 0;
+        smallReads = bytes < buffer.length / 4 ? smallReads + 1 : 0;
+    }
+
+    /**
+     * Changes the buffer size, only when the remaining bytes are at its
+     * beginning, so the frames already parsed are never moved
+     */
+    private void resize() {
+        int size = buffer.length;
+        if (fullReads >= GROW_AFTER) {
+            size = Math.min(size * 2, maxBuffer);
+        } else if (smallReads >= SHRINK_AFTER && averageRead < size / 4) {
+            size = Math.max(size / 2, minBuffer);
+        }
+        size = Math.min(Math.max(size, minBuffer), maxBuffer);
+        if (size == buffer.length || size < limit) return;
+
+        byte[] resized = new byte[size];
+        System.arraycopy(buffer, 0, resized, 0, limit);
+        buffer = resized;
+        bufferSize = size;
+        fullReads = 0;
+        smallReads = 0;
+        resizes++;
+    } // end resize method
+} // end FrameReader class
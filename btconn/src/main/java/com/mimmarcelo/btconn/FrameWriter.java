@@ -0,0 +1,97 @@
+/**
+ * File name: FrameWriter
+ * Writes {@link Frame}s to the Bluetooth output stream
+ *
+ * <p>
+ * The header and the payload are copied into one buffer so each frame
+ * reaches the socket with a single write. Only the sender thread writes,
+ * the reader queues its credits and acknowledgements as control frames;
+ * the writes are still synchronized, the metrics are read by any thread
+ * </p>
+ */
+package com.mimmarcelo.btconn;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Checksum;
+
+final class FrameWriter {
+
+    /* ** Private attributes ** */
+
+    private final OutputStream output;
+    private final byte[] buffer;
+    private Checksum checksum; // Null while frames have no trailer
+    private volatile long frames;     // Written under the lock, read by any thread
+    private volatile long bytes;
+    private volatile long writeNanos; // Time blocked in the socket writes
+
+    /* ** Constructors ** */
+
+    FrameWriter(OutputStream output, int maxPayload) {
+        this.output = output;
+        this.buffer = new byte[Frame.HEADER_SIZE + maxPayload + Frame.TRAILER_SIZE];
+    }
+
+    /* ** Methods ** */
+
+    /**
+     * From now on every frame has a CRC-32C trailer
+     */
+    synchronized void setChecksum(Checksum checksum) {
+        this.checksum = checksum;
+    }
+
+    synchronized void writeFrame(int type, int flags, int channel, byte[] data, int offset, int length) throws IOException {
+        int position = Frame.writeHeader(buffer, 0, type, flags, channel, length);
+        if (length > 0) {
+            System.arraycopy(data, offset, buffer, position, length);
+        }
+        write(position + length);
+    }
+
+    /**
+     * Writes a data frame whose payload starts with the sequence number
+     */
+    synchronized void writeData(int flags, int channel, int seq, byte[] data, int offset, int length) throws IOException {
+        int position = Frame.writeHeader(buffer, 0, Frame.TYPE_DATA, flags, channel, Frame.SEQUENCE_SIZE + length);
+        Frame.writeInt(buffer, position, seq);
+        position += Frame.SEQUENCE_SIZE;
+        if (length > 0) {
+            System.arraycopy(data, offset, buffer, position, length);
+        }
+        write(position + length);
+    }
+
+    long getFrames() {
+        return frames;
+    }
+
+    long getBytes() {
+        return bytes;
+    }
+
+    long getWriteNanos() {
+        return writeNanos;
+    }
+
+    /* ** Private methods ** */
+
+    /**
+     * Adds the trailer, if enabled, and writes the frame built in the buffer
+     */
+    private void write(int length) throws IOException {
+        if (checksum != null) {
+            checksum.reset();
+            checksum.update(buffer, 0, length);
+            Frame.writeInt(buffer, length, (int) checksum.getValue());
+            length += Frame.TRAILER_SIZE;
+        }
+        long start = System.nanoTime();
+        output.write(buffer, 0, length);
+        output.flush();
+        writeNanos += System.nanoTime() - start;
+        bytes += length;
+        frames++;
+    }
+} // end FrameWriter class
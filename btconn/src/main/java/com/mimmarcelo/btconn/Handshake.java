@@ -0,0 +1,198 @@
+/**
+ * File name: Handshake
+ * Agreement made by both peers right after the socket connects, before
+ * any message is exchanged
+ *
+ * <p>
+ * Each side sends a {@link Frame#TYPE_HELLO} frame with:
+ * </p>
+ * <pre>
+ * int   magic ("BTCN")
+ * short protocol version
+ * int   capabilities bitmap
+ * int   maximum frame payload
+ * int   keepalive interval, in milliseconds (0 disables)
+ * long  session id of this side stream          (version 2)
+ * long  session id known of the peer stream     (version 2)
+ * int   next sequence expected from the peer    (version 2)
+ * </pre>
+ * <p>
+ * Both sides pick the same result: the lowest version, the capabilities
+ * common to both, the smallest payload and the shortest keepalive.
+ * The session fields are kept as received, see {@link Session}
+ * </p>
+ * <p>
+ * Newer versions may append fields, the bytes after the known ones are
+ * read and ignored so older peers still connect
+ * </p>
+ */
+package com.mimmarcelo.btconn;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Timer;
+import java.util.TimerTask;
+
+final class Handshake {
+
+    /* ** Constants ** */
+
+    static final int MAGIC = 0x4254434E;
+    static final int VERSION = 2;
+    static final int MIN_VERSION = 1;
+
+    static final int DEFAULT_KEEPALIVE = 5000;
+    static final int TIMEOUT_MILLIS = 10000; // The socket is closed if the peer does not answer
+
+    // Capabilities
+    static final int CAP_COMPRESSION = 0x01;
+    static final int CAP_KEEPALIVE = 0x02;
+    static final int CAP_CHECKSUM = 0x04;
+    static final int CAP_SEQUENCE = 0x08;
+    static final int CAP_PING = 0x10; // Answers TYPE_PING with TYPE_PONG
+
+    private static final int PAYLOAD_V1 = 18;
+    private static final int PAYLOAD_V2 = 38;
+
+    /* ** Private static attributes ** */
+
+    private static Timer timer; // Shared by all the handshakes, created by the first one
+
+    /* ** Attributes ** */
+
+    int version;
+    int capabilities;
+    int maxPayload;
+    int keepalive;
+
+    // Session fields, of this side when offered and of the peer when agreed
+    long sessionId;
+    long peerSessionId;
+    int expected;
+
+    /* ** Constructors ** */
+
+    Handshake(int version, int capabilities, int maxPayload, int keepalive) {
+        this.version = version;
+        this.capabilities = capabilities;
+        this.maxPayload = maxPayload;
+        this.keepalive = keepalive;
+    }
+
+    /**
+     * Offer of this side, including the session state
+     */
+    Handshake(int capabilities, int maxPayload, int keepalive, Session session) {
+        this(VERSION, capabilities, maxPayload, keepalive);
+        this.sessionId = session.id;
+        this.peerSessionId = session.peerId;
+        this.expected = session.expected;
+    }
+
+    /* ** Methods ** */
+
+    boolean has(int capability) {
+        return (capabilities & capability) != 0;
+    }
+
+    /**
+     * Sends the local offer, reads the peer offer and combines both
+     *
+     * <p>
+     * It reads exactly the peer frame, nothing more, so the stream can be
+     * used by the {@link FrameReader} afterwards
+     * </p>
+     *
+     * @return The agreed settings
+     * @throws IOException if the peer does not answer a valid and compatible hello
+     */
+    static Handshake exchange(InputStream input, OutputStream output, Handshake local) throws IOException {
+        byte[] buffer = new byte[Frame.HEADER_SIZE + PAYLOAD_V2];
+
+        int position = Frame.writeHeader(buffer, 0, Frame.TYPE_HELLO, 0, 0, PAYLOAD_V2);
+        Frame.writeInt(buffer, position, MAGIC);
+        buffer[position + 4] = (byte) (local.version >>> 8);
+        buffer[position + 5] = (byte) local.version;
+        Frame.writeInt(buffer, position + 6, local.capabilities);
+        Frame.writeInt(buffer, position + 10, local.maxPayload);
+        Frame.writeInt(buffer, position + 14, local.keepalive);
+        TransferProtocol.writeLong(buffer, position + 18, local.sessionId);
+        TransferProtocol.writeLong(buffer, position + 26, local.peerSessionId);
+        Frame.writeInt(buffer, position + 34, local.expected);
+        output.write(buffer);
+        output.flush();
+
+        DataInputStream in = new DataInputStream(input);
+        in.readFully(buffer, 0, Frame.HEADER_SIZE);
+        Frame frame = new Frame();
+        frame.readHeader(buffer, 0);
+        if (frame.type != Frame.TYPE_HELLO || frame.length < PAYLOAD_V1 || frame.length > Frame.DEFAULT_MAX_PAYLOAD) {
+            throw new IOException("Peer is not a btconn connection");
+        }
+        if (frame.length > PAYLOAD_V2) {
+            byte[] header = buffer;
+            buffer = new byte[Frame.HEADER_SIZE + frame.length];
+            System.arraycopy(header, 0, buffer, 0, Frame.HEADER_SIZE);
+        }
+        in.readFully(buffer, Frame.HEADER_SIZE, frame.length);
+        if (Frame.readInt(buffer, Frame.HEADER_SIZE) != MAGIC) {
+            throw new IOException("Peer is not a btconn connection");
+        }
+
+        position = Frame.HEADER_SIZE;
+        int version = ((buffer[position + 4] & 0xFF) << 8) | (buffer[position + 5] & 0xFF);
+        if (version < MIN_VERSION) {
+            throw new IOException("Unsupported protocol version: " + version);
+        }
+
+        int keepalive = Frame.readInt(buffer, position + 14);
+        if (keepalive <= 0 || (local.keepalive > 0 && local.keepalive < keepalive)) {
+            keepalive = local.keepalive;
+        }
+
+        Handshake agreed = new Handshake(
+                Math.min(local.version, version),
+                local.capabilities & Frame.readInt(buffer, position + 6),
+                Math.min(local.maxPayload, Frame.readInt(buffer, position + 10)),
+                keepalive);
+        if (!agreed.has(CAP_KEEPALIVE)) agreed.keepalive = 0;
+        if (agreed.maxPayload < 64) {
+            throw new IOException("Invalid maximum payload: " + agreed.maxPayload);
+        }
+
+        if (frame.length >= PAYLOAD_V2) {
+            agreed.sessionId = TransferProtocol.readLong(buffer, position + 18);
+            agreed.peerSessionId = TransferProtocol.readLong(buffer, position + 26);
+            agreed.expected = Frame.readInt(buffer, position + 34);
+        } else {
+            agreed.capabilities &= ~CAP_SEQUENCE; // Version 1 has no sessions
+        }
+        return agreed;
+    } // end exchange method
+
+    /**
+     * Closes the socket if the handshake takes more than {@link #TIMEOUT_MILLIS},
+     * the read waiting the peer then fails instead of blocking forever
+     *
+     * @return The task to cancel once the exchange ends, its cancel returns
+     * false if the socket was already closed
+     */
+    static synchronized TimerTask closeOnTimeout(final Closeable socket) {
+        if (timer == null) timer = new Timer("btconn-handshake", true);
+        TimerTask task = new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    BtLog.w("Handshake", "Socket not closed: " + e.getMessage());
+                }
+            }
+        };
+        timer.schedule(task, TIMEOUT_MILLIS);
+        return task;
+    } // end closeOnTimeout method
+} // end Handshake class
@@ -0,0 +1,92 @@
+/**
+ * File name: LaneMetrics
+ * Counters of one priority lane of a {@link ConnectedThread} send queue
+ *
+ * <p>
+ * Instances returned by {@link ConnectedThread#getLaneMetrics(int)} are
+ * snapshots, they do not change after returned
+ * </p>
+ */
+package com.mimmarcelo.btconn;
+
+public final class LaneMetrics {
+
+    /* ** Attributes ** */
+
+    long enqueued;       // Messages offered
+    long sent;           // Messages completely written
+    long expired;        // Messages dropped because their time to live ended
+    long conflated;      // Messages replaced by a newer value of the same key
+    long batches;        // Envelopes that packed queued messages
+    long bytesSent;
+    int depth;           // Messages waiting (or being written)
+    long totalWaitNanos; // Time from offer to the first frame, summed
+    long maxWaitNanos;
+
+    /* ** Public methods ** */
+
+    public long getEnqueued() {
+        return enqueued;
+    }
+
+    public long getSent() {
+        return sent;
+    }
+
+    /**
+     * @return Messages dropped, before any frame was written, because they were too old
+     */
+    public long getExpired() {
+        return expired;
+    }
+
+    /**
+     * @return Messages not sent because a newer value of the same key replaced them
+     */
+    public long getConflated() {
+        return conflated;
+    }
+
+    /**
+     * @return Envelopes made by packing queued small messages, see
+     * {@link ConnectedThread#setBatching(int, int)}
+     */
+    public long getBatches() {
+        return batches;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * @return Average time, in nanoseconds, that a message waits before its first frame is written
+     */
+    public long getAverageWaitNanos() {
+        return sent == 0 ? 0 : totalWaitNanos / sent;
+    }
+
+    public long getMaxWaitNanos() {
+        return maxWaitNanos;
+    }
+
+    /* ** Protected methods ** */
+
+    LaneMetrics copy() {
+        LaneMetrics copy = new LaneMetrics();
+        copy.enqueued = enqueued;
+        copy.sent = sent;
+        copy.expired = expired;
+        copy.conflated = conflated;
+        copy.batches = batches;
+        copy.bytesSent = bytesSent;
+        copy.depth = depth;
+        copy.totalWaitNanos = totalWaitNanos;
+        copy.maxWaitNanos = maxWaitNanos;
+        return copy;
+    }
+} // end LaneMetrics class
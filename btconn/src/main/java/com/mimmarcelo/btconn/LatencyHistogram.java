@@ -0,0 +1,146 @@
+/**
+ * File name: LatencyHistogram
+ * Distribution of durations, in nanoseconds, in fixed memory
+ *
+ * <p>
+ * The values are counted in log-linear buckets: each power of two is split
+ * in 16 buckets, so a percentile is off by at most 1/16 (6.25%) of its value
+ * and values from 1 ns up to hours take {@link #BUCKETS} counters. Recording
+ * is lock free, so it is done in the sending and reading paths; the reads
+ * of an instance being recorded are approximate, use {@link #snapshot()}
+ * </p>
+ */
+package com.mimmarcelo.btconn;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public final class LatencyHistogram {
+
+    /* ** Constants ** */
+
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int LINEAR = SUB_BUCKETS * 2; // Values below it have their own bucket
+    private static final int MAX_EXPONENT = 44;        // Values from 2^44 ns (about 4.9 hours) are clamped
+
+    static final int BUCKETS = LINEAR + (MAX_EXPONENT - SUB_BITS - 1) * SUB_BUCKETS;
+
+    /* ** Private attributes ** */
+
+    private final AtomicLongArray counts;
+    private final AtomicLong total;
+    private final AtomicLong sum;
+    private final AtomicLong max;
+
+    /* ** Constructors ** */
+
+    LatencyHistogram() {
+        this.counts = new AtomicLongArray(BUCKETS);
+        this.total = new AtomicLong();
+        this.sum = new AtomicLong();
+        this.max = new AtomicLong();
+    }
+
+    /* ** Public methods ** */
+
+    public long getCount() {
+        return total.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @return Average value, 0 if empty
+     */
+    public long getMean() {
+        long count = total.get();
+        return count == 0 ? 0 : sum.get() / count;
+    }
+
+    /**
+     * @param percentile From 0 to 100, like 50 for the median or 99.9
+     * @return Highest value of the bucket that reaches the percentile, 0 if empty
+     */
+    public long getValueAtPercentile(double percentile) {
+        long count = total.get();
+        if (count == 0) return 0;
+        long rank = (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * count);
+        if (rank < 1) rank = 1;
+        long seen = 0;
+        for (int index = 0; index < BUCKETS; index++) {
+            seen += counts.get(index);
+            if (seen >= rank) return Math.min(highestOf(index), max.get());
+        }
+        return max.get();
+    } // end getValueAtPercentile method
+
+    /**
+     * @return A copy that does not change anymore
+     */
+    public LatencyHistogram snapshot() {
+        LatencyHistogram copy = new LatencyHistogram();
+        copy.add(this);
+        return copy;
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount() + " mean=" + getMean() + " p50=" + getValueAtPercentile(50)
+                + " p99=" + getValueAtPercentile(99) + " max=" + getMax();
+    }
+
+    /* ** Protected methods ** */
+
+    void record(long value) {
+        if (value < 0) value = 0;
+        counts.incrementAndGet(indexOf(value));
+        total.incrementAndGet();
+        sum.addAndGet(value);
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // Another thread raised it, compare again
+        }
+    }
+
+    /**
+     * Adds the values of other to this one
+     */
+    void add(LatencyHistogram other) {
+        long count = 0;
+        for (int index = 0; index < BUCKETS; index++) {
+            long c = other.counts.get(index);
+            if (c != 0) {
+                counts.addAndGet(index, c);
+                count += c;
+            }
+        }
+        total.addAndGet(count);
+        sum.addAndGet(other.sum.get());
+        long value = other.max.get();
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // Another thread raised it, compare again
+        }
+    } // end add method
+
+    /* ** Private methods ** */
+
+    private static int indexOf(long value) {
+        if (value < LINEAR) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent >= MAX_EXPONENT) return BUCKETS - 1;
+        int shift = exponent - SUB_BITS;
+        return LINEAR + (exponent - SUB_BITS - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    private static long highestOf(int index) {
+        if (index < LINEAR) return index;
+        int k = index - LINEAR;
+        int shift = k / SUB_BUCKETS + 1;
+        long mantissa = SUB_BUCKETS + k % SUB_BUCKETS;
+        return ((mantissa + 1) << shift) - 1;
+    }
+} // end LatencyHistogram class
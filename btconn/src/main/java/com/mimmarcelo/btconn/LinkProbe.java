@@ -0,0 +1,257 @@
+/**
+ * File name: LinkProbe
+ * Measures the link of a connection with {@link Frame#TYPE_PING} frames
+ *
+ * <p>
+ * The sender thread of the connection writes the ping before the data
+ * waiting, and the time is taken right then; the peer answers with a
+ * {@link Frame#TYPE_PONG} straight from its reader thread, so the round trip
+ * does not include the send queues. A ping not answered within the timeout
+ * is counted as lost. The estimates are kept in volatile fields, so
+ * {@link #getScore()} is cheap enough to be read by the sending policies.
+ * </p>
+ * <p>
+ * Pings are sent on demand or periodically. One timer thread shared by all
+ * the connections schedules them and their timeouts, it only queues frames
+ * and never blocks on a socket, so a stalled link does not delay the others
+ * </p>
+ */
+package com.mimmarcelo.btconn;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeoutException;
+
+final class LinkProbe {
+
+    /* ** Constants ** */
+
+    static final long DEFAULT_TIMEOUT_MILLIS = 5000;
+
+    /**
+     * Round trip time that halves the score, like a link with 50% loss
+     */
+    private static final long REFERENCE_RTT = 50000000L;
+
+    /* ** Private attributes ** */
+
+    private static Timer timer; // Shared by all the probes, created by the first one
+
+    private final ConnectedThread connection;
+    private final Map<Integer, Ping> pending; // Guarded by this
+    private final LatencyHistogram rtts;
+    private int nextId;
+    private TimerTask periodic;
+    private volatile long timeoutMillis;
+    private volatile long pingsSent;
+    private volatile long pingsLost;
+    private volatile long smoothedRtt;
+    private volatile long rttVariation;
+    private volatile long jitter;
+    private volatile long minRtt;
+    private volatile long lastRtt;
+    private volatile double lossRate;
+    private volatile long throughput;
+    private volatile int score;
+    private long lastBytes;   // Bytes written at the last answer
+    private long lastAnswer;  // System.nanoTime() of the last answer
+
+    /* ** Constructors ** */
+
+    LinkProbe(ConnectedThread connection) {
+        this.connection = connection;
+        this.pending = new HashMap<>();
+        this.rtts = new LatencyHistogram();
+        this.timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+        this.score = -1;
+    }
+
+    /* ** Methods ** */
+
+    void setTimeout(long millis) {
+        timeoutMillis = millis;
+    }
+
+    /**
+     * Sends a ping
+     *
+     * @return Completes with the round trip time, in nanoseconds, or fails
+     * with a TimeoutException if it is not answered in time
+     */
+    BluetoothFuture<Long> ping() {
+        BluetoothFuture<Long> future = new BluetoothFuture<>();
+        final int id;
+        synchronized (this) {
+            id = nextId++;
+            pending.put(id, new Ping(future));
+            pingsSent++;
+        }
+        if (!connection.queuePing(id)) {
+            synchronized (this) {
+                pending.remove(id);
+            }
+            future.fail(new IOException("Connection closed"));
+            return future;
+        }
+        schedule(new TimerTask() {
+            @Override
+            public void run() {
+                expire(id);
+            }
+        }, timeoutMillis, 0);
+        return future;
+    } // end ping method
+
+    /**
+     * The sender thread is about to write the ping, its round trip starts now
+     */
+    synchronized void writing(int id) {
+        Ping ping = pending.get(id);
+        if (ping != null) ping.sentAt = System.nanoTime();
+    }
+
+    /**
+     * Records the answer of a ping, late answers are ignored
+     */
+    void pong(int id) {
+        long now = System.nanoTime();
+        Ping ping;
+        long rtt;
+        synchronized (this) {
+            ping = pending.get(id);
+            if (ping == null || ping.sentAt == 0) return; // Late, or not a ping of this side
+            pending.remove(id);
+            rtt = now - ping.sentAt;
+            update(rtt, 0, now);
+        }
+        ping.future.complete(rtt);
+    } // end pong method
+
+    /**
+     * Sends a ping every interval
+     *
+     * @param millis Interval, 0 to stop
+     */
+    synchronized void setInterval(long millis) {
+        if (periodic != null) periodic.cancel();
+        periodic = null;
+        if (millis <= 0) return;
+        periodic = new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    ping();
+                } catch (RuntimeException e) {
+                    BtLog.w("LinkProbe", "Ping failed", e); // The shared timer must keep running
+                }
+            }
+        };
+        schedule(periodic, millis, millis);
+    } // end setInterval method
+
+    int getScore() {
+        return score;
+    }
+
+    LinkQuality getQuality() {
+        LinkQuality quality = new LinkQuality();
+        quality.smoothedRtt = smoothedRtt;
+        quality.rttVariation = rttVariation;
+        quality.jitter = jitter;
+        quality.minRtt = minRtt;
+        quality.lossRate = lossRate;
+        quality.pingsSent = pingsSent;
+        quality.pingsLost = pingsLost;
+        quality.throughput = throughput;
+        quality.score = score;
+        quality.rtt = rtts.snapshot();
+        return quality;
+    } // end getQuality method
+
+    /**
+     * Stops the periodic pings, the pending ones fail
+     */
+    void close() {
+        Map<Integer, Ping> left;
+        synchronized (this) {
+            if (periodic != null) periodic.cancel();
+            periodic = null;
+            left = new HashMap<>(pending);
+            pending.clear();
+        }
+        for (Ping ping : left.values()) {
+            ping.future.fail(new IOException("Connection closed"));
+        }
+    } // end close method
+
+    /* ** Private methods ** */
+
+    private void expire(int id) {
+        Ping ping;
+        synchronized (this) {
+            ping = pending.remove(id);
+            if (ping == null) return;
+            update(0, 1, System.nanoTime());
+        }
+        ping.future.fail(new TimeoutException("Ping not answered in " + timeoutMillis + " ms"));
+    }
+
+    /**
+     * Updates the estimates with an answer (rtt) or a loss, under the lock
+     */
+    private void update(long rtt, int lost, long now) {
+        lossRate += (lost - lossRate) / 8;
+        if (lost != 0) {
+            pingsLost++;
+        } else {
+            rtts.record(rtt);
+            if (smoothedRtt == 0) {
+                smoothedRtt = rtt;
+                rttVariation = rtt / 2;
+                minRtt = rtt;
+            } else {
+                rttVariation += (Math.abs(smoothedRtt - rtt) - rttVariation) / 4;
+                smoothedRtt += (rtt - smoothedRtt) / 8;
+                jitter += (Math.abs(rtt - lastRtt) - jitter) / 16;
+                minRtt = Math.min(minRtt, rtt);
+            }
+            lastRtt = rtt;
+
+            long bytes = connection.getBytesWritten();
+            if (lastAnswer != 0 && now > lastAnswer) {
+                throughput = (bytes - lastBytes) * 1000000000L / (now - lastAnswer);
+            }
+            lastBytes = bytes;
+            lastAnswer = now;
+        }
+        if (smoothedRtt != 0) {
+            // Halved by a round trip of REFERENCE_RTT, by jitter and by loss
+            double delay = smoothedRtt + 2 * jitter;
+            score = (int) Math.round(100 * (1 - lossRate) * REFERENCE_RTT / (REFERENCE_RTT + delay));
+        }
+    } // end update method
+
+    private static synchronized void schedule(TimerTask task, long delay, long period) {
+        if (timer == null) timer = new Timer("btconn-probe", true);
+        try {
+            if (period > 0) timer.scheduleAtFixedRate(task, delay, period);
+            else timer.schedule(task, delay);
+        } catch (IllegalStateException e) {
+            BtLog.w("LinkProbe", "Ping not scheduled: " + e.getMessage());
+        }
+    }
+
+    /* ** Inner classes ** */
+
+    private static final class Ping {
+        final BluetoothFuture<Long> future;
+        long sentAt; // System.nanoTime() when written, 0 before
+
+        Ping(BluetoothFuture<Long> future) {
+            this.future = future;
+        }
+    } // end Ping class
+} // end LinkProbe class
@@ -0,0 +1,95 @@
+/**
+ * File name: LinkQuality
+ * Round trip time, jitter and loss of a {@link ConnectedThread} link,
+ * measured by pings
+ *
+ * <p>
+ * The smoothed round trip time and its variation follow the TCP
+ * estimators (RFC 6298) and the jitter the RTP one (RFC 3550). Instances
+ * returned by {@link ConnectedThread#getLinkQuality()} are snapshots
+ * </p>
+ */
+package com.mimmarcelo.btconn;
+
+public final class LinkQuality {
+
+    /* ** Attributes ** */
+
+    long smoothedRtt;  // Nanoseconds
+    long rttVariation;
+    long jitter;
+    long minRtt;
+    double lossRate;   // Moving average of the pings lost, from 0 to 1
+    long pingsSent;
+    long pingsLost;
+    long throughput;   // Bytes per second written between the last pings
+    int score;
+    LatencyHistogram rtt;
+
+    /* ** Public methods ** */
+
+    /**
+     * @return Smoothed round trip time, in nanoseconds, 0 before the first answer
+     */
+    public long getSmoothedRttNanos() {
+        return smoothedRtt;
+    }
+
+    public long getRttVariationNanos() {
+        return rttVariation;
+    }
+
+    /**
+     * @return Mean difference, in nanoseconds, between consecutive round trips
+     */
+    public long getJitterNanos() {
+        return jitter;
+    }
+
+    public long getMinRttNanos() {
+        return minRtt;
+    }
+
+    /**
+     * @return Recent share of pings not answered in time, from 0 to 1
+     */
+    public double getLossRate() {
+        return lossRate;
+    }
+
+    public long getPingsSent() {
+        return pingsSent;
+    }
+
+    public long getPingsLost() {
+        return pingsLost;
+    }
+
+    /**
+     * @return Bytes per second written to the link between the last answered pings
+     */
+    public long getThroughput() {
+        return throughput;
+    }
+
+    /**
+     * @return From 0 (unusable) to 100 (fast and without loss), -1 before the first answer
+     * @see ConnectedThread#getLinkScore()
+     */
+    public int getScore() {
+        return score;
+    }
+
+    /**
+     * @return Distribution of the round trip times, in nanoseconds, for percentiles
+     */
+    public LatencyHistogram getRtt() {
+        return rtt;
+    }
+
+    @Override
+    public String toString() {
+        return "srtt=" + smoothedRtt / 1000 + "us jitter=" + jitter / 1000 + "us loss=" + lossRate
+                + " score=" + score;
+    }
+} // end LinkQuality class
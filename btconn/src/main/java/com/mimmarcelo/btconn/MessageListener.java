@@ -0,0 +1,17 @@
+/**
+ * File name: MessageListener
+ * Observer of the typed messages of a channel, see {@link Codec}
+ *
+ * @param <T> Type of the messages
+ */
+package com.mimmarcelo.btconn;
+
+public interface MessageListener<T> {
+
+    /**
+     * @param conn    Connection that received the message
+     * @param channel Channel number
+     * @param message Decoded message
+     */
+    void onMessage(ConnectedThread conn, int channel, T message);
+}
@@ -0,0 +1,21 @@
+/**
+ * File name: MessageReader
+ * Receives the messages of a {@link Channel} straight from its reassembly buffer,
+ * instead of a {@link BluetoothListener#MESSAGE_RECEIVED} with a copy
+ */
+package com.mimmarcelo.btconn;
+
+import java.io.IOException;
+
+interface MessageReader {
+
+    /**
+     * Called on the connection reader thread
+     *
+     * @param data   Reassembly buffer, valid only during the call
+     * @param offset Start of the message in data
+     * @param length Message size
+     * @throws IOException when the message is not valid, it is dropped
+     */
+    void read(ConnectedThread conn, int channel, byte[] data, int offset, int length) throws IOException;
+}
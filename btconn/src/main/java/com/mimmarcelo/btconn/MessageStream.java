@@ -0,0 +1,189 @@
+/**
+ * File name: MessageStream
+ * Publisher of the received messages of one or many connections
+ *
+ * <p>
+ * The reader threads offer the messages and the stream hands them to its
+ * single subscriber only while there is demand; the others wait in the
+ * stream. A message gives its bytes back to the peer
+ * ({@link ConnectedThread#messageConsumed(int)}) only after the subscriber
+ * receives it, so a slow subscriber exhausts the peer connection window and
+ * the peer stops sending: the waiting messages never pass
+ * {@link ConnectedThread#CONNECTION_WINDOW} bytes per connection
+ * </p>
+ * <p>
+ * onNext is called by a reader thread or by the thread asking for more,
+ * never by two at the same time
+ * </p>
+ */
+package com.mimmarcelo.btconn;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+final class MessageStream implements Flow.Publisher<ReceivedMessage> {
+
+    /* ** Private attributes ** */
+
+    private final ArrayDeque<ReceivedMessage> waiting; // Guarded by this
+    private final AtomicInteger drains;  // Calls to drain, only the first one delivers
+    private Flow.Subscriber<? super ReceivedMessage> subscriber;
+    private long demand;
+    private boolean completed; // No more messages will be offered
+    private boolean finished;  // onComplete or onError called
+
+    /* ** Constructors ** */
+
+    MessageStream() {
+        this.waiting = new ArrayDeque<>();
+        this.drains = new AtomicInteger();
+    }
+
+    /* ** Public methods ** */
+
+    /**
+     * Only one subscriber is accepted at a time, the others receive onError
+     */
+    @Override
+    public void subscribe(Flow.Subscriber<? super ReceivedMessage> subscriber) {
+        if (subscriber == null) throw new NullPointerException("subscriber");
+        boolean accepted;
+        synchronized (this) {
+            accepted = this.subscriber == null && !finished;
+            if (accepted) {
+                this.subscriber = subscriber;
+                demand = 0;
+            }
+        }
+
+        if (!accepted) {
+            subscriber.onSubscribe(new StreamSubscription(null));
+            if (isFinished()) subscriber.onComplete();
+            else subscriber.onError(new IllegalStateException("The stream has a subscriber already"));
+            return;
+        }
+        subscriber.onSubscribe(new StreamSubscription(subscriber));
+        drain();
+    } // end subscribe method
+
+    /* ** Protected methods ** */
+
+    /**
+     * @return false if there is no subscriber, the message must be delivered otherwise
+     */
+    boolean offer(ReceivedMessage message) {
+        synchronized (this) {
+            if (subscriber == null || completed) return false;
+            waiting.add(message);
+        }
+        drain();
+        return true;
+    }
+
+    /**
+     * Calls onComplete after the waiting messages are delivered
+     */
+    void complete() {
+        synchronized (this) {
+            completed = true;
+        }
+        drain();
+    }
+
+    /* ** Private methods ** */
+
+    private synchronized boolean isFinished() {
+        return finished;
+    }
+
+    private void request(Flow.Subscriber<?> from, long n) {
+        if (n <= 0) {
+            cancel(from);
+            from.onError(new IllegalArgumentException("Demand must be positive: " + n));
+            return;
+        }
+        synchronized (this) {
+            if (subscriber != from) return;
+            demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+        }
+        drain();
+    }
+
+    /**
+     * The waiting messages are dropped, their bytes are given back to the peer
+     */
+    private void cancel(Flow.Subscriber<?> from) {
+        ArrayDeque<ReceivedMessage> dropped;
+        synchronized (this) {
+            if (subscriber != from) return;
+            subscriber = null;
+            dropped = new ArrayDeque<>(waiting);
+            waiting.clear();
+        }
+        for (ReceivedMessage message : dropped) {
+            message.getConnection().messageConsumed(message.wireLength);
+        }
+    }
+
+    /**
+     * Delivers the waiting messages while there is demand
+     */
+    private void drain() {
+        if (drains.getAndIncrement() != 0) return; // The running drain delivers them
+
+        int missed = 1;
+        do {
+            while (true) {
+                Flow.Subscriber<? super ReceivedMessage> s;
+                ReceivedMessage message = null;
+                synchronized (this) {
+                    s = subscriber;
+                    if (s == null) break;
+                    if (waiting.isEmpty()) {
+                        if (!completed) break;
+                        subscriber = null;
+                        finished = true;
+                    } else if (demand > 0) {
+                        message = waiting.poll();
+                        if (demand != Long.MAX_VALUE) demand--;
+                    } else {
+                        break;
+                    }
+                }
+
+                if (message == null) {
+                    s.onComplete();
+                    break;
+                }
+                try {
+                    s.onNext(message);
+                } catch (RuntimeException e) {
+                    BtLog.w("MessageStream", "Subscriber failed, it is cancelled", e);
+                    cancel(s);
+                }
+                message.getConnection().messageConsumed(message.wireLength);
+            } // end while deliverable
+            missed = drains.addAndGet(-missed);
+        } while (missed != 0);
+    } // end drain method
+
+    /* ** Inner classes ** */
+
+    private final class StreamSubscription implements Flow.Subscription {
+        private final Flow.Subscriber<?> subscriber; // Null when the subscriber was refused
+
+        StreamSubscription(Flow.Subscriber<?> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (subscriber != null) MessageStream.this.request(subscriber, n);
+        }
+
+        @Override
+        public void cancel() {
+            if (subscriber != null) MessageStream.this.cancel(subscriber);
+        }
+    } // end StreamSubscription class
+} // end MessageStream class
@@ -0,0 +1,640 @@
+/**
+ * File name: OutboundQueue
+ * Holds the messages waiting to be sent through a {@link ConnectedThread}
+ *
+ * <p>
+ * Messages are kept in priority lanes ({@link ConnectedThread#PRIORITY_HIGH},
+ * {@link ConnectedThread#PRIORITY_NORMAL} and {@link ConnectedThread#PRIORITY_BULK}).
+ * The next frame always comes from the highest lane with something to send,
+ * so a high priority message waits at most one frame of a lower lane.
+ * </p>
+ * <p>
+ * Inside a lane, channels with pending messages are served in round robin,
+ * one frame at a time, so a big message on one channel is interleaved with
+ * the others instead of delaying them. A channel without credits is skipped
+ * until the peer gives credits back
+ * </p>
+ * <p>
+ * Besides the channel credits, the whole connection has a window given back
+ * by the peer only when its application processes the messages. Without
+ * connection credits nothing is sent and the stall is measured
+ * </p>
+ * <p>
+ * The credits are shared by the lanes, but the last part of both windows
+ * ({@link Channel#HIGH_RESERVE} and {@link #CONNECTION_HIGH_RESERVE}) is
+ * kept for the high lane, so it still sends while bulk messages wait for credits
+ * </p>
+ * <p>
+ * A message may have a time to live, given on send or by its lane. When it
+ * ends before the first frame is written, the message is dropped. Once the
+ * first frame is written the message is always completed, so the peer never
+ * receives half of it
+ * </p>
+ * <p>
+ * Messages with a conflation key replace the pending value of the same key
+ * in the channel, keeping its place in the queue, so a slow link sends
+ * only the newest value of each key
+ * </p>
+ * <p>
+ * On channels with batching, the small messages waiting behind the next one
+ * are packed with it in a single {@link Batch} envelope when it is taken
+ * </p>
+ * <p>
+ * Control frames (credits given back, and the like) are written by the
+ * sender thread too, before any data and without using credits, so the
+ * threads that produce them never block on the socket
+ * </p>
+ */
+package com.mimmarcelo.btconn;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+final class OutboundQueue {
+
+    /* ** Constants ** */
+
+    /**
+     * Default bulk frame size, small enough to keep the wait of a
+     * high priority message short on slow links
+     */
+    static final int DEFAULT_BULK_CHUNK = 512;
+
+    /**
+     * Bit of {@link #takeReplay()} telling the frames sent again use credits
+     */
+    static final long REPLAY_CHARGE = 1L << 32;
+
+    /**
+     * Part of the connection window only the high lane may use, see {@link Channel#HIGH_RESERVE}
+     */
+    static final int CONNECTION_HIGH_RESERVE = ConnectedThread.CONNECTION_WINDOW / 8;
+
+    /* ** Private attributes ** */
+
+    private final int[] maxChunk;           // Frame payload limit of each lane
+    private int maxPayload;
+    private final List<Channel>[] active;   // Channels with pending messages, per lane
+    private final int[] cursor;             // Next channel in the round robin, per lane
+    private final long[] ttlNanos;          // Default time to live of each lane, 0 forever
+    private final int[] expiring;           // Messages with time to live waiting, per lane
+    private final LaneMetrics[] metrics;
+    private final FlowMetrics flow;         // Keeps the connection credits
+    private int connectionCreditTotal;      // Last total given by the peer
+    private long replayRequest;             // See takeReplay, -1 when none
+    private final ArrayDeque<Outgoing> control; // Frames written before the data, without credits
+    private Outgoing connectionGrant;       // Connection credit waiting in control, updated in place
+    private int grantTotal;                 // Last connection credit total queued
+    private final Map<Integer, Outgoing> channelGrants; // Channel credits waiting in control, by channel
+    private Outgoing acknowledgement;       // Ack waiting in control, updated in place
+    private volatile int queued;            // Messages waiting in all the lanes, read without the lock
+    private volatile long messagesSent;     // Read without the lock
+    private final LatencyHistogram sendLatency; // From offer to the last frame written
+    private boolean closed;
+
+    /* ** Constructors ** */
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    OutboundQueue(int maxPayload) {
+        this.maxPayload = maxPayload;
+        this.maxChunk = new int[Frame.LANES];
+        this.active = new List[Frame.LANES];
+        this.cursor = new int[Frame.LANES];
+        this.ttlNanos = new long[Frame.LANES];
+        this.expiring = new int[Frame.LANES];
+        this.metrics = new LaneMetrics[Frame.LANES];
+        for (int lane = 0; lane < Frame.LANES; lane++) {
+            this.maxChunk[lane] = maxPayload;
+            this.active[lane] = new ArrayList<>();
+            this.metrics[lane] = new LaneMetrics();
+        }
+        this.maxChunk[ConnectedThread.PRIORITY_BULK] = Math.min(maxPayload, DEFAULT_BULK_CHUNK);
+        this.flow = new FlowMetrics();
+        this.sendLatency = new LatencyHistogram();
+        this.flow.credits = ConnectedThread.CONNECTION_WINDOW;
+        this.replayRequest = -1;
+        this.control = new ArrayDeque<>();
+        this.channelGrants = new HashMap<>();
+        this.closed = false;
+    }
+
+    /* ** Methods ** */
+
+    synchronized void offer(Outgoing outgoing) {
+        if (closed) return;
+        Channel channel = outgoing.channel;
+        int lane = outgoing.lane;
+        if (outgoing.key != null && conflate(outgoing)) return;
+
+        if (outgoing.expiresAt == 0 && ttlNanos[lane] > 0) {
+            outgoing.expiresAt = outgoing.enqueuedAt + ttlNanos[lane];
+        }
+        if (outgoing.expiresAt != 0) expiring[lane]++;
+        if (channel.pending[lane].isEmpty()) {
+            active[lane].add(channel);
+        }
+        channel.pending[lane].add(outgoing);
+        if (outgoing.listener != null) outgoing.listener.onQueued(this);
+        metrics[lane].enqueued++;
+        metrics[lane].depth++;
+        queued++;
+        notifyAll();
+    } // end offer method
+
+    /**
+     * @param total Credits given by the peer since the connection started
+     */
+    synchronized void credit(Channel channel, int total) {
+        int credits = total - channel.creditTotal;
+        if (credits > 0) { // Older totals may arrive late, they are ignored
+            channel.credits += credits;
+            channel.creditTotal = total;
+            notifyAll();
+        }
+    }
+
+    /**
+     * The peer application processed more bytes, the connection may send them again
+     *
+     * @param total Credits given by the peer since the connection started
+     */
+    synchronized void connectionCredit(int total) {
+        int credits = total - connectionCreditTotal;
+        if (credits <= 0) return;
+        connectionCreditTotal = total;
+        flow.credits += credits;
+        if (flow.stalledSince != 0 && flow.credits > 0) {
+            long stall = System.nanoTime() - flow.stalledSince;
+            flow.stallNanos += stall;
+            if (stall > flow.maxStallNanos) flow.maxStallNanos = stall;
+            flow.stalledSince = 0;
+        }
+        notifyAll();
+    } // end connectionCredit method
+
+    /**
+     * Queues a control frame, it is written before the data waiting
+     */
+    synchronized void offerControl(Outgoing outgoing) {
+        offerControl(outgoing, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Queues a control frame unless limit frames are already waiting,
+     * so a slow link drops them instead of growing the queue
+     *
+     * @return false if the frame was not queued
+     */
+    synchronized boolean offerControl(Outgoing outgoing, int limit) {
+        if (closed || control.size() >= limit) return false;
+        control.add(outgoing);
+        notifyAll();
+        return true;
+    } // end offerControl method
+
+    /**
+     * Queues the connection credits to be given back to the peer; while the
+     * frame waits, newer totals replace its value instead of adding frames
+     *
+     * @param total Credits given to the peer since the connection started
+     */
+    synchronized void grantConnection(int total) {
+        if (closed || total - grantTotal <= 0) return; // Concurrent callers may queue out of order
+        grantTotal = total;
+        if (connectionGrant == null) {
+            connectionGrant = new Outgoing(Frame.TYPE_CONNECTION_CREDIT, new byte[4]);
+            control.add(connectionGrant);
+            notifyAll();
+        }
+        Frame.writeInt(connectionGrant.data, 0, total);
+    } // end grantConnection method
+
+    /**
+     * Queues the credits of a channel to be given back to the peer; while the
+     * frame waits, newer totals replace its value instead of adding frames
+     *
+     * @param channel Number of the channel
+     * @param total   Credits given to the peer on that channel since it was opened
+     */
+    synchronized void grantCredit(int channel, int total) {
+        if (closed) return;
+        Outgoing grant = channelGrants.get(channel);
+        if (grant == null) {
+            grant = new Outgoing(Frame.TYPE_CREDIT, channel, new byte[4]);
+            channelGrants.put(channel, grant);
+            control.add(grant);
+            notifyAll();
+        }
+        Frame.writeInt(grant.data, 0, total);
+    } // end grantCredit method
+
+    /**
+     * Queues an acknowledgement of the frames received before seq; while the
+     * frame waits, newer acknowledgements replace its value instead of adding frames
+     */
+    synchronized void acknowledge(int seq) {
+        if (closed) return;
+        if (acknowledgement == null) {
+            acknowledgement = new Outgoing(Frame.TYPE_ACK, new byte[4]);
+            control.add(acknowledgement);
+            notifyAll();
+        }
+        Frame.writeInt(acknowledgement.data, 0, seq);
+    } // end acknowledge method
+
+    /**
+     * Asks the sender to write again the frames from seq on, before anything else
+     *
+     * @param charge true if the frames must use the credits again (new connection)
+     */
+    synchronized void requestReplay(int seq, boolean charge) {
+        if (replayRequest >= 0) {
+            int pending = (int) replayRequest;
+            if (seq - pending > 0) seq = pending; // Keeps the oldest
+            charge |= (replayRequest & REPLAY_CHARGE) != 0;
+        }
+        replayRequest = (seq & 0xFFFFFFFFL) | (charge ? REPLAY_CHARGE : 0);
+        notifyAll();
+    }
+
+    /**
+     * @return The replay request, the sequence in the low 32 bits and {@link #REPLAY_CHARGE},
+     * or -1 when there is none. The request is cleared
+     */
+    synchronized long takeReplay() {
+        long request = replayRequest;
+        replayRequest = -1;
+        return request;
+    }
+
+    /**
+     * Uses the credits of a frame sent again in a new connection
+     */
+    synchronized void charge(Channel channel, int bytes) {
+        channel.credits -= bytes;
+        flow.credits -= bytes;
+    }
+
+    /**
+     * Sends the next messages of the channel as deltas, see {@link DeltaEncoder}
+     *
+     * @param encoder null to send whole messages again
+     */
+    synchronized void setDeltaEncoder(Channel channel, DeltaEncoder encoder) {
+        channel.deltaEncoder = encoder;
+    }
+
+    /**
+     * Packs the small messages waiting in the channel, see {@link Batch}
+     *
+     * @param limit Maximum envelope size, 0 to send each message alone
+     */
+    synchronized void setBatchLimit(Channel channel, int limit) {
+        if (limit < 0) throw new IllegalArgumentException("Invalid batch limit: " + limit);
+        channel.batchLimit = limit;
+    }
+
+    synchronized FlowMetrics getFlowMetrics() {
+        return flow.copy();
+    }
+
+    /**
+     * Limits the frame payload of a lane
+     *
+     * @param lane  Priority lane
+     * @param bytes Maximum payload, it is never greater than the connection maximum
+     */
+    synchronized void setMaxChunk(int lane, int bytes) {
+        if (bytes <= 0) throw new IllegalArgumentException("Invalid chunk size: " + bytes);
+        maxChunk[lane] = Math.min(bytes, maxPayload);
+    }
+
+    /**
+     * Limits every lane to the payload agreed in the {@link Handshake}
+     */
+    synchronized void setMaxPayload(int bytes) {
+        maxPayload = bytes;
+        for (int lane = 0; lane < Frame.LANES; lane++) {
+            maxChunk[lane] = Math.min(maxChunk[lane], bytes);
+        }
+    }
+
+    /**
+     * Defines the time to live of the messages offered afterwards to the lane
+     * without their own one
+     *
+     * @param millis Time to live, 0 to keep the messages until sent
+     */
+    synchronized void setTtl(int lane, long millis) {
+        if (millis < 0) throw new IllegalArgumentException("Invalid time to live: " + millis);
+        ttlNanos[lane] = millis * 1000000L;
+    }
+
+    /**
+     * @return Messages waiting in all the lanes, read without the lock
+     */
+    int getQueued() {
+        return queued;
+    }
+
+    long getMessagesSent() {
+        return messagesSent;
+    }
+
+    /**
+     * @return Time stalled without connection credits, read without the lock
+     */
+    long getStallNanos() {
+        long since = flow.stalledSince;
+        return flow.stallNanos + (since != 0 ? System.nanoTime() - since : 0);
+    }
+
+    LatencyHistogram getSendLatency() {
+        return sendLatency.snapshot();
+    }
+
+    synchronized LaneMetrics getMetrics(int lane) {
+        return metrics[lane].copy();
+    }
+
+    /**
+     * Blocks until some channel is able to send and reserves its next chunk
+     *
+     * @param idleMillis Time without sending after which {@link Outgoing#IDLE}
+     *                   is returned, 0 to wait forever
+     * @return The message to be written, a control frame ({@link Outgoing#isControl()}),
+     * {@link Outgoing#IDLE}, or null when the queue is closed
+     */
+    synchronized Outgoing take(long idleMillis) throws InterruptedException {
+        long deadline = idleMillis > 0 ? System.currentTimeMillis() + idleMillis : 0;
+        while (!closed) {
+            if (!control.isEmpty()) {
+                Outgoing outgoing = control.poll();
+                if (outgoing == connectionGrant) connectionGrant = null; // Written as it is now
+                if (outgoing.type == Frame.TYPE_CREDIT) channelGrants.remove(outgoing.controlChannel);
+                if (outgoing == acknowledgement) acknowledgement = null;
+                return outgoing;
+            }
+            if (replayRequest >= 0) return Outgoing.REPLAY;
+
+            if (flow.credits > 0) {
+                for (int lane = 0; lane < Frame.LANES; lane++) {
+                    Outgoing outgoing = take(lane);
+                    if (outgoing != null) return outgoing;
+                }
+            } else if (flow.stalledSince == 0 && hasPending()) {
+                flow.stalledSince = System.nanoTime();
+                flow.stallCount++;
+            }
+
+            if (deadline == 0) {
+                wait();
+            } else {
+                long timeout = deadline - System.currentTimeMillis();
+                if (timeout <= 0) return Outgoing.IDLE;
+                wait(timeout);
+            }
+        }
+        return null;
+    } // end take method
+
+    /**
+     * Confirms that the chunk reserved by {@link #take(long)} was written
+     *
+     * @param wireBytes Payload bytes written, less than the chunk when it was compressed
+     */
+    synchronized void sent(Outgoing outgoing, int wireBytes) {
+        Channel channel = outgoing.channel;
+        int lane = outgoing.lane;
+        LaneMetrics m = metrics[lane];
+        if (channel.pending[lane].peek() != outgoing) return; // Moved to a new connection
+
+        if (outgoing.offset == 0) {
+            long wait = System.nanoTime() - outgoing.enqueuedAt;
+            m.totalWaitNanos += wait;
+            if (wait > m.maxWaitNanos) m.maxWaitNanos = wait;
+        }
+
+        channel.credits -= wireBytes;
+        flow.credits -= wireBytes;
+        outgoing.offset += outgoing.chunk;
+        m.bytesSent += wireBytes;
+        outgoing.chunk = 0;
+
+        if (outgoing.remaining() == 0) {
+            m.sent++;
+            messagesSent++;
+            sendLatency.record(System.nanoTime() - outgoing.enqueuedAt);
+            remove(channel, lane);
+        }
+    } // end sent method
+
+    /**
+     * Confirms a chunk reserved by {@link #take(long)} and gives it a sequence
+     * in the replay buffer, before it is written
+     *
+     * <p>
+     * Once kept for replay the frame is as good as sent, a new connection
+     * writes it again, so the message it belongs to continues after it.
+     * It is atomic with {@link #drain(Collection)}, a frame is never kept for
+     * replay and moved to the next connection too
+     * </p>
+     *
+     * @return The sequence of the frame, -1 if the queue is closed and it must not be written
+     */
+    synchronized int sequence(Outgoing outgoing, ReplayBuffer replay, int flags, byte[] data, int offset, int length) {
+        if (closed) return -1;
+        int seq = replay.append(flags, outgoing.channel.getNumber(), data, offset, length);
+        sent(outgoing, length);
+        return seq;
+    }
+
+    /**
+     * Closes the queue and takes the messages not sent yet, to be moved to a
+     * new connection to the same peer
+     *
+     * @param channels Channels that sent through this queue
+     * @return The messages of each channel lane in order, the started one first
+     */
+    synchronized List<Outgoing> drain(Collection<Channel> channels) {
+        close();
+        List<Outgoing> unsent = new ArrayList<>();
+        for (Channel channel : channels) {
+            for (int lane = 0; lane < Frame.LANES; lane++) {
+                unsent.addAll(channel.pending[lane]);
+                channel.pending[lane].clear();
+            }
+            channel.latest.clear();
+        }
+        queued = 0;
+        return unsent;
+    } // end drain method
+
+    synchronized boolean isClosed() {
+        return closed;
+    }
+
+    synchronized void close() {
+        closed = true;
+        control.clear();
+        channelGrants.clear();
+        acknowledgement = null;
+        for (int lane = 0; lane < Frame.LANES; lane++) {
+            active[lane].clear();
+        }
+        notifyAll();
+    }
+
+    /* ** Private methods ** */
+
+    private boolean hasPending() {
+        for (int lane = 0; lane < Frame.LANES; lane++) {
+            if (!active[lane].isEmpty()) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Replaces the data of the pending message with the same key, if not started yet
+     *
+     * @return false if the message must be queued
+     */
+    private boolean conflate(Outgoing outgoing) {
+        Channel channel = outgoing.channel;
+        Outgoing pending = channel.latest.put(outgoing.key, outgoing);
+        if (pending == null || pending.isStarted() || pending.lane != outgoing.lane) return false;
+
+        int lane = outgoing.lane;
+        if (outgoing.expiresAt == 0 && ttlNanos[lane] > 0) {
+            outgoing.expiresAt = outgoing.enqueuedAt + ttlNanos[lane];
+        }
+        if (pending.expiresAt == 0 && outgoing.expiresAt != 0) expiring[lane]++;
+        if (pending.expiresAt != 0 && outgoing.expiresAt == 0) expiring[lane]--;
+        pending.data = outgoing.data;
+        pending.expiresAt = outgoing.expiresAt;
+        channel.latest.put(outgoing.key, pending);
+        metrics[lane].enqueued++;
+        metrics[lane].conflated++;
+        return true;
+    } // end conflate method
+
+    /**
+     * Packs the first message of the channel lane with the next ones that fit
+     * in the batch limit, they leave the queue as sent
+     */
+    private void batch(Channel channel, int lane) {
+        Iterator<Outgoing> iterator = channel.pending[lane].iterator();
+        Outgoing first = iterator.next();
+        int size = first.data.length + 5;
+        if (size > channel.batchLimit || !iterator.hasNext()) return;
+
+        List<byte[]> messages = new ArrayList<>();
+        messages.add(first.data);
+        long now = System.nanoTime();
+        while (iterator.hasNext()) {
+            Outgoing next = iterator.next();
+            if (next.isExpired(now) || next.delta || next.batch || next.listener != null
+                    || size + next.data.length + 5 > channel.batchLimit) {
+                break; // A followed message is sent on its own, so its listener is told
+            }
+            size += next.data.length + 5;
+            messages.add(next.data);
+            iterator.remove();
+            forget(channel, next);
+            metrics[lane].depth--;
+            metrics[lane].sent++;
+            queued--;
+            messagesSent++;
+        }
+        if (messages.size() == 1) return;
+
+        first.data = Batch.pack(messages);
+        first.batch = true;
+        if (first.key != null && channel.latest.get(first.key) == first) channel.latest.remove(first.key);
+        metrics[lane].batches++;
+    } // end batch method
+
+    /**
+     * Drops the references the queue keeps to a message leaving it
+     */
+    private void forget(Channel channel, Outgoing outgoing) {
+        if (outgoing.expiresAt != 0) expiring[outgoing.lane]--;
+        if (outgoing.key != null && channel.latest.get(outgoing.key) == outgoing) {
+            channel.latest.remove(outgoing.key);
+        }
+    }
+
+    /**
+     * Removes the first message of the channel lane
+     */
+    private void remove(Channel channel, int lane) {
+        Outgoing outgoing = channel.pending[lane].poll();
+        metrics[lane].depth--;
+        queued--;
+        forget(channel, outgoing);
+        if (channel.pending[lane].isEmpty()) {
+            int index = active[lane].indexOf(channel);
+            active[lane].remove(index);
+            if (index < cursor[lane]) cursor[lane]--;
+        }
+    } // end remove method
+
+    /**
+     * Drops the messages of the lane whose time to live ended, only the
+     * first message of each channel can be started, so only those are checked
+     */
+    private void expire(int lane) {
+        long now = System.nanoTime();
+        List<Channel> channels = active[lane];
+        for (int index = channels.size() - 1; index >= 0 && index < channels.size(); index--) {
+            Channel channel = channels.get(index);
+            Outgoing outgoing = channel.pending[lane].peek();
+            while (outgoing != null && outgoing.isExpired(now)) {
+                metrics[lane].expired++;
+                remove(channel, lane);
+                outgoing = channel.pending[lane].peek();
+            }
+        }
+    } // end expire method
+
+    /**
+     * Round robin among the channels of a lane
+     *
+     * @return The next message of the lane able to send, or null
+     */
+    private Outgoing take(int lane) {
+        if (expiring[lane] > 0) expire(lane);
+
+        boolean high = lane == ConnectedThread.PRIORITY_HIGH;
+        int reserve = high ? 0 : CONNECTION_HIGH_RESERVE;
+        if (flow.credits - reserve <= 0) return null;
+
+        List<Channel> channels = active[lane];
+        int size = channels.size();
+        for (int i = 0; i < size; i++) {
+            int index = (cursor[lane] + i) % size;
+            Channel channel = channels.get(index);
+            int channelCredits = channel.credits - (high ? 0 : Channel.HIGH_RESERVE);
+            if (channelCredits > 0) {
+                Outgoing outgoing = channel.pending[lane].peek();
+                if (channel.batchLimit > 0 && !outgoing.isStarted() && !outgoing.batch) {
+                    batch(channel, lane);
+                }
+                if (channel.deltaEncoder != null && !outgoing.isStarted() && !outgoing.delta) {
+                    outgoing.data = channel.deltaEncoder.encode(lane, outgoing.data);
+                    outgoing.delta = true;
+                }
+                int credits = Math.min(channelCredits, flow.credits - reserve);
+                outgoing.chunk = Math.min(outgoing.remaining(), Math.min(maxChunk[lane], credits));
+                cursor[lane] = index + 1;
+                return outgoing;
+            }
+        }
+        return null;
+    } // end take method
+} // end OutboundQueue class
@@ -0,0 +1,315 @@
+/**
+ * File name: Outbox
+ * Journal of the messages sent to a device while it is not connected
+ *
+ * <p>
+ * The messages are appended to a memory mapped file, one per device address,
+ * so they survive the application and are never loaded in the heap all at
+ * once. When the device connects again, {@link #drain(ConnectedThread)} sends
+ * them in the order they were written; each record is removed only when its
+ * last frame is written, so the messages of a connection that drops first
+ * are sent by the next one. The file starts with:
+ * </p>
+ * <pre>
+ * int   magic ("BTBO")
+ * int   reserved
+ * long  position of the oldest message not sent (head)
+ * </pre>
+ * <p>
+ * followed by the records:
+ * </p>
+ * <pre>
+ * int   record size, header included (0 ends the journal)
+ * long  time written, in milliseconds
+ * short channel
+ * byte  priority
+ * bytes message
+ * </pre>
+ * <p>
+ * The size of a record is written last, so a record interrupted by a crash
+ * is never read. The file has a fixed size: when it is full, the expired
+ * records are dropped, the live ones are moved to the beginning (compaction)
+ * and, if still needed, the oldest ones are dropped. Compaction copies only
+ * to free space before the head and saves the new head last, so a crash in
+ * the middle leaves the old journal intact
+ * </p>
+ */
+package com.mimmarcelo.btconn;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+final class Outbox {
+
+    /* ** Constants ** */
+
+    static final int DEFAULT_CAPACITY = 1024 * 1024;
+    static final long DEFAULT_MAX_AGE = 24 * 60 * 60 * 1000L;
+
+    private static final int MAGIC = 0x4254424F;
+    private static final int FILE_HEADER = 16;
+    private static final int HEAD_POSITION = 8;
+    private static final int RECORD_HEADER = 15;
+    private static final int END_SIZE = 4;
+
+    /* ** Private attributes ** */
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer map;
+    private final int capacity;
+    private final long maxAge;   // Milliseconds a message is worth sending
+    private int head;            // Oldest record not sent
+    private int tail;            // Position of the next record
+    private int count;           // Records between head and tail
+    private long dropped;        // Records lost because the journal was full
+    private long expired;        // Records older than maxAge, not sent
+    private Map<Integer, Delivery> deliveries; // Records given to a connection, by position
+
+    /* ** Constructors ** */
+
+    /**
+     * Opens (or creates) the journal, only the record headers are read
+     *
+     * @param capacity Size of the file, an existing bigger file keeps its size
+     * @param maxAge   Milliseconds after which a message is dropped without being sent
+     */
+    Outbox(File path, int capacity, long maxAge) throws IOException {
+        this.file = new RandomAccessFile(path, "rw");
+        this.capacity = (int) Math.max(capacity, file.length());
+        this.maxAge = maxAge;
+        this.deliveries = new HashMap<>();
+        this.map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, this.capacity);
+
+        head = FILE_HEADER;
+        if (map.getInt(0) == MAGIC) {
+            long saved = map.getLong(HEAD_POSITION);
+            if (saved >= FILE_HEADER && saved <= this.capacity) head = (int) saved;
+        } else {
+            map.putInt(0, MAGIC);
+            map.putLong(HEAD_POSITION, head);
+            map.putInt(head, 0);
+        }
+
+        tail = head;
+        while (tail + END_SIZE <= this.capacity) {
+            int size = map.getInt(tail);
+            if (size < RECORD_HEADER || tail + size > this.capacity) break;
+            tail += size;
+            count++;
+        }
+    } // end constructor Outbox
+
+    /* ** Methods ** */
+
+    /**
+     * @return Messages waiting the device
+     */
+    synchronized int size() { // Includes the ones queued but not written yet
+        return count;
+    }
+
+    synchronized long getDropped() {
+        return dropped;
+    }
+
+    synchronized long getExpired() {
+        return expired;
+    }
+
+    /**
+     * Writes a message at the end of the journal
+     *
+     * <p>
+     * The file is not forced to the disk, it survives the application
+     * but may be lost if the whole system stops
+     * </p>
+     *
+     * @return false if the message is bigger than the journal
+     */
+    synchronized boolean append(int channel, int priority, byte[] data) {
+        int size = RECORD_HEADER + data.length;
+        if (FILE_HEADER + size > capacity) return false;
+
+        long now = System.currentTimeMillis();
+        if (tail + size > capacity) expire(now);
+        while (tail + size > capacity) {
+            if (!compact()) {
+                skipHead();
+                dropped++;
+            }
+        }
+
+        map.putLong(tail + 4, now);
+        map.putShort(tail + 12, (short) channel);
+        map.put(tail + 14, (byte) priority);
+        ByteBuffer record = map.duplicate();
+        record.position(tail + RECORD_HEADER);
+        record.put(data);
+        if (tail + size + END_SIZE <= capacity) map.putInt(tail + size, 0);
+        map.putInt(tail, size);
+
+        tail += size;
+        count++;
+        return true;
+    } // end append method
+
+    /**
+     * Queues every message not expired on the connection, they are removed
+     * from the journal as they are written
+     *
+     * <p>
+     * Messages still queued on an open connection (moved to this one when
+     * the stream resumed) are not queued again
+     * </p>
+     *
+     * @return Messages queued
+     */
+    synchronized int drain(ConnectedThread conn) {
+        long now = System.currentTimeMillis();
+        int sent = 0;
+        for (int position = head; position < tail; position += map.getInt(position)) {
+            Delivery delivery = deliveries.get(position);
+            if (delivery != null && (delivery.sent || delivery.isQueued())) continue;
+
+            delivery = new Delivery(position);
+            deliveries.put(position, delivery);
+            if (now - map.getLong(position + 4) > maxAge) {
+                delivery.sent = true; // Removed with the records before it
+                expired++;
+                continue;
+            }
+            byte[] data = new byte[map.getInt(position) - RECORD_HEADER];
+            ByteBuffer record = map.duplicate();
+            record.position(position + RECORD_HEADER);
+            record.get(data);
+            conn.send(map.getShort(position + 12) & 0xFFFF, data, map.get(position + 14), delivery);
+            sent++;
+        }
+        removeSent();
+        return sent;
+    } // end drain method
+
+    synchronized void close() {
+        map.force();
+        try {
+            file.close();
+        } catch (IOException e) {
+            // Nothing to do, the mapping keeps the data
+        }
+    }
+
+    /* ** Private methods ** */
+
+    /**
+     * Drops the records older than maxAge from the head
+     */
+    private void expire(long now) {
+        while (head < tail && now - map.getLong(head + 4) > maxAge) {
+            skipHead();
+            expired++;
+        }
+    }
+
+    private void skipHead() {
+        deliveries.remove(head); // Its late confirmation is ignored
+        head += map.getInt(head);
+        count--;
+        map.putLong(HEAD_POSITION, head);
+    }
+
+    /**
+     * A record was written by the connection
+     */
+    private synchronized void sent(Delivery delivery) {
+        if (deliveries.get(delivery.position) != delivery) return; // Dropped meanwhile
+        delivery.sent = true;
+        removeSent();
+    }
+
+    /**
+     * Removes the records sent from the head, in order; an empty journal
+     * starts again at the beginning of the file
+     */
+    private void removeSent() {
+        while (head < tail) {
+            Delivery delivery = deliveries.get(head);
+            if (delivery == null || !delivery.sent) break;
+            skipHead();
+        }
+        if (head == tail && head != FILE_HEADER) {
+            head = FILE_HEADER;
+            tail = FILE_HEADER;
+            map.putInt(FILE_HEADER, 0);
+            map.putLong(HEAD_POSITION, head);
+        }
+    } // end removeSent method
+
+    /**
+     * Moves the live records to the beginning of the file, only when the copy
+     * and its end mark fit before the head; the records it points to are not
+     * touched until the new head is saved
+     *
+     * @return false if the ranges overlap, nothing was moved
+     */
+    private boolean compact() {
+        int live = tail - head;
+        if (head == FILE_HEADER || head - FILE_HEADER < live + END_SIZE) return false;
+
+        ByteBuffer source = map.duplicate();
+        ByteBuffer target = map.duplicate();
+        source.position(head).limit(tail);
+        target.position(FILE_HEADER);
+        target.put(source);
+        map.putInt(FILE_HEADER + live, 0);
+        map.putLong(HEAD_POSITION, FILE_HEADER);
+
+        Map<Integer, Delivery> moved = new HashMap<>();
+        for (Delivery delivery : deliveries.values()) {
+            delivery.position += FILE_HEADER - head;
+            moved.put(delivery.position, delivery);
+        }
+        deliveries = moved;
+        head = FILE_HEADER;
+        tail = FILE_HEADER + live;
+        return true;
+    } // end compact method
+
+    /* ** Inner classes ** */
+
+    /**
+     * A record given to a connection, guarded by the Outbox lock
+     */
+    private final class Delivery implements Outgoing.Listener {
+        int position;
+        boolean sent;
+        private volatile OutboundQueue queue; // Last queue holding the message
+
+        Delivery(int position) {
+            this.position = position;
+        }
+
+        /**
+         * @return true if the message still waits in a connection that did not close
+         */
+        boolean isQueued() {
+            OutboundQueue q = queue;
+            return q != null && !q.isClosed();
+        }
+
+        @Override
+        public void onQueued(OutboundQueue queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public void onSent() {
+            sent(this);
+        }
+    } // end Delivery class
+} // end Outbox class
@@ -0,0 +1,142 @@
+/**
+ * File name: Outgoing
+ * A message waiting in the {@link OutboundQueue} to be written as one or more frames
+ */
+package com.mimmarcelo.btconn;
+
+final class Outgoing {
+
+    /* ** Constants ** */
+
+    /**
+     * Returned by {@link OutboundQueue#take(long)} when nothing was sent for a while
+     */
+    static final Outgoing IDLE = new Outgoing(null, 0, new byte[0]);
+
+    /**
+     * Returned by {@link OutboundQueue#take(long)} when the peer asked frames again
+     */
+    static final Outgoing REPLAY = new Outgoing(null, 0, new byte[0]);
+
+    /* ** Attributes ** */
+
+    final Channel channel; // Null for control frames
+    final int lane;
+    final int type;        // Frame type, Frame.TYPE_DATA for the messages
+    final int controlChannel; // Channel in the header of a control frame, 0 for the connection
+    byte[] data;           // Replaced by newer values of the same key while not started
+    String key;            // Conflation key, null if every message is sent
+    boolean delta;         // Data was replaced by a DeltaEncoder envelope
+    boolean batch;         // Data is a Batch envelope
+    final long enqueuedAt; // System.nanoTime() when offered to the queue
+    long expiresAt;        // System.nanoTime() after which it is not sent, 0 never
+    int offset; // First byte not sent yet
+    int chunk;  // Bytes reserved to the next frame, defined by OutboundQueue#take(long)
+    Listener listener; // Told when queued and when the last frame is written, may be null
+
+    /* ** Constructors ** */
+
+    Outgoing(Channel channel, int lane, byte[] data) {
+        this.channel = channel;
+        this.lane = lane;
+        this.type = Frame.TYPE_DATA;
+        this.controlChannel = 0;
+        this.data = data;
+        this.enqueuedAt = System.nanoTime();
+        this.offset = 0;
+        this.chunk = 0;
+    }
+
+    /**
+     * A control frame, written whole on channel 0 before the data waiting
+     *
+     * @param type Frame type
+     * @param data Payload of the frame
+     */
+    Outgoing(int type, byte[] data) {
+        this(type, 0, data);
+    }
+
+    /**
+     * A control frame about one channel, written whole before the data waiting
+     *
+     * @param type    Frame type
+     * @param channel Channel number in the frame header
+     * @param data    Payload of the frame
+     */
+    Outgoing(int type, int channel, byte[] data) {
+        this.channel = null;
+        this.lane = ConnectedThread.PRIORITY_HIGH;
+        this.type = type;
+        this.controlChannel = channel;
+        this.data = data;
+        this.enqueuedAt = System.nanoTime();
+        this.offset = 0;
+        this.chunk = 0;
+    }
+
+    /* ** Methods ** */
+
+    /**
+     * Copy of this message, for the same channel of a new connection to the peer
+     *
+     * @param keepOffset true if the peer kept the fragments already sent,
+     *                   false to send the message whole again
+     */
+    Outgoing moveTo(Channel channel, boolean keepOffset) {
+        Outgoing moved = new Outgoing(channel, lane, data);
+        moved.key = key;
+        moved.delta = delta;
+        moved.batch = batch;
+        moved.expiresAt = expiresAt;
+        moved.offset = keepOffset ? offset : 0;
+        moved.listener = listener;
+        return moved;
+    }
+
+    boolean isControl() {
+        return type != Frame.TYPE_DATA;
+    }
+
+    int remaining() {
+        return data.length - offset;
+    }
+
+    /**
+     * @return true if a frame of the message was written or reserved by the sender
+     */
+    boolean isStarted() {
+        return offset > 0 || chunk > 0;
+    }
+
+    /**
+     * @return true if no frame was written and the message is too old to be sent
+     */
+    boolean isExpired(long now) {
+        return offset == 0 && expiresAt != 0 && now - expiresAt > 0;
+    }
+
+    boolean isLastChunk() {
+        return offset + chunk == data.length;
+    }
+
+    /* ** Inner classes ** */
+
+    /**
+     * Follows a message that must not be lost, like the ones of an {@link Outbox}
+     */
+    interface Listener {
+
+        /**
+         * The message entered a queue, again if it was moved to a new connection.
+         * Called under the queue lock, it must not block
+         */
+        void onQueued(OutboundQueue queue);
+
+        /**
+         * The last frame of the message was written (or kept for replay),
+         * called by the sender thread without any lock
+         */
+        void onSent();
+    } // end Listener interface
+} // end Outgoing class
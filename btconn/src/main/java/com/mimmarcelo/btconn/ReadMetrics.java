@@ -0,0 +1,66 @@
+/**
+ * File name: ReadMetrics
+ * Counters of the reads from the socket of a {@link ConnectedThread}
+ *
+ * <p>
+ * The receive buffer grows while the reads fill it and shrinks while they
+ * stay small. Instances returned by {@link ConnectedThread#getReadMetrics()}
+ * are snapshots
+ * </p>
+ */
+package com.mimmarcelo.btconn;
+
+public final class ReadMetrics {
+
+    /* ** Attributes ** */
+
+    int bufferSize;
+    int minBufferSize;
+    int maxBufferSize;
+    long reads;
+    long readBytes;
+    int averageRead;
+    int resizes;
+
+    /* ** Public methods ** */
+
+    /**
+     * @return Current size of the receive buffer, in bytes
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public int getMinBufferSize() {
+        return minBufferSize;
+    }
+
+    public int getMaxBufferSize() {
+        return maxBufferSize;
+    }
+
+    /**
+     * @return Calls to the socket read
+     */
+    public long getReads() {
+        return reads;
+    }
+
+    public long getReadBytes() {
+        return readBytes;
+    }
+
+    /**
+     * @return Bytes per read, moving average of the recent reads
+     */
+    public int getAverageRead() {
+        return averageRead;
+    }
+
+    /**
+     * @return Times the receive buffer grew or shrank
+     */
+    public int getResizes() {
+        return resizes;
+    }
+} // end ReadMetrics class
@@ -0,0 +1,58 @@
+/**
+ * File name: ReceivedMessage
+ * Message delivered by {@link ConnectedThread#messages()} and {@link BluetoothManager#messages()}
+ */
+package com.mimmarcelo.btconn;
+
+public final class ReceivedMessage {
+
+    /* ** Private attributes ** */
+
+    private final ConnectedThread connection;
+    private final int channel;
+    private final String topic;
+    private final byte[] data;
+    final int wireLength; // Bytes given back to the peer when the message is delivered
+
+    /* ** Constructors ** */
+
+    ReceivedMessage(ConnectedThread connection, int channel, String topic, byte[] data, int wireLength) {
+        this.connection = connection;
+        this.channel = channel;
+        this.topic = topic;
+        this.data = data;
+        this.wireLength = wireLength;
+    }
+
+    /* ** Public methods ** */
+
+    /**
+     * @return Connection that received the message
+     */
+    public ConnectedThread getConnection() {
+        return connection;
+    }
+
+    public int getChannel() {
+        return channel;
+    }
+
+    /**
+     * @return Topic of a published message, null for the other messages
+     */
+    public String getTopic() {
+        return topic;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * @return The message as text, in the charset of the connection
+     * @see ConnectedThread#setCharset(java.nio.charset.Charset)
+     */
+    public String getText() {
+        return new String(data, connection.getCharset());
+    }
+} // end ReceivedMessage class
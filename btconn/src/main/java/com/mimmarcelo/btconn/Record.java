@@ -0,0 +1,128 @@
+/**
+ * File name: Record
+ * Flyweight that reads and writes the fields of a {@link RecordSchema}
+ * straight in a byte array
+ *
+ * <p>
+ * The same instance is moved over many records with {@link #wrap(byte[], int)},
+ * so no object is created per record. The field types are not checked,
+ * the caller uses the getter of the type in the schema
+ * </p>
+ */
+package com.mimmarcelo.btconn;
+
+public final class Record {
+
+    /* ** Private attributes ** */
+
+    private final RecordSchema schema;
+    private byte[] buffer;
+    private int base; // Offset of the record in the buffer
+
+    /* ** Constructors ** */
+
+    public Record(RecordSchema schema) {
+        this.schema = schema;
+    }
+
+    /* ** Public methods ** */
+
+    /**
+     * Moves this flyweight to the record number "index" of the buffer
+     *
+     * @return this record
+     */
+    public Record wrap(byte[] buffer, int index) {
+        if (index < 0 || (index + 1) * schema.size() > buffer.length) {
+            throw new IndexOutOfBoundsException("Record " + index + " out of the buffer");
+        }
+        this.buffer = buffer;
+        this.base = index * schema.size();
+        return this;
+    }
+
+    public RecordSchema getSchema() {
+        return schema;
+    }
+
+    /**
+     * @return The buffer wrapped, to be sent with {@link ConnectedThread#send(int, byte[], int)}.
+     * The queue keeps the array, not a copy, so wrap a new buffer for the next records
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    public int getByte(int field) {
+        return buffer[position(field)];
+    }
+
+    public int getShort(int field) {
+        int position = position(field);
+        return (short) (((buffer[position] & 0xFF) << 8) | (buffer[position + 1] & 0xFF));
+    }
+
+    public int getInt(int field) {
+        return Frame.readInt(buffer, position(field));
+    }
+
+    public long getLong(int field) {
+        return TransferProtocol.readLong(buffer, position(field));
+    }
+
+    public float getFloat(int field) {
+        return Float.intBitsToFloat(Frame.readInt(buffer, position(field)));
+    }
+
+    public double getDouble(int field) {
+        return Double.longBitsToDouble(TransferProtocol.readLong(buffer, position(field)));
+    }
+
+    public Record setByte(int field, int value) {
+        buffer[position(field)] = (byte) value;
+        return this;
+    }
+
+    public Record setShort(int field, int value) {
+        int position = position(field);
+        buffer[position] = (byte) (value >>> 8);
+        buffer[position + 1] = (byte) value;
+        return this;
+    }
+
+    public Record setInt(int field, int value) {
+        Frame.writeInt(buffer, position(field), value);
+        return this;
+    }
+
+    public Record setLong(int field, long value) {
+        TransferProtocol.writeLong(buffer, position(field), value);
+        return this;
+    }
+
+    public Record setFloat(int field, float value) {
+        Frame.writeInt(buffer, position(field), Float.floatToRawIntBits(value));
+        return this;
+    }
+
+    public Record setDouble(int field, double value) {
+        TransferProtocol.writeLong(buffer, position(field), Double.doubleToRawLongBits(value));
+        return this;
+    }
+
+    /* ** Protected methods ** */
+
+    /**
+     * Moves this flyweight to a byte offset, used by the receive path
+     */
+    void wrapAt(byte[] buffer, int offset) {
+        this.buffer = buffer;
+        this.base = offset;
+    }
+
+    /* ** Private methods ** */
+
+    private int position(int field) {
+        return base + schema.offset(field);
+    }
+} // end Record class
@@ -0,0 +1,16 @@
+/**
+ * File name: RecordListener
+ * Observer of the records received on a channel, see {@link RecordSchema}
+ */
+package com.mimmarcelo.btconn;
+
+public interface RecordListener {
+
+    /**
+     * Called on the connection reader thread, once per record of each message
+     *
+     * @param record Flyweight over the received bytes, it is reused and valid
+     *               only during the call
+     */
+    void onRecord(ConnectedThread conn, int channel, Record record);
+}
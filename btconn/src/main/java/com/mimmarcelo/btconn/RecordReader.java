@@ -0,0 +1,38 @@
+/**
+ * File name: RecordReader
+ * Delivers the records of each message through a single reused {@link Record}
+ */
+package com.mimmarcelo.btconn;
+
+import java.io.IOException;
+
+final class RecordReader implements MessageReader {
+
+    /* ** Private attributes ** */
+
+    private final RecordSchema schema;
+    private final RecordListener listener;
+    private final Record record; // Used only by the reader thread
+
+    /* ** Constructors ** */
+
+    RecordReader(RecordSchema schema, RecordListener listener) {
+        this.schema = schema;
+        this.listener = listener;
+        this.record = new Record(schema);
+    }
+
+    /* ** Methods ** */
+
+    @Override
+    public void read(ConnectedThread conn, int channel, byte[] data, int offset, int length) throws IOException {
+        int size = schema.size();
+        if (length % size != 0) {
+            throw new IOException("Message of " + length + " bytes is not made of " + size + " bytes records");
+        }
+        for (int end = offset + length; offset < end; offset += size) {
+            record.wrapAt(data, offset);
+            listener.onRecord(conn, channel, record);
+        }
+    }
+} // end RecordReader class
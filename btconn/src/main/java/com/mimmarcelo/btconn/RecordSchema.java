@@ -0,0 +1,186 @@
+/**
+ * File name: RecordSchema
+ * Fixed binary layout of a record, e.g. a timestamp followed by sensor readings
+ *
+ * <p>
+ * Every field has a fixed offset, so a {@link Record} reads and writes the
+ * fields straight in the message bytes. Both peers must build the same schema,
+ * it is not sent. A message holds one or more records back to back
+ * </p>
+ *
+ * <pre>
+ * RecordSchema schema = new RecordSchema.Builder()
+ *         .addLong("timestamp")
+ *         .addFloats("axis", 12)
+ *         .build();
+ * </pre>
+ */
+package com.mimmarcelo.btconn;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public final class RecordSchema {
+
+    /* ** Constants ** */
+
+    // Field types
+    public static final int BYTE = 1;
+    public static final int SHORT = 2;
+    public static final int INT = 3;
+    public static final int LONG = 4;
+    public static final int FLOAT = 5;
+    public static final int DOUBLE = 6;
+
+    /* ** Private attributes ** */
+
+    private final String[] names;
+    private final int[] types;
+    private final int[] offsets;
+    private final int size;
+
+    /* ** Constructors ** */
+
+    private RecordSchema(List<String> names, List<Integer> types) {
+        int count = names.size();
+        this.names = names.toArray(new String[count]);
+        this.types = new int[count];
+        this.offsets = new int[count];
+        int offset = 0;
+        for (int field = 0; field < count; field++) {
+            this.types[field] = types.get(field);
+            this.offsets[field] = offset;
+            offset += sizeOf(this.types[field]);
+        }
+        this.size = offset;
+    }
+
+    /* ** Public methods ** */
+
+    /**
+     * @return Bytes of one record
+     */
+    public int size() {
+        return size;
+    }
+
+    public int getFieldCount() {
+        return names.length;
+    }
+
+    /**
+     * @return Index of the field, to be used by the {@link Record} getters and setters
+     * @throws IllegalArgumentException if there is no such field
+     */
+    public int indexOf(String name) {
+        for (int field = 0; field < names.length; field++) {
+            if (names[field].equals(name)) return field;
+        }
+        throw new IllegalArgumentException("Unknown field: " + name);
+    }
+
+    public String getName(int field) {
+        return names[field];
+    }
+
+    public int getType(int field) {
+        return types[field];
+    }
+
+    /**
+     * A buffer handed to send is queued as it is, not copied, so it must
+     * not be filled again after that call: take a new one per message
+     *
+     * @param records Number of records
+     * @return A zeroed message able to hold the records, see {@link Record#wrap(byte[], int)}
+     */
+    public byte[] newBuffer(int records) {
+        return new byte[size * records];
+    }
+
+    /**
+     * @return A record over a new buffer of a single record
+     */
+    public Record newRecord() {
+        return new Record(this).wrap(newBuffer(1), 0);
+    }
+
+    /* ** Protected methods ** */
+
+    int offset(int field) {
+        return offsets[field];
+    }
+
+    /* ** Private methods ** */
+
+    private static int sizeOf(int type) {
+        switch (type) {
+            case BYTE:
+                return 1;
+            case SHORT:
+                return 2;
+            case INT:
+            case FLOAT:
+                return 4;
+            case LONG:
+            case DOUBLE:
+                return 8;
+            default:
+                throw new IllegalArgumentException("Invalid field type: " + type);
+        }
+    } // end sizeOf method
+
+    /* ** Inner classes ** */
+
+    public static final class Builder {
+        private final List<String> names = new ArrayList<>();
+        private final List<Integer> types = new ArrayList<>();
+
+        public Builder add(String name, int type) {
+            sizeOf(type);
+            if (names.contains(name)) throw new IllegalArgumentException("Repeated field: " + name);
+            names.add(name);
+            types.add(type);
+            return this;
+        }
+
+        public Builder addByte(String name) {
+            return add(name, BYTE);
+        }
+
+        public Builder addShort(String name) {
+            return add(name, SHORT);
+        }
+
+        public Builder addInt(String name) {
+            return add(name, INT);
+        }
+
+        public Builder addLong(String name) {
+            return add(name, LONG);
+        }
+
+        public Builder addFloat(String name) {
+            return add(name, FLOAT);
+        }
+
+        public Builder addDouble(String name) {
+            return add(name, DOUBLE);
+        }
+
+        /**
+         * Adds "count" float fields named name0, name1...
+         */
+        public Builder addFloats(String name, int count) {
+            for (int i = 0; i < count; i++) {
+                add(name + i, FLOAT);
+            }
+            return this;
+        }
+
+        public RecordSchema build() {
+            if (names.isEmpty()) throw new IllegalStateException("Schema without fields");
+            return new RecordSchema(names, types);
+        }
+    } // end Builder class
+} // end RecordSchema class
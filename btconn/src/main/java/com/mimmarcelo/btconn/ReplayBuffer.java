@@ -0,0 +1,169 @@
+/**
+ * File name: ReplayBuffer
+ * Keeps the data frames sent but not acknowledged by the peer
+ *
+ * <p>
+ * The frames are copied, as written to the socket, into a fixed ring of bytes.
+ * Each entry is:
+ * </p>
+ * <pre>
+ * int   sequence
+ * byte  flags
+ * short channel
+ * int   payload length
+ * bytes payload
+ * </pre>
+ * <p>
+ * Acknowledged entries are released from the head. When the ring is full
+ * the oldest entries are evicted, those frames can not be sent again
+ * </p>
+ */
+package com.mimmarcelo.btconn;
+
+import java.io.IOException;
+
+final class ReplayBuffer {
+
+    /* ** Constants ** */
+
+    static final int DEFAULT_CAPACITY = 64 * 1024;
+
+    private static final int ENTRY_HEADER = 11;
+
+    /* ** Private attributes ** */
+
+    private final byte[] ring;
+    private long head;        // Absolute position of the oldest entry
+    private long tail;        // Absolute position after the newest entry
+    private int firstSeq;     // Sequence of the entry at head
+    private int nextSeq;      // Sequence of the next entry appended
+    private long evicted;     // Frames lost because the ring was full
+    private final byte[] entry = new byte[ENTRY_HEADER];
+    private byte[] payload;
+
+    /* ** Constructors ** */
+
+    ReplayBuffer(int capacity) {
+        this.ring = new byte[capacity];
+        this.payload = new byte[Frame.DEFAULT_MAX_PAYLOAD];
+        reset(0);
+    }
+
+    /* ** Methods ** */
+
+    /**
+     * Forgets every frame, the next one appended has the sequence "next"
+     */
+    synchronized void reset(int next) {
+        head = 0;
+        tail = 0;
+        firstSeq = next;
+        nextSeq = next;
+    }
+
+    /**
+     * @return Sequence of the oldest frame kept, it is {@link #nextSeq()} when empty
+     */
+    synchronized int firstSeq() {
+        return firstSeq;
+    }
+
+    synchronized int nextSeq() {
+        return nextSeq;
+    }
+
+    synchronized long getEvicted() {
+        return evicted;
+    }
+
+    /**
+     * @return true if every frame from seq on is kept
+     */
+    synchronized boolean covers(int seq) {
+        return seq - firstSeq >= 0 && nextSeq - seq >= 0;
+    }
+
+    /**
+     * Copies a frame just written
+     *
+     * @return The sequence given to the frame
+     */
+    synchronized int append(int flags, int channel, byte[] data, int offset, int length) {
+        int size = ENTRY_HEADER + length;
+        if (size > ring.length) throw new IllegalArgumentException("Frame bigger than the replay buffer");
+
+        while (tail + size - head > ring.length) {
+            evictHead();
+            evicted++;
+        }
+
+        int seq = nextSeq++;
+        Frame.writeInt(entry, 0, seq);
+        entry[4] = (byte) flags;
+        entry[5] = (byte) (channel >>> 8);
+        entry[6] = (byte) channel;
+        Frame.writeInt(entry, 7, length);
+        put(tail, entry, 0, ENTRY_HEADER);
+        put(tail + ENTRY_HEADER, data, offset, length);
+        tail += size;
+        return seq;
+    } // end append method
+
+    /**
+     * Releases the frames before seq, the peer has all of them
+     */
+    synchronized void release(int seq) {
+        while (head < tail && seq - firstSeq > 0) {
+            evictHead();
+        }
+    }
+
+    /**
+     * Writes again every frame kept from seq on
+     *
+     * @param charge Connection whose credits the frames use, null if they were already counted
+     * @return Frames written
+     */
+    synchronized int replay(int seq, FrameWriter writer, ConnectedThread charge) throws IOException {
+        int count = 0;
+        long position = head;
+        int current = firstSeq;
+        while (position < tail) {
+            get(position, entry, 0, ENTRY_HEADER);
+            int length = Frame.readInt(entry, 7);
+            if (current - seq >= 0) {
+                if (payload.length < length) payload = new byte[length];
+                get(position + ENTRY_HEADER, payload, 0, length);
+                int channel = ((entry[5] & 0xFF) << 8) | (entry[6] & 0xFF);
+                writer.writeData(entry[4] & 0xFF, channel, current, payload, 0, length);
+                if (charge != null) charge.charge(channel, length);
+                count++;
+            }
+            position += ENTRY_HEADER + length;
+            current++;
+        }
+        return count;
+    } // end replay method
+
+    /* ** Private methods ** */
+
+    private void evictHead() {
+        get(head, entry, 0, ENTRY_HEADER);
+        head += ENTRY_HEADER + Frame.readInt(entry, 7);
+        firstSeq++;
+    }
+
+    private void put(long position, byte[] data, int offset, int length) {
+        int start = (int) (position % ring.length);
+        int first = Math.min(length, ring.length - start);
+        System.arraycopy(data, offset, ring, start, first);
+        System.arraycopy(data, offset + first, ring, 0, length - first);
+    }
+
+    private void get(long position, byte[] data, int offset, int length) {
+        int start = (int) (position % ring.length);
+        int first = Math.min(length, ring.length - start);
+        System.arraycopy(ring, start, data, offset, first);
+        System.arraycopy(ring, 0, data, offset + first, length - first);
+    }
+} // end ReplayBuffer class
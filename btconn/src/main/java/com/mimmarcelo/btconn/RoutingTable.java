@@ -0,0 +1,226 @@
+/**
+ * File name: RoutingTable
+ * Devices reachable through the connections of this device, used to
+ * forward {@link Frame#TYPE_ROUTED} frames between peers
+ *
+ * <p>
+ * Direct connections are added when they start. Each device tells its
+ * peers, in a {@link Frame#TYPE_ROUTES} frame, the devices it reaches and how
+ * many hops away, and the source of every routed frame is learned as
+ * reachable through the connection it came from. When a destination is
+ * unknown the frame is flooded to every other connection.
+ * </p>
+ * <p>
+ * Flooding and loops make the same frame arrive more than once, so the ids
+ * of the last frames seen are kept in a bounded cache and repeated frames
+ * are dropped
+ * </p>
+ */
+package com.mimmarcelo.btconn;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+final class RoutingTable {
+
+    /* ** Constants ** */
+
+    static final int ADDRESS_SIZE = 6;
+    static final int DEFAULT_TTL = 8;
+    static final int SEEN_CAPACITY = 1024;
+
+    /**
+     * Source of the frames sent before this device knows its own address
+     */
+    static final String UNKNOWN_ADDRESS = "00:00:00:00:00:00";
+
+    /**
+     * Routed payload header: destination, source, id, ttl and channel
+     */
+    static final int ROUTED_HEADER = ADDRESS_SIZE * 2 + 8 + 1 + 2;
+
+    /* ** Private attributes ** */
+
+    private volatile String localAddress; // Set from the adapter or, if not known, the first ROUTES frame
+    private final Map<String, Route> routes;
+    private final List<ConnectedThread> connections;
+    private final LinkedHashMap<Long, Boolean> seen;
+    private final Random random;
+
+    /* ** Constructors ** */
+
+    RoutingTable() {
+        this.routes = new HashMap<>();
+        this.connections = new ArrayList<>();
+        this.random = new Random();
+        this.seen = new LinkedHashMap<Long, Boolean>(SEEN_CAPACITY, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+                return size() > SEEN_CAPACITY;
+            }
+        };
+    }
+
+    /* ** Methods ** */
+
+    String getLocalAddress() {
+        return localAddress;
+    }
+
+    void setLocalAddress(String address) {
+        if (localAddress == null) localAddress = address;
+    }
+
+    synchronized void addDirect(ConnectedThread conn) {
+        if (!connections.contains(conn)) connections.add(conn);
+        routes.put(conn.getAddress(), new Route(conn, 0));
+    }
+
+    /**
+     * Forgets the connection and every route through it
+     */
+    synchronized void remove(ConnectedThread conn) {
+        connections.remove(conn);
+        Iterator<Route> iterator = routes.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().via == conn) iterator.remove();
+        }
+    }
+
+    /**
+     * Keeps the route if it is new or shorter than the known one. Routes
+     * longer than {@link #DEFAULT_TTL} are ignored, no frame would reach them
+     * and it ends the announcements of a route bouncing between devices
+     *
+     * @param hops Devices between this one and the address
+     * @return true if the table changed and the peers must be told
+     */
+    synchronized boolean learn(String address, ConnectedThread via, int hops) {
+        if (address.equals(localAddress) || address.equals(UNKNOWN_ADDRESS)) return false;
+        Route route = routes.get(address);
+        if (route != null && route.via == via && route.hops == hops) return false;
+        if (route == null ? hops <= DEFAULT_TTL : hops < route.hops || route.via == via) {
+            if (hops > DEFAULT_TTL) {
+                routes.remove(address);
+            } else {
+                routes.put(address, new Route(via, hops));
+            }
+            return true;
+        }
+        return false;
+    } // end learn method
+
+    /**
+     * @return The connection to forward a frame to the address, null if unknown
+     */
+    synchronized ConnectedThread next(String address) {
+        Route route = routes.get(address);
+        return route != null ? route.via : null;
+    }
+
+    synchronized List<ConnectedThread> getConnections() {
+        return new ArrayList<>(connections);
+    }
+
+    /**
+     * @return true the first time the frame id is seen
+     */
+    synchronized boolean firstSeen(long id) {
+        return seen.put(id, Boolean.TRUE) == null;
+    }
+
+    /**
+     * Builds a {@link Frame#TYPE_ROUTED} payload from this device
+     *
+     * <pre>
+     * 6 bytes destination address
+     * 6 bytes source address
+     * long    frame id
+     * byte    hops left (ttl)
+     * short   channel
+     * bytes   message
+     * </pre>
+     */
+    byte[] routed(String destination, int channel, byte[] data) {
+        byte[] payload = new byte[ROUTED_HEADER + data.length];
+        String local = localAddress;
+        writeAddress(payload, 0, destination);
+        writeAddress(payload, ADDRESS_SIZE, local != null ? local : UNKNOWN_ADDRESS);
+        long id;
+        do {
+            synchronized (this) {
+                id = random.nextLong();
+            }
+        } while (!firstSeen(id)); // Its own frame coming back is dropped
+        TransferProtocol.writeLong(payload, ADDRESS_SIZE * 2, id);
+        payload[ADDRESS_SIZE * 2 + 8] = (byte) DEFAULT_TTL;
+        payload[ADDRESS_SIZE * 2 + 9] = (byte) (channel >>> 8);
+        payload[ADDRESS_SIZE * 2 + 10] = (byte) channel;
+        System.arraycopy(data, 0, payload, ROUTED_HEADER, data.length);
+        return payload;
+    } // end routed method
+
+    /**
+     * Builds the {@link Frame#TYPE_ROUTES} payload to a peer:
+     * its address as seen by this device followed by the devices
+     * reachable through the other connections
+     */
+    synchronized byte[] routesFor(ConnectedThread peer, int maxPayload) {
+        int count = 0;
+        for (Route route : routes.values()) {
+            if (route.via != peer) count++;
+        }
+        count = Math.min(count, (maxPayload - ADDRESS_SIZE) / (ADDRESS_SIZE + 1));
+
+        byte[] payload = new byte[ADDRESS_SIZE + count * (ADDRESS_SIZE + 1)];
+        writeAddress(payload, 0, peer.getAddress());
+        int position = ADDRESS_SIZE;
+        for (Map.Entry<String, Route> entry : routes.entrySet()) {
+            if (entry.getValue().via == peer) continue;
+            if (position >= payload.length) break;
+            writeAddress(payload, position, entry.getKey());
+            payload[position + ADDRESS_SIZE] = (byte) entry.getValue().hops;
+            position += ADDRESS_SIZE + 1;
+        }
+        return payload;
+    } // end routesFor method
+
+    /* ** Static methods ** */
+
+    /**
+     * Writes a MAC address ("00:11:22:AA:BB:CC") as {@link #ADDRESS_SIZE} bytes
+     */
+    static void writeAddress(byte[] buffer, int offset, String address) {
+        for (int i = 0; i < ADDRESS_SIZE; i++) {
+            buffer[offset + i] = (byte) Integer.parseInt(address.substring(i * 3, i * 3 + 2), 16);
+        }
+    }
+
+    static String readAddress(byte[] buffer, int offset) {
+        StringBuilder address = new StringBuilder(17);
+        for (int i = 0; i < ADDRESS_SIZE; i++) {
+            if (i > 0) address.append(':');
+            int b = buffer[offset + i] & 0xFF;
+            address.append(Character.toUpperCase(Character.forDigit(b >>> 4, 16)));
+            address.append(Character.toUpperCase(Character.forDigit(b & 0x0F, 16)));
+        }
+        return address.toString();
+    }
+
+    /* ** Inner classes ** */
+
+    private static final class Route {
+        final ConnectedThread via;
+        final int hops;
+
+        Route(ConnectedThread via, int hops) {
+            this.via = via;
+            this.hops = hops;
+        }
+    } // end Route class
+} // end RoutingTable class
@@ -0,0 +1,62 @@
+/**
+ * File name: SendPacer
+ * Shapes the data frames of a connection to its rate and the global one
+ *
+ * <p>
+ * The sender thread asks it before each data frame, it waits the longest
+ * time of the two {@link TokenBucket}s. Every wait is recorded, so the
+ * histogram tells when and how much the shaping delays the frames
+ * </p>
+ */
+package com.mimmarcelo.btconn;
+
+import java.util.concurrent.TimeUnit;
+
+final class SendPacer {
+
+    /* ** Private attributes ** */
+
+    private final TokenBucket own;
+    private volatile TokenBucket shared; // Of all the connections, may be null
+    private final LatencyHistogram delays;
+
+    /* ** Constructors ** */
+
+    SendPacer() {
+        this.own = new TokenBucket();
+        this.delays = new LatencyHistogram();
+    }
+
+    /* ** Methods ** */
+
+    void setRate(long bytesPerSecond, int burstBytes) {
+        own.setRate(bytesPerSecond, burstBytes);
+    }
+
+    void setShared(TokenBucket shared) {
+        this.shared = shared;
+    }
+
+    /**
+     * @return Time each paced frame waited, in nanoseconds
+     */
+    LatencyHistogram getDelays() {
+        return delays.snapshot();
+    }
+
+    /**
+     * Waits until the frame may be sent
+     *
+     * @param bytes Frame size on the wire
+     */
+    void pace(int bytes) throws InterruptedException {
+        long now = System.nanoTime();
+        long wait = own.take(bytes, now);
+        TokenBucket global = shared;
+        if (global != null) wait = Math.max(wait, global.take(bytes, now));
+        if (wait > 0) {
+            delays.record(wait);
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    } // end pace method
+} // end SendPacer class
@@ -0,0 +1,129 @@
+/**
+ * File name: SenderThread
+ * Drains the {@link OutboundQueue} of a connection to the Bluetooth output
+ *
+ * <p>
+ * Sending in its own thread keeps the callers (usually the UI thread)
+ * free from blocking socket writes
+ * </p>
+ */
+package com.mimmarcelo.btconn;
+
+import java.io.IOException;
+
+final class SenderThread extends Thread {
+
+    /* ** Constants ** */
+
+    private static final String TAG = SenderThread.class.getName();
+
+    /* ** Private attributes ** */
+
+    private final OutboundQueue queue;
+    private final FrameWriter writer;
+    private final Compressor compressor;
+    private final int keepalive;        // Milliseconds, 0 disables
+    private final ReplayBuffer replay;  // Null when the frames have no sequence
+    private final SendPacer pacer;
+    private final ConnectedThread connection;
+
+    /* ** Constructors ** */
+
+    SenderThread(ConnectedThread connection, OutboundQueue queue, FrameWriter writer, Compressor compressor,
+                 int keepalive, ReplayBuffer replay, SendPacer pacer) {
+        super("btconn-sender");
+        this.connection = connection;
+        this.queue = queue;
+        this.writer = writer;
+        this.compressor = compressor;
+        this.keepalive = keepalive;
+        this.replay = replay;
+        this.pacer = pacer;
+    }
+
+    /* ** Public methods ** */
+
+    @Override
+    public void run() {
+        try {
+            Outgoing outgoing;
+            while ((outgoing = queue.take(keepalive)) != null) {
+                if (outgoing == Outgoing.IDLE) {
+                    writer.writeFrame(Frame.TYPE_KEEPALIVE, 0, 0, null, 0, 0);
+                    continue;
+                }
+                if (outgoing == Outgoing.REPLAY) {
+                    replay(queue.takeReplay());
+                    continue;
+                }
+                if (outgoing.isControl()) {
+                    if (outgoing.type == Frame.TYPE_PING) connection.pingWriting(Frame.readInt(outgoing.data, 0));
+                    writer.writeFrame(outgoing.type, 0, outgoing.controlChannel, outgoing.data, 0, outgoing.data.length);
+                    continue;
+                }
+
+                int flags = outgoing.lane << Frame.LANE_SHIFT;
+                if (outgoing.isLastChunk()) flags |= Frame.FLAG_END;
+                if (outgoing.delta) flags |= Frame.FLAG_DELTA;
+                if (outgoing.batch) flags |= Frame.FLAG_BATCH;
+
+                int compressed = compressor.compress(outgoing.data, outgoing.offset, outgoing.chunk);
+                if (compressed >= 0) {
+                    write(outgoing, flags | Frame.FLAG_COMPRESSED, compressor.compressed(), 0, compressed);
+                } else {
+                    write(outgoing, flags, outgoing.data, outgoing.offset, outgoing.chunk);
+                }
+                if (outgoing.listener != null && outgoing.remaining() == 0) outgoing.listener.onSent();
+            }
+        } catch (InterruptedException e) {
+            // Connection closed
+        } catch (IOException e) {
+            BtLog.i(TAG, "Sending stopped: " + e.getMessage());
+        } finally {
+            queue.close();
+            compressor.endDeflater();
+        }
+    } // end run method
+
+    /* ** Private methods ** */
+
+    /**
+     * Writes the reserved chunk of a message as a data frame, at the paced rate,
+     * with a sequence number and a copy in the replay buffer if enabled
+     */
+    private void write(Outgoing outgoing, int flags, byte[] data, int offset, int length)
+            throws IOException, InterruptedException {
+        int channel = outgoing.channel.getNumber();
+        pacer.pace(Frame.HEADER_SIZE + length);
+        if (replay == null) {
+            writer.writeFrame(Frame.TYPE_DATA, flags, channel, data, offset, length);
+            queue.sent(outgoing, length);
+        } else {
+            int seq = queue.sequence(outgoing, replay, flags, data, offset, length);
+            if (seq < 0) throw new InterruptedException("Queue moved to a new connection");
+            writer.writeData(flags, channel, seq, data, offset, length);
+        }
+    } // end write method
+
+    /**
+     * Sends again the frames the peer did not receive
+     *
+     * @param request See {@link OutboundQueue#takeReplay()}
+     */
+    private void replay(long request) throws IOException {
+        if (request < 0 || replay == null) return;
+        int seq = (int) request;
+        boolean charge = (request & OutboundQueue.REPLAY_CHARGE) != 0;
+
+        if (!replay.covers(seq)) {
+            // Some frames were evicted, the peer must skip them
+            seq = replay.firstSeq();
+            byte[] payload = new byte[4];
+            Frame.writeInt(payload, 0, seq);
+            writer.writeFrame(Frame.TYPE_SYNC, 0, 0, payload, 0, payload.length);
+            BtLog.w(TAG, "Frames lost, the peer skips to " + seq);
+        }
+        int count = replay.replay(seq, writer, charge ? connection : null);
+        BtLog.i(TAG, count + " frames sent again from " + seq);
+    } // end replay method
+} // end SenderThread class
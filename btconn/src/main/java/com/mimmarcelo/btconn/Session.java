@@ -0,0 +1,153 @@
+/**
+ * File name: Session
+ * State kept for a peer between its connections, so a reconnection
+ * continues the data streams instead of starting them again
+ *
+ * <p>
+ * Each side names its sending stream with a random id. In the
+ * {@link Handshake} both sides tell their id, the peer id they know and the
+ * next sequence they expect. When the ids match, only the frames not
+ * received by the peer are sent again from the {@link ReplayBuffer}
+ * </p>
+ * <p>
+ * A session is forgotten when the application closes its connection with
+ * every frame acknowledged, when its peer stays away longer than
+ * {@link #EXPIRY_MILLIS}, when more than {@link #MAX_SESSIONS} peers are
+ * away, or when the {@link BluetoothManager} is destroyed
+ * </p>
+ */
+package com.mimmarcelo.btconn;
+
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+final class Session {
+
+    /* ** Constants ** */
+
+    /**
+     * Time a peer may stay away and still resume its streams
+     */
+    static final long EXPIRY_MILLIS = 10 * 60 * 1000;
+
+    /**
+     * Sessions of peers away kept at most, the least recently connected are forgotten first
+     */
+    static final int MAX_SESSIONS = 16;
+
+    /* ** Private static attributes ** */
+
+    // Access order, the least recently connected first
+    private static final Map<String, Session> sessions = new LinkedHashMap<>(16, 0.75f, true);
+    private static final SecureRandom random = new SecureRandom();
+
+    /* ** Attributes ** */
+
+    final String address;
+    final long id;           // This side sending stream
+    long peerId;             // Peer sending stream, 0 if unknown
+    int expected;            // Next sequence expected from the peer
+    final ReplayBuffer replay;
+
+    /**
+     * Channels of the last connection, the messages being reassembled
+     * are moved to the next connection when the stream resumes
+     */
+    Map<Integer, Channel> channels;
+
+    /**
+     * Send queue of the last connection, the messages not sent yet are
+     * moved to the next connection
+     */
+    OutboundQueue outbound;
+
+    int connections;         // Connections made in this session
+
+    /* ** Private attributes ** */
+
+    private long releasedAt; // System.nanoTime() when its last connection ended, 0 while connected
+
+    /* ** Constructors ** */
+
+    private Session(String address) {
+        this.address = address;
+        this.id = random.nextLong();
+        this.peerId = 0;
+        this.expected = 0;
+        this.replay = new ReplayBuffer(ReplayBuffer.DEFAULT_CAPACITY);
+        this.connections = 0;
+    }
+
+    /* ** Static methods ** */
+
+    /**
+     * @return The session of the peer, it is created in the first connection
+     */
+    static synchronized Session get(String address) {
+        expire(System.nanoTime());
+        Session session = sessions.get(address);
+        if (session == null) {
+            session = new Session(address);
+            sessions.put(address, session);
+        }
+        session.releasedAt = 0;
+        return session;
+    }
+
+    /**
+     * Tells the connection using the session ended
+     *
+     * @param cancelled true if the application closed it, the session is then
+     *                  forgotten once the peer acknowledged every frame;
+     *                  false if the link was lost and the peer may come back
+     */
+    static synchronized void release(Session session, boolean cancelled) {
+        if (sessions.get(session.address) != session) return; // Already forgotten
+        if (session.releasedAt != 0) return; // Its connection ended before
+        if (cancelled && session.replay.firstSeq() == session.replay.nextSeq()) {
+            sessions.remove(session.address);
+        } else {
+            session.releasedAt = Math.max(1, System.nanoTime());
+        }
+    }
+
+    /**
+     * Forgets every session, the next connections start new streams
+     */
+    static synchronized void clear() {
+        sessions.clear();
+    }
+
+    /**
+     * Forgets the sessions whose peer is away for longer than
+     * {@link #EXPIRY_MILLIS} and the oldest beyond {@link #MAX_SESSIONS}
+     *
+     * @param now System.nanoTime()
+     */
+    static synchronized void expire(long now) {
+        int away = 0;
+        for (Session session : sessions.values()) {
+            if (session.releasedAt != 0) away++;
+        }
+        long expiry = TimeUnit.MILLISECONDS.toNanos(EXPIRY_MILLIS);
+        Iterator<Session> iterator = sessions.values().iterator();
+        while (iterator.hasNext()) {
+            Session session = iterator.next();
+            if (session.releasedAt == 0) continue; // Connected
+            if (away > MAX_SESSIONS || now - session.releasedAt > expiry) {
+                iterator.remove();
+                away--;
+            }
+        }
+    } // end expire method
+
+    /**
+     * @return true if the session of the address is kept
+     */
+    static synchronized boolean isKept(String address) {
+        return sessions.containsKey(address);
+    }
+} // end Session class
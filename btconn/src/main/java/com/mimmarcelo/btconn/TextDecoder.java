@@ -0,0 +1,102 @@
+/**
+ * File name: TextDecoder
+ * Decodes bytes to text reusing the decoder and the buffers
+ *
+ * <p>
+ * The bytes may come in pieces: a character split between two pieces is
+ * kept (carry over) until the rest arrives, so it is never decoded as two
+ * invalid ones. Invalid bytes are replaced, as new String does. It is used
+ * by a single thread, the connection reader
+ * </p>
+ */
+package com.mimmarcelo.btconn;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+final class TextDecoder {
+
+    /* ** Private attributes ** */
+
+    private final Charset charset;
+    private final CharsetDecoder decoder;
+    private ByteBuffer input;  // Write mode, holds the bytes of an incomplete character between calls
+    private CharBuffer output; // Text of the last call
+
+    /* ** Constructors ** */
+
+    /**
+     * @param capacity Bytes usually decoded at once, the buffers grow if needed
+     */
+    TextDecoder(Charset charset, int capacity) {
+        this.charset = charset;
+        this.decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.input = ByteBuffer.allocate(capacity);
+        this.output = CharBuffer.allocate((int) (capacity * decoder.maxCharsPerByte()));
+    }
+
+    /* ** Methods ** */
+
+    Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * Decodes the next piece of the text
+     *
+     * @param end true if it is the last piece, an incomplete character at
+     *            the end is replaced instead of waiting the next piece
+     * @return The text decoded, valid until the next call
+     */
+    CharBuffer decode(byte[] data, int offset, int length, boolean end) {
+        if (input.remaining() < length) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(input.capacity() * 2, input.position() + length));
+            input.flip();
+            bigger.put(input);
+            input = bigger;
+        }
+        input.put(data, offset, length);
+        input.flip();
+
+        output.clear();
+        while (decoder.decode(input, output, end).isOverflow()) {
+            grow();
+        }
+        if (end) {
+            while (decoder.flush(output).isOverflow()) {
+                grow();
+            }
+            decoder.reset();
+            input.clear();
+        } else {
+            input.compact(); // Keeps the incomplete character
+        }
+        output.flip();
+        return output;
+    } // end decode method
+
+    /**
+     * Decodes a whole message, a line break at its end is removed
+     */
+    String decodeMessage(byte[] data, int offset, int length) {
+        CharBuffer text = decode(data, offset, length, true);
+        int size = text.remaining();
+        if (size > 0 && text.get(size - 1) == '\n') size--;
+        return new String(text.array(), text.arrayOffset() + text.position(), size);
+    }
+
+    /* ** Private methods ** */
+
+    private void grow() {
+        CharBuffer bigger = CharBuffer.allocate(output.capacity() * 2 + 16);
+        output.flip();
+        bigger.put(output);
+        output = bigger;
+    }
+} // end TextDecoder class
@@ -0,0 +1,82 @@
+/**
+ * File name: TokenBucket
+ * Limits the bytes sent per second, allowing bursts
+ *
+ * <p>
+ * Tokens (bytes) are added at a constant rate up to the burst size, and a
+ * frame takes its size from them. When there are not enough, the frame is
+ * still taken (the tokens go below zero) and the caller waits the time they
+ * take to be refilled: frames are spread at the rate instead of sent in
+ * bursts and then stalled. It may be shared by many connections
+ * </p>
+ */
+package com.mimmarcelo.btconn;
+
+final class TokenBucket {
+
+    /* ** Private attributes ** */
+
+    private long rate;   // Bytes per second, 0 for no limit
+    private long burst;  // Bytes that may be sent at once after idle
+    private long tokens;
+    private long refilledAt; // System.nanoTime() of the last refill
+
+    /* ** Constructors ** */
+
+    TokenBucket() {
+        this(System.nanoTime());
+    }
+
+    /**
+     * @param now Current System.nanoTime(), or any clock given to every call
+     */
+    TokenBucket(long now) {
+        this.refilledAt = now;
+    }
+
+    /* ** Methods ** */
+
+    /**
+     * @param bytesPerSecond Rate limit, 0 for no limit
+     * @param burstBytes     Bytes that may be sent at once after idle
+     */
+    void setRate(long bytesPerSecond, int burstBytes) {
+        setRate(bytesPerSecond, burstBytes, System.nanoTime());
+    }
+
+    synchronized void setRate(long bytesPerSecond, int burstBytes, long now) {
+        boolean wasUnlimited = rate == 0;
+        rate = Math.max(0, bytesPerSecond);
+        burst = Math.max(1, burstBytes);
+        tokens = wasUnlimited ? burst : Math.min(tokens, burst);
+        refilledAt = now;
+    }
+
+    synchronized long getRate() {
+        return rate;
+    }
+
+    /**
+     * Takes the tokens of a frame
+     *
+     * @return Nanoseconds to wait before sending it, 0 to send now
+     */
+    synchronized long take(int bytes, long now) {
+        if (rate == 0) return 0;
+        long elapsed = now - refilledAt;
+        if (elapsed > 0) {
+            // A longer idle adds nothing, and the cap keeps the product below from overflowing
+            long fill = (burst - tokens) * 1000000000L / rate + 1;
+            boolean full = elapsed >= fill;
+            if (full) elapsed = fill;
+            long refill = elapsed * rate / 1000000000L;
+            if (refill > 0) {
+                tokens = Math.min(burst, tokens + refill);
+                // The fraction of a token not added yet is kept for the next refill
+                refilledAt = now - (full ? 0 : elapsed - refill * 1000000000L / rate);
+            }
+        }
+        tokens -= bytes;
+        return tokens >= 0 ? 0 : -tokens * 1000000000L / rate;
+    } // end take method
+} // end TokenBucket class
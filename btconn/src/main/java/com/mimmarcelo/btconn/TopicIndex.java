@@ -0,0 +1,63 @@
+/**
+ * File name: TopicIndex
+ * Connections subscribed to each topic, see {@link BluetoothManager#publish(String, String)}
+ *
+ * <p>
+ * It is updated by the reader threads when the peers send
+ * {@link Frame#TYPE_SUBSCRIBE} and read on every publish, so the lists
+ * are copied on write and a publish never waits for a lock
+ * </p>
+ */
+package com.mimmarcelo.btconn;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+final class TopicIndex {
+
+    /* ** Private attributes ** */
+
+    private final ConcurrentHashMap<String, CopyOnWriteArrayList<ConnectedThread>> subscribers;
+
+    /* ** Constructors ** */
+
+    TopicIndex() {
+        this.subscribers = new ConcurrentHashMap<>();
+    }
+
+    /* ** Methods ** */
+
+    void add(String topic, ConnectedThread conn) {
+        CopyOnWriteArrayList<ConnectedThread> list = subscribers.get(topic);
+        if (list == null) {
+            CopyOnWriteArrayList<ConnectedThread> created = new CopyOnWriteArrayList<>();
+            list = subscribers.putIfAbsent(topic, created);
+            if (list == null) list = created;
+        }
+        list.addIfAbsent(conn);
+    } // end add method
+
+    void remove(String topic, ConnectedThread conn) {
+        CopyOnWriteArrayList<ConnectedThread> list = subscribers.get(topic);
+        if (list != null) list.remove(conn);
+    }
+
+    /**
+     * Removes a closed connection from every topic
+     */
+    void removeAll(ConnectedThread conn) {
+        for (CopyOnWriteArrayList<ConnectedThread> list : subscribers.values()) {
+            list.remove(conn);
+        }
+    }
+
+    /**
+     * @return Connections subscribed to the topic, the list must not be changed
+     */
+    List<ConnectedThread> get(String topic) {
+        List<ConnectedThread> list = subscribers.get(topic);
+        return list != null ? list : Collections.<ConnectedThread>emptyList();
+    }
+} // end TopicIndex class
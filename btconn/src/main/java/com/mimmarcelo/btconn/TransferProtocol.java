@@ -0,0 +1,73 @@
+/**
+ * File name: TransferProtocol
+ * Messages exchanged on {@link ConnectedThread#TRANSFER_CHANNEL} by
+ * {@link TransferSender} and {@link TransferReceiver}
+ *
+ * <p>
+ * Every message starts with the same header:
+ * </p>
+ * <pre>
+ * byte kind
+ * long transfer id
+ * long value (size for BEGIN, offset for the others)
+ * </pre>
+ * <ul>
+ * <li>BEGIN: sender announces a transfer, followed by the UTF-8 file name</li>
+ * <li>ACCEPT: receiver answers with the offset it already has</li>
+ * <li>DATA: a chunk of the file starting at offset</li>
+ * <li>ACK: receiver confirms everything before offset was written</li>
+ * </ul>
+ */
+package com.mimmarcelo.btconn;
+
+final class TransferProtocol {
+
+    /* ** Constants ** */
+
+    static final int HEADER_SIZE = 17;
+
+    static final int BEGIN = 1;
+    static final int ACCEPT = 2;
+    static final int DATA = 3;
+    static final int ACK = 4;
+
+    /* ** Constructors ** */
+
+    private TransferProtocol() {
+    }
+
+    /* ** Methods ** */
+
+    /**
+     * @param extra Bytes reserved after the header
+     * @return A new message with the header written
+     */
+    static byte[] message(int kind, long id, long value, int extra) {
+        byte[] message = new byte[HEADER_SIZE + extra];
+        message[0] = (byte) kind;
+        writeLong(message, 1, id);
+        writeLong(message, 9, value);
+        return message;
+    }
+
+    static int kind(byte[] message) {
+        return message[0];
+    }
+
+    static long id(byte[] message) {
+        return readLong(message, 1);
+    }
+
+    static long value(byte[] message) {
+        return readLong(message, 9);
+    }
+
+    static void writeLong(byte[] buffer, int offset, long value) {
+        Frame.writeInt(buffer, offset, (int) (value >>> 32));
+        Frame.writeInt(buffer, offset + 4, (int) value);
+    }
+
+    static long readLong(byte[] buffer, int offset) {
+        return ((long) Frame.readInt(buffer, offset) << 32) | (Frame.readInt(buffer, offset + 4) & 0xFFFFFFFFL);
+    }
+} // end TransferProtocol class
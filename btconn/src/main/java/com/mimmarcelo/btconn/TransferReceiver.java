@@ -0,0 +1,163 @@
+/**
+ * File name: TransferReceiver
+ * Writes the {@link FileTransfer}s received by one connection
+ *
+ * <p>
+ * While incomplete, each transfer is kept as "&lt;id&gt;.part" in the transfer
+ * directory, its length is the offset given back to the sender when the
+ * same transfer begins again. When complete, it is renamed to the file name
+ * </p>
+ * <p>
+ * It is used only by the connection reader thread
+ * </p>
+ */
+package com.mimmarcelo.btconn;
+
+import android.app.Activity;
+import android.content.Intent;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+final class TransferReceiver {
+
+    /* ** Constants ** */
+
+    private static final String TAG = TransferReceiver.class.getName();
+
+    /* ** Private attributes ** */
+
+    private final ConnectedThread connection;
+    private final Map<Long, Incoming> transfers;
+    private volatile File directory;
+
+    /* ** Constructors ** */
+
+    TransferReceiver(ConnectedThread connection) {
+        this.connection = connection;
+        this.transfers = new HashMap<>();
+    }
+
+    /* ** Methods ** */
+
+    void setDirectory(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Handles a message of {@link ConnectedThread#TRANSFER_CHANNEL}
+     */
+    void receive(byte[] message) throws IOException {
+        long id = TransferProtocol.id(message);
+        long value = TransferProtocol.value(message);
+
+        switch (TransferProtocol.kind(message)) {
+            case TransferProtocol.BEGIN:
+                String name = new String(message, TransferProtocol.HEADER_SIZE,
+                        message.length - TransferProtocol.HEADER_SIZE, Charset.forName("UTF-8"));
+                begin(id, value, name);
+                break;
+            case TransferProtocol.DATA:
+                write(id, value, message, TransferProtocol.HEADER_SIZE, message.length - TransferProtocol.HEADER_SIZE);
+                break;
+            case TransferProtocol.ACCEPT:
+                connection.getTransferSender().onAccept(id, value);
+                break;
+            case TransferProtocol.ACK:
+                connection.getTransferSender().onAck(id, value);
+                break;
+        } // end switch kind
+    } // end receive method
+
+    /**
+     * Closes the partial files, they are kept to be resumed
+     */
+    void close() {
+        for (Incoming incoming : transfers.values()) {
+            try {
+                incoming.file.close();
+            } catch (IOException e) {
+                BtLog.w(TAG, "Partial file not closed", e);
+            }
+        }
+        transfers.clear();
+    }
+
+    /* ** Private methods ** */
+
+    private void begin(long id, long size, String name) throws IOException {
+        File dir = directory;
+        if (dir == null || (!dir.isDirectory() && !dir.mkdirs())) {
+            BtLog.e(TAG, "No directory to receive transfer " + id);
+            return;
+        }
+
+        Incoming incoming = transfers.get(id);
+        if (incoming == null) {
+            File part = new File(dir, Long.toHexString(id) + ".part");
+            incoming = new Incoming(part, new File(dir, new File(name).getName()), size);
+            transfers.put(id, incoming);
+        }
+        incoming.length = Math.min(incoming.file.length(), size);
+        incoming.file.setLength(incoming.length);
+
+        BtLog.i(TAG, "Transfer " + id + " accepted at " + incoming.length);
+        reply(TransferProtocol.ACCEPT, id, incoming.length);
+        if (incoming.length == size) finish(id, incoming);
+    } // end begin method
+
+    private void write(long id, long offset, byte[] data, int start, int length) throws IOException {
+        Incoming incoming = transfers.get(id);
+        if (incoming == null || offset != incoming.length) {
+            BtLog.i(TAG, "Unexpected chunk of transfer " + id + " at " + offset);
+            return;
+        }
+
+        incoming.file.seek(offset);
+        incoming.file.write(data, start, length);
+        incoming.length += length;
+        reply(TransferProtocol.ACK, id, incoming.length);
+
+        if (incoming.length == incoming.size) finish(id, incoming);
+    } // end write method
+
+    private void finish(long id, Incoming incoming) throws IOException {
+        incoming.file.close();
+        transfers.remove(id);
+        if (!incoming.part.renameTo(incoming.target)) {
+            BtLog.e(TAG, "It was not possible rename " + incoming.part + " to " + incoming.target);
+        }
+
+        Intent intent = new Intent();
+        intent.putExtra(BluetoothListener.EXTRA_TRANSFER_ID, id);
+        intent.putExtra(BluetoothListener.EXTRA_BYTES, incoming.size);
+        intent.putExtra(BluetoothListener.EXTRA_FILE, incoming.target.getAbsolutePath());
+        intent.putExtra(BluetoothListener.EXTRA_CONNECTION, connection);
+        connection.notifyListener(BluetoothListener.TRANSFER_RECEIVED, Activity.RESULT_OK, intent);
+    } // end finish method
+
+    private void reply(int kind, long id, long offset) {
+        connection.send(ConnectedThread.TRANSFER_CHANNEL, TransferProtocol.message(kind, id, offset, 0), ConnectedThread.PRIORITY_HIGH);
+    }
+
+    /* ** Inner classes ** */
+
+    private static final class Incoming {
+        final File part;
+        final File target;
+        final long size;
+        final RandomAccessFile file;
+        long length;
+
+        Incoming(File part, File target, long size) throws IOException {
+            this.part = part;
+            this.target = target;
+            this.size = size;
+            this.file = new RandomAccessFile(part, "rw");
+        }
+    } // end Incoming class
+} // end TransferReceiver class
@@ -0,0 +1,146 @@
+/**
+ * File name: TransferSender
+ * Sends the {@link FileTransfer}s of one connection
+ *
+ * <p>
+ * A transfer starts with a BEGIN message, the receiver answers with the
+ * offset it already has and the chunks are queued from there on the bulk
+ * lane. At most {@link #WINDOW} bytes wait for acknowledgement, so the
+ * memory used does not depend on the file size. The progress is reported
+ * at most every {@link #PROGRESS_INTERVAL_MILLIS}, not on every ACK
+ * </p>
+ */
+package com.mimmarcelo.btconn;
+
+import android.app.Activity;
+import android.content.Intent;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+final class TransferSender {
+
+    /* ** Constants ** */
+
+    private static final String TAG = TransferSender.class.getName();
+
+    static final int WINDOW = 16 * FileTransfer.CHUNK_SIZE;
+
+    static final long PROGRESS_INTERVAL_MILLIS = 250;
+
+    /* ** Private attributes ** */
+
+    private final ConnectedThread connection;
+    private final Map<Long, FileTransfer> transfers;
+
+    /* ** Constructors ** */
+
+    TransferSender(ConnectedThread connection) {
+        this.connection = connection;
+        this.transfers = new HashMap<>();
+    }
+
+    /* ** Methods ** */
+
+    synchronized void start(FileTransfer transfer) {
+        transfers.put(transfer.getId(), transfer);
+        byte[] name = transfer.getName().getBytes(Charset.forName("UTF-8"));
+        byte[] message = TransferProtocol.message(TransferProtocol.BEGIN, transfer.getId(), transfer.getSize(), name.length);
+        System.arraycopy(name, 0, message, TransferProtocol.HEADER_SIZE, name.length);
+        connection.send(ConnectedThread.TRANSFER_CHANNEL, message, ConnectedThread.PRIORITY_HIGH);
+        BtLog.i(TAG, "Transfer " + transfer.getId() + " started");
+    }
+
+    /**
+     * Receiver accepted the transfer, it already has the bytes before offset
+     */
+    synchronized void onAccept(long id, long offset) {
+        FileTransfer transfer = transfers.get(id);
+        if (transfer == null) return;
+        transfer.setAcknowledged(offset);
+        if (transfer.isComplete()) { // Already received, or empty
+            complete(transfer);
+            return;
+        }
+        try {
+            transfer.seek(offset);
+            BtLog.i(TAG, "Transfer " + id + " resumed at " + offset);
+            pump(transfer);
+        } catch (IOException e) {
+            fail(transfer, e);
+        }
+    } // end onAccept method
+
+    /**
+     * Receiver wrote every byte before offset
+     */
+    synchronized void onAck(long id, long offset) {
+        FileTransfer transfer = transfers.get(id);
+        if (transfer == null) return;
+
+        transfer.setAcknowledged(offset);
+        if (transfer.isComplete()) {
+            complete(transfer);
+        } else {
+            long now = System.nanoTime();
+            if (transfer.progressAt == 0 || now - transfer.progressAt >= PROGRESS_INTERVAL_MILLIS * 1000000L) {
+                transfer.progressAt = now;
+                notify(BluetoothListener.TRANSFER_PROGRESS, Activity.RESULT_OK, transfer);
+            }
+            try {
+                pump(transfer);
+            } catch (IOException e) {
+                fail(transfer, e);
+            }
+        }
+    } // end onAck method
+
+    /**
+     * Connection closed, the transfers still running are reported as canceled
+     */
+    synchronized void close() {
+        for (FileTransfer transfer : transfers.values()) {
+            transfer.close();
+            notify(BluetoothListener.TRANSFER_COMPLETE, Activity.RESULT_CANCELED, transfer);
+        }
+        transfers.clear();
+    }
+
+    /* ** Private methods ** */
+
+    /**
+     * Queues chunks until the window is full
+     */
+    private void pump(FileTransfer transfer) throws IOException {
+        while (transfer.sent < transfer.getSize() && transfer.sent - transfer.getAcknowledged() < WINDOW) {
+            int length = (int) Math.min(FileTransfer.CHUNK_SIZE, transfer.getSize() - transfer.sent);
+            byte[] message = TransferProtocol.message(TransferProtocol.DATA, transfer.getId(), transfer.sent, length);
+            transfer.read(message, TransferProtocol.HEADER_SIZE, length);
+            transfer.sent += length;
+            connection.send(ConnectedThread.TRANSFER_CHANNEL, message, ConnectedThread.PRIORITY_BULK);
+        }
+    } // end pump method
+
+    private void complete(FileTransfer transfer) {
+        transfers.remove(transfer.getId());
+        transfer.close();
+        notify(BluetoothListener.TRANSFER_COMPLETE, Activity.RESULT_OK, transfer);
+    }
+
+    private void fail(FileTransfer transfer, IOException e) {
+        BtLog.e(TAG, "Transfer " + transfer.getId() + " failed: " + e.getMessage());
+        transfers.remove(transfer.getId());
+        transfer.close();
+        notify(BluetoothListener.TRANSFER_COMPLETE, Activity.RESULT_CANCELED, transfer);
+    }
+
+    private void notify(int requestCode, int resultCode, FileTransfer transfer) {
+        Intent intent = new Intent();
+        intent.putExtra(BluetoothListener.EXTRA_TRANSFER_ID, transfer.getId());
+        intent.putExtra(BluetoothListener.EXTRA_BYTES, transfer.getAcknowledged());
+        intent.putExtra(BluetoothListener.EXTRA_CONNECTION, connection);
+        connection.notifyListener(requestCode, resultCode, intent);
+    }
+} // end TransferSender class
@@ -0,0 +1,29 @@
+/**
+ * File name: TypedReader
+ * Decodes the messages of a channel with a {@link Codec}
+ */
+package com.mimmarcelo.btconn;
+
+import java.io.IOException;
+
+final class TypedReader<T> implements MessageReader {
+
+    /* ** Private attributes ** */
+
+    private final Codec<T> codec;
+    private final MessageListener<T> listener;
+
+    /* ** Constructors ** */
+
+    TypedReader(Codec<T> codec, MessageListener<T> listener) {
+        this.codec = codec;
+        this.listener = listener;
+    }
+
+    /* ** Methods ** */
+
+    @Override
+    public void read(ConnectedThread conn, int channel, byte[] data, int offset, int length) throws IOException {
+        listener.onMessage(conn, channel, codec.decode(new BinaryReader(data, offset, length)));
+    }
+} // end TypedReader class
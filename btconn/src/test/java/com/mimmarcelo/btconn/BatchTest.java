@@ -0,0 +1,70 @@
+/**
+ * File name: BatchTest
+ * Round trips of the {@link Batch} envelope
+ */
+package com.mimmarcelo.btconn;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BatchTest {
+
+    @Test
+    public void roundTrip_keepsTheMessagesInOrder() throws IOException {
+        Random random = new Random(42);
+        List<byte[]> messages = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            byte[] message = new byte[random.nextInt(300)]; // Sizes on both sides of one varint byte
+            random.nextBytes(message);
+            messages.add(message);
+        }
+
+        byte[] envelope = Batch.pack(messages);
+        int[] bounds = Batch.unpack(envelope, envelope.length);
+        assertEquals(messages.size() * 2, bounds.length);
+        for (int i = 0; i < messages.size(); i++) {
+            byte[] message = Arrays.copyOfRange(envelope, bounds[i * 2], bounds[i * 2] + bounds[i * 2 + 1]);
+            assertArrayEquals("Message " + i, messages.get(i), message);
+        }
+    }
+
+    @Test
+    public void emptyMessages_roundTrip() throws IOException {
+        byte[] envelope = Batch.pack(Arrays.asList(new byte[0], new byte[]{7}, new byte[0]));
+        int[] bounds = Batch.unpack(envelope, envelope.length);
+        assertEquals(6, bounds.length);
+        assertEquals(0, bounds[1]);
+        assertEquals(1, bounds[3]);
+        assertEquals(7, envelope[bounds[2]]);
+        assertEquals(0, bounds[5]);
+    }
+
+    @Test
+    public void unpack_readsOnlyTheGivenLength() throws IOException {
+        byte[] envelope = Batch.pack(Collections.singletonList(new byte[]{1, 2, 3}));
+        byte[] buffer = Arrays.copyOf(envelope, envelope.length + 16); // A reused, bigger buffer
+        int[] bounds = Batch.unpack(buffer, envelope.length);
+        assertEquals(2, bounds.length);
+        assertEquals(3, bounds[1]);
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedEnvelope_isRefused() throws IOException {
+        byte[] envelope = Batch.pack(Arrays.asList(new byte[10], new byte[10]));
+        Batch.unpack(envelope, envelope.length - 1);
+    }
+
+    @Test(expected = IOException.class)
+    public void countBiggerThanTheEnvelope_isRefused() throws IOException {
+        byte[] envelope = new BinaryWriter(8).writeVarInt(1000).toByteArray();
+        Batch.unpack(envelope, envelope.length);
+    }
+}
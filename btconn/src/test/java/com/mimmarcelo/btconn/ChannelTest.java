@@ -0,0 +1,135 @@
+/**
+ * File name: ChannelTest
+ * Frames written by {@link FrameWriter} and parsed by {@link FrameReader},
+ * and messages of many channels interleaved over one {@link LinkPair}
+ */
+package com.mimmarcelo.btconn;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ChannelTest {
+
+    @Test
+    public void frames_roundTrip() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        FrameWriter writer = new FrameWriter(bytes, Frame.DEFAULT_MAX_PAYLOAD);
+        byte[] full = random(Frame.DEFAULT_MAX_PAYLOAD);
+        writer.writeFrame(Frame.TYPE_DATA, Frame.FLAG_END, 1, new byte[]{1, 2, 3}, 0, 3);
+        writer.writeFrame(Frame.TYPE_KEEPALIVE, 0, 0, null, 0, 0);
+        writer.writeFrame(Frame.TYPE_DATA, 2 << Frame.LANE_SHIFT, Frame.MAX_CHANNEL, full, 0, full.length);
+
+        FrameReader reader = new FrameReader(new ByteArrayInputStream(bytes.toByteArray()), Frame.DEFAULT_MAX_PAYLOAD);
+        Frame frame = new Frame();
+        reader.next(frame);
+        assertEquals(Frame.TYPE_DATA, frame.type);
+        assertTrue(frame.hasFlag(Frame.FLAG_END));
+        assertEquals(1, frame.channel);
+        assertArrayEquals(new byte[]{1, 2, 3}, payload(frame));
+
+        reader.next(frame);
+        assertEquals(Frame.TYPE_KEEPALIVE, frame.type);
+        assertEquals(0, frame.length);
+
+        reader.next(frame);
+        assertFalse(frame.hasFlag(Frame.FLAG_END));
+        assertEquals(2, frame.lane());
+        assertEquals(Frame.MAX_CHANNEL, frame.channel);
+        assertArrayEquals(full, payload(frame));
+        assertFalse(reader.hasBuffered());
+    }
+
+    @Test
+    public void frames_splitAcrossReads() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        FrameWriter writer = new FrameWriter(bytes, Frame.DEFAULT_MAX_PAYLOAD);
+        for (int i = 0; i < 10; i++) {
+            writer.writeFrame(Frame.TYPE_DATA, 0, i, new byte[]{(byte) i, 9}, 0, 2);
+        }
+
+        // The socket gives one byte at a time
+        final ByteArrayInputStream source = new ByteArrayInputStream(bytes.toByteArray());
+        InputStream trickle = new InputStream() {
+            @Override
+            public int read() {
+                return source.read();
+            }
+
+            @Override
+            public int read(byte[] data, int offset, int length) {
+                return source.read(data, offset, Math.min(length, 1));
+            }
+        };
+        FrameReader reader = new FrameReader(trickle, Frame.DEFAULT_MAX_PAYLOAD);
+        Frame frame = new Frame();
+        for (int i = 0; i < 10; i++) {
+            reader.next(frame);
+            assertEquals(i, frame.channel);
+            assertArrayEquals(new byte[]{(byte) i, 9}, payload(frame));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void frameBiggerThanTheLimit_breaksTheProtocol() throws IOException {
+        byte[] header = new byte[Frame.HEADER_SIZE];
+        Frame.writeHeader(header, 0, Frame.TYPE_DATA, 0, 1, Frame.DEFAULT_MAX_PAYLOAD + 1);
+        new FrameReader(new ByteArrayInputStream(header), Frame.DEFAULT_MAX_PAYLOAD).next(new Frame());
+    }
+
+    @Test
+    public void channels_reassembleTheirOwnMessages() throws Exception {
+        LinkPair link = new LinkPair().start();
+        try {
+            int channels = 4;
+            int count = 5;
+            LinkPair.Inbox[] inboxes = new LinkPair.Inbox[channels];
+            byte[][][] sent = new byte[channels][count][];
+            for (int c = 0; c < channels; c++) {
+                inboxes[c] = new LinkPair.Inbox();
+                link.b.getChannel(c + 1).setReader(inboxes[c]);
+            }
+
+            // Messages of several frames, sent in turns so their fragments interleave
+            for (int i = 0; i < count; i++) {
+                for (int c = 0; c < channels; c++) {
+                    sent[c][i] = random(3 * Frame.DEFAULT_MAX_PAYLOAD + c * 100 + i);
+                    link.a.send(c + 1, sent[c][i], ConnectedThread.PRIORITY_NORMAL);
+                }
+            }
+
+            for (int c = 0; c < channels; c++) {
+                assertTrue(inboxes[c].await(count, LinkPair.TIMEOUT_MILLIS));
+                assertEquals(count, inboxes[c].size());
+                for (int i = 0; i < count; i++) {
+                    assertArrayEquals(sent[c][i], inboxes[c].get(i));
+                }
+            }
+        } finally {
+            link.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void channelOutOfRange_isRefused() {
+        new Channel(Frame.MAX_CHANNEL + 1, null);
+    }
+
+    private static byte[] payload(Frame frame) {
+        byte[] payload = new byte[frame.length];
+        System.arraycopy(frame.data, frame.offset, payload, 0, frame.length);
+        return payload;
+    }
+
+    private static byte[] random(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,134 @@
+/**
+ * File name: ChecksumTest
+ * Frames with a CRC-32C trailer: a corruption is detected without losing
+ * the stream, and over a connection the message still arrives
+ */
+package com.mimmarcelo.btconn;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ChecksumTest {
+
+    @Test
+    public void checkedFrames_roundTrip() throws IOException {
+        byte[] bytes = write(new byte[]{1, 2, 3}, new byte[]{4, 5});
+        assertEquals(2 * (Frame.HEADER_SIZE + Frame.TRAILER_SIZE) + 5, bytes.length);
+
+        FrameReader reader = reader(bytes);
+        Frame frame = new Frame();
+        reader.next(frame);
+        assertFalse(frame.corrupt);
+        assertEquals(3, frame.length);
+        reader.next(frame);
+        assertFalse(frame.corrupt);
+        assertEquals(5, frame.data[frame.offset + 1]);
+    }
+
+    @Test
+    public void flippedBit_marksOnlyThatFrame() throws IOException {
+        byte[] bytes = write(new byte[]{1, 2, 3}, new byte[]{4, 5});
+        bytes[Frame.HEADER_SIZE + 1] ^= 0x10;
+
+        FrameReader reader = reader(bytes);
+        Frame frame = new Frame();
+        reader.next(frame);
+        assertTrue(frame.corrupt);
+        reader.next(frame); // The next frame starts where it should
+        assertFalse(frame.corrupt);
+        assertEquals(4, frame.data[frame.offset]);
+    }
+
+    @Test
+    public void corruptedFrame_isSentAgain() throws Exception {
+        // The byte corrupted is in the payload of the first data frame, after the hello
+        MemoryPipe toB = new MemoryPipe(LinkPair.PIPE_SIZE);
+        MemoryPipe toA = new MemoryPipe(LinkPair.PIPE_SIZE);
+        LinkPair.Listener listener = new LinkPair.Listener();
+        ConnectedThread a = new ConnectedThread(listener, LinkPair.newAddress(), toA.input,
+                new Corrupting(toB.output, 46 + Frame.HEADER_SIZE + 500));
+        ConnectedThread b = new ConnectedThread(listener, LinkPair.newAddress(), toB.input, toA.output);
+        try {
+            handshake(a, b);
+            a.start();
+            b.start();
+            LinkPair.Inbox inbox = new LinkPair.Inbox();
+            b.getChannel(1).setReader(inbox);
+
+            byte[] message = new byte[3 * Frame.DEFAULT_MAX_PAYLOAD];
+            new Random(32).nextBytes(message);
+            a.send(1, message, ConnectedThread.PRIORITY_NORMAL);
+
+            assertTrue(inbox.await(1, LinkPair.TIMEOUT_MILLIS));
+            assertArrayEquals(message, inbox.get(0));
+            assertEquals(1, b.getCorruptFrames());
+        } finally {
+            a.cancel();
+            b.cancel();
+        }
+    }
+
+    private static byte[] write(byte[]... payloads) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        FrameWriter writer = new FrameWriter(bytes, Frame.DEFAULT_MAX_PAYLOAD);
+        writer.setChecksum(Crc32c.create());
+        for (byte[] payload : payloads) {
+            writer.writeFrame(Frame.TYPE_DATA, Frame.FLAG_END, 1, payload, 0, payload.length);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static FrameReader reader(byte[] bytes) {
+        FrameReader reader = new FrameReader(new ByteArrayInputStream(bytes), Frame.DEFAULT_MAX_PAYLOAD);
+        reader.setChecksum(Crc32c.create());
+        return reader;
+    }
+
+    private static void handshake(ConnectedThread a, final ConnectedThread b) throws Exception {
+        Thread other = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    b.handshake(0);
+                } catch (IOException e) {
+                    // a fails too
+                }
+            }
+        };
+        other.start();
+        a.handshake(0);
+        other.join(LinkPair.TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Flips one bit of the byte at a position of the stream
+     */
+    private static final class Corrupting extends FilterOutputStream {
+
+        private final long target;
+        private long position;
+
+        Corrupting(OutputStream output, long target) {
+            super(output);
+            this.target = target;
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            if (target >= position && target < position + length) {
+                data = data.clone();
+                data[offset + (int) (target - position)] ^= 0x01;
+            }
+            position += length;
+            out.write(data, offset, length);
+        }
+    } // end Corrupting class
+}
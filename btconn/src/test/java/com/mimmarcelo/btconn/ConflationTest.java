@@ -0,0 +1,90 @@
+/**
+ * File name: ConflationTest
+ * Messages with a conflation key keep only the newest value while they wait
+ */
+package com.mimmarcelo.btconn;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ConflationTest {
+
+    private static final int LANE = ConnectedThread.PRIORITY_NORMAL;
+
+    @Test
+    public void waitingValue_isReplaced() throws Exception {
+        OutboundQueue queue = new OutboundQueue(Frame.DEFAULT_MAX_PAYLOAD);
+        Channel channel = new Channel(1, null);
+        for (int i = 0; i < 10; i++) {
+            queue.offer(keyed(channel, "position", i, 1));
+        }
+        queue.offer(keyed(channel, "speed", 50, 1));
+
+        assertEquals(9, takeWhole(queue).data[0]);
+        assertEquals(50, takeWhole(queue).data[0]);
+        assertSame(Outgoing.IDLE, queue.take(50));
+        assertEquals(9, queue.getMetrics(LANE).getConflated());
+        assertEquals(11, queue.getMetrics(LANE).getEnqueued());
+    }
+
+    @Test
+    public void startedValue_isNotReplaced() throws Exception {
+        OutboundQueue queue = new OutboundQueue(Frame.DEFAULT_MAX_PAYLOAD);
+        Channel channel = new Channel(1, null);
+        queue.offer(keyed(channel, "frame", 1, 2 * Frame.DEFAULT_MAX_PAYLOAD));
+        Outgoing first = queue.take(100);
+        queue.sent(first, first.chunk);
+
+        // The peer has part of the old value, the new one waits its turn
+        queue.offer(keyed(channel, "frame", 2, 10));
+        assertSame(first, takeWhole(queue));
+        assertEquals(2, takeWhole(queue).data[0]);
+        assertEquals(0, queue.getMetrics(LANE).getConflated());
+    }
+
+    @Test
+    public void connection_sendsOnlyTheNewestValue() throws Exception {
+        LinkPair link = new LinkPair().handshake();
+        try {
+            LinkPair.Inbox inbox = new LinkPair.Inbox();
+            link.b.getChannel(1).setReader(inbox);
+
+            // Nothing is written while the connection does not start
+            for (int i = 0; i < 100; i++) {
+                link.a.sendLatest(1, "position", new byte[]{(byte) i}, LANE);
+            }
+            link.a.sendLatest(1, "speed", new byte[]{-1}, LANE);
+            link.a.start();
+            link.b.start();
+
+            assertTrue(inbox.await(2, LinkPair.TIMEOUT_MILLIS));
+            Thread.sleep(100);
+            assertEquals(2, inbox.size());
+            assertEquals(99, inbox.get(0)[0]);
+            assertEquals(-1, inbox.get(1)[0]);
+        } finally {
+            link.close();
+        }
+    }
+
+    private static Outgoing keyed(Channel channel, String key, int value, int size) {
+        byte[] data = new byte[size];
+        data[0] = (byte) value;
+        Outgoing outgoing = new Outgoing(channel, LANE, data);
+        outgoing.key = key;
+        return outgoing;
+    }
+
+    /**
+     * Takes the chunks of the next message until it is sent
+     */
+    private static Outgoing takeWhole(OutboundQueue queue) throws InterruptedException {
+        Outgoing outgoing;
+        do {
+            outgoing = queue.take(100);
+            queue.sent(outgoing, outgoing.chunk);
+        } while (outgoing.remaining() > 0);
+        return outgoing;
+    }
+}
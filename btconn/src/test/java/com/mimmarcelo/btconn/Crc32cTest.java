@@ -0,0 +1,80 @@
+/**
+ * File name: Crc32cTest
+ * Checks {@link Crc32c} against the known values of RFC 3720 and the check value
+ */
+package com.mimmarcelo.btconn;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class Crc32cTest {
+
+    @Test
+    public void checkValue() {
+        assertEquals(0xE3069283L, crc("123456789".getBytes(Charset.forName("US-ASCII"))));
+    }
+
+    @Test
+    public void rfc3720_zeros() {
+        assertEquals(0x8A9136AAL, crc(new byte[32]));
+    }
+
+    @Test
+    public void rfc3720_ones() {
+        byte[] data = new byte[32];
+        Arrays.fill(data, (byte) 0xFF);
+        assertEquals(0x62A8AB43L, crc(data));
+    }
+
+    @Test
+    public void rfc3720_increasing() {
+        byte[] data = new byte[32];
+        for (int i = 0; i < data.length; i++) data[i] = (byte) i;
+        assertEquals(0x46DD794EL, crc(data));
+    }
+
+    @Test
+    public void empty() {
+        assertEquals(0L, crc(new byte[0]));
+    }
+
+    @Test
+    public void splitUpdates_matchOneUpdate() {
+        byte[] data = new byte[1000];
+        new Random(32).nextBytes(data);
+        long whole = crc(data);
+
+        // Pieces of every length cross the 8 bytes steps at every alignment
+        for (int piece = 1; piece <= 17; piece++) {
+            Crc32c crc = new Crc32c();
+            for (int offset = 0; offset < data.length; offset += piece) {
+                crc.update(data, offset, Math.min(piece, data.length - offset));
+            }
+            assertEquals("Pieces of " + piece, whole, crc.getValue());
+        }
+
+        Crc32c bytes = new Crc32c();
+        for (byte b : data) bytes.update(b);
+        assertEquals(whole, bytes.getValue());
+    }
+
+    @Test
+    public void reset_startsAgain() {
+        Crc32c crc = new Crc32c();
+        crc.update(new byte[]{1, 2, 3}, 0, 3);
+        crc.reset();
+        crc.update(new byte[32], 0, 32);
+        assertEquals(0x8A9136AAL, crc.getValue());
+    }
+
+    private static long crc(byte[] data) {
+        Crc32c crc = new Crc32c();
+        crc.update(data, 0, data.length);
+        return crc.getValue();
+    }
+}
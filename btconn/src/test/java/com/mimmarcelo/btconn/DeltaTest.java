@@ -0,0 +1,103 @@
+/**
+ * File name: DeltaTest
+ * Round trips of {@link DeltaEncoder} and {@link DeltaDecoder}
+ */
+package com.mimmarcelo.btconn;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class DeltaTest {
+
+    private static final int LANE = 1;
+
+    @Test
+    public void thousandMessages_roundTrip() throws IOException {
+        DeltaEncoder encoder = new DeltaEncoder(16);
+        DeltaDecoder decoder = new DeltaDecoder();
+        Random random = new Random(41);
+        byte[] message = new byte[200];
+        random.nextBytes(message);
+
+        int deltas = 0;
+        for (int i = 0; i < 1000; i++) {
+            // A few bytes change and, now and then, the size too
+            message = Arrays.copyOf(message, Math.max(1, message.length + random.nextInt(9) - 4));
+            for (int j = random.nextInt(4); j >= 0; j--) {
+                message[random.nextInt(message.length)] = (byte) random.nextInt();
+            }
+
+            byte[] envelope = encoder.encode(LANE, message);
+            if (envelope[0] == DeltaEncoder.DELTA) deltas++;
+            int size = decoder.decode(LANE, envelope, envelope.length);
+            assertArrayEquals("Message " + i, message, Arrays.copyOf(decoder.buffer(LANE), size));
+        }
+        assertTrue("Only " + deltas + " deltas", deltas > 900);
+    }
+
+    @Test
+    public void messageChangedAfterEncode_doesNotChangeTheBase() throws IOException {
+        DeltaEncoder encoder = new DeltaEncoder(16);
+        DeltaDecoder decoder = new DeltaDecoder();
+        byte[] message = new byte[64];
+        byte[] envelope = encoder.encode(LANE, message);
+        decoder.decode(LANE, envelope, envelope.length);
+
+        message[10] = 1; // The caller reuses its array
+        envelope = encoder.encode(LANE, message);
+        int size = decoder.decode(LANE, envelope, envelope.length);
+        assertArrayEquals(message, Arrays.copyOf(decoder.buffer(LANE), size));
+    }
+
+    @Test
+    public void lostBase_dropsDeltasUntilKeyframe() throws IOException {
+        DeltaEncoder encoder = new DeltaEncoder(4);
+        DeltaDecoder decoder = new DeltaDecoder();
+        byte[] message = new byte[64];
+        byte[] envelope = encoder.encode(LANE, message);
+        decoder.decode(LANE, envelope, envelope.length);
+
+        message[0] = 1;
+        encoder.encode(LANE, message); // Lost
+        message[1] = 1;
+        envelope = encoder.encode(LANE, message);
+        try {
+            decoder.decode(LANE, envelope, envelope.length);
+            fail("Delta applied over a lost base");
+        } catch (IOException expected) {
+            // The base is gone
+        }
+
+        // Every delta is dropped until the next keyframe, at most "interval" messages later
+        for (int i = 2; ; i++) {
+            message[i] = 1;
+            envelope = encoder.encode(LANE, message);
+            if (envelope[0] == DeltaEncoder.KEYFRAME) break;
+            assertTrue("No keyframe", i < 6);
+            try {
+                decoder.decode(LANE, envelope, envelope.length);
+                fail("Delta applied over a lost base");
+            } catch (IOException expected) {
+                // Still waiting the keyframe
+            }
+        }
+        int size = decoder.decode(LANE, envelope, envelope.length);
+        assertArrayEquals(message, Arrays.copyOf(decoder.buffer(LANE), size));
+    }
+
+    @Test(expected = IOException.class)
+    public void deltaBiggerThanTheLimit_isRefused() throws IOException {
+        DeltaDecoder decoder = new DeltaDecoder(1024);
+        byte[] keyframe = new BinaryWriter(8).writeByte(DeltaEncoder.KEYFRAME).writeVarInt(1).toByteArray();
+        decoder.decode(LANE, keyframe, keyframe.length);
+
+        byte[] delta = new BinaryWriter(16).writeByte(DeltaEncoder.DELTA).writeVarInt(2)
+                .writeVarInt(Integer.MAX_VALUE).writeVarInt(0).toByteArray();
+        decoder.decode(LANE, delta, delta.length);
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ * File name: FlowControlTest
+ * Channel and connection credits over a {@link LinkPair}
+ */
+package com.mimmarcelo.btconn;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FlowControlTest {
+
+    private LinkPair link;
+
+    @Before
+    public void connect() throws IOException {
+        link = new LinkPair().start();
+    }
+
+    @After
+    public void close() {
+        link.close();
+    }
+
+    @Test
+    public void messagesBiggerThanTheWindow_arrive() throws Exception {
+        LinkPair.Inbox inbox = new LinkPair.Inbox();
+        link.b.getChannel(1).setReader(inbox);
+        LinkPair.Inbox other = new LinkPair.Inbox();
+        link.b.getChannel(2).setReader(other);
+
+        byte[] big = random(40000);
+        byte[] huge = random(200000);
+        link.a.send(1, big, ConnectedThread.PRIORITY_NORMAL);
+        link.a.send(1, huge, ConnectedThread.PRIORITY_NORMAL);
+        link.a.send(2, new byte[]{42}, ConnectedThread.PRIORITY_NORMAL);
+
+        assertTrue("Big messages stalled", inbox.await(2, LinkPair.TIMEOUT_MILLIS));
+        assertArrayEquals(big, inbox.get(0));
+        assertArrayEquals(huge, inbox.get(1));
+        assertTrue("Other channel stalled", other.await(1, LinkPair.TIMEOUT_MILLIS));
+    }
+
+    @Test
+    public void slowApplication_holdsTheWindowWithWholeMessages() throws Exception {
+        int size = 500; // One frame each
+        int count = 100;
+        for (int i = 0; i < count; i++) {
+            link.a.send(3, random(size), ConnectedThread.PRIORITY_NORMAL);
+        }
+
+        // Nothing is consumed: the window stops the sender
+        assertTrue(link.listenerB.await(BluetoothListener.MESSAGE_RECEIVED, 1, LinkPair.TIMEOUT_MILLIS));
+        Thread.sleep(500);
+        int received = link.listenerB.count(BluetoothListener.MESSAGE_RECEIVED);
+        assertTrue("Received " + received, received < count);
+        assertTrue("Received " + received, received * size <= ConnectedThread.CONNECTION_WINDOW);
+
+        // Each message processed lets the sender go on
+        int consumed = 0;
+        long deadline = System.currentTimeMillis() + LinkPair.TIMEOUT_MILLIS;
+        while (consumed < count && System.currentTimeMillis() < deadline) {
+            received = link.listenerB.count(BluetoothListener.MESSAGE_RECEIVED);
+            if (received > consumed) {
+                link.b.messageConsumed((received - consumed) * size);
+                consumed = received;
+            }
+            Thread.sleep(10);
+        }
+        assertEquals(count, consumed);
+    }
+
+    @Test
+    public void busyChannel_doesNotStopTheOthers() throws Exception {
+        // Channel 4 has no reader on the other side: its frames still give the channel credits back
+        LinkPair.Inbox inbox = new LinkPair.Inbox();
+        link.b.getChannel(5).setReader(inbox);
+        link.b.getChannel(4).setReader(new LinkPair.Inbox());
+
+        link.a.send(4, random(3 * Channel.INITIAL_WINDOW), ConnectedThread.PRIORITY_BULK);
+        link.a.send(5, new byte[]{1, 2, 3}, ConnectedThread.PRIORITY_BULK);
+        assertTrue(inbox.await(1, LinkPair.TIMEOUT_MILLIS));
+    }
+
+    private static byte[] random(int size) {
+        byte[] data = new byte[size]; // Random bytes are not compressed
+        new Random(size).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,140 @@
+/**
+ * File name: HandshakeTest
+ * Settings agreed by {@link Handshake#exchange}, with peers of this and other versions
+ */
+package com.mimmarcelo.btconn;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.*;
+
+public class HandshakeTest {
+
+    private static final int ALL = Handshake.CAP_COMPRESSION | Handshake.CAP_KEEPALIVE
+            | Handshake.CAP_CHECKSUM | Handshake.CAP_SEQUENCE | Handshake.CAP_PING;
+
+    @Test
+    public void bothSides_agreeTheSameSettings() throws Exception {
+        final MemoryPipe toB = new MemoryPipe(LinkPair.PIPE_SIZE);
+        final MemoryPipe toA = new MemoryPipe(LinkPair.PIPE_SIZE);
+        final Handshake[] agreedByB = new Handshake[1];
+        Thread b = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    agreedByB[0] = Handshake.exchange(toB.input, toA.output,
+                            new Handshake(Handshake.VERSION, ALL & ~Handshake.CAP_COMPRESSION, 500, 3000));
+                } catch (IOException e) {
+                    // The assertions below fail
+                }
+            }
+        };
+        b.start();
+        Handshake agreedByA = Handshake.exchange(toA.input, toB.output,
+                new Handshake(Handshake.VERSION, ALL, Frame.DEFAULT_MAX_PAYLOAD, 5000));
+        b.join(LinkPair.TIMEOUT_MILLIS);
+
+        assertNotNull(agreedByB[0]);
+        for (Handshake agreed : new Handshake[]{agreedByA, agreedByB[0]}) {
+            assertEquals(Handshake.VERSION, agreed.version);
+            assertFalse(agreed.has(Handshake.CAP_COMPRESSION));
+            assertTrue(agreed.has(Handshake.CAP_SEQUENCE));
+            assertEquals(500, agreed.maxPayload);
+            assertEquals(3000, agreed.keepalive);
+        }
+    }
+
+    @Test
+    public void keepaliveNotCommon_isDisabled() throws IOException {
+        Handshake agreed = exchange(hello(Handshake.VERSION, ALL & ~Handshake.CAP_KEEPALIVE, 1000, 2000, 38),
+                new ByteArrayOutputStream());
+        assertEquals(0, agreed.keepalive);
+    }
+
+    @Test
+    public void versionOnePeer_connectsWithoutSequences() throws IOException {
+        Handshake agreed = exchange(hello(1, ALL, 1000, 5000, 18), new ByteArrayOutputStream());
+        assertEquals(1, agreed.version);
+        assertFalse(agreed.has(Handshake.CAP_SEQUENCE));
+        assertTrue(agreed.has(Handshake.CAP_CHECKSUM));
+    }
+
+    @Test
+    public void newerPeer_extraFieldsAreSkipped() throws IOException {
+        byte[] newer = hello(Handshake.VERSION + 1, ALL, 1000, 5000, 38 + 10);
+        byte[] stream = new byte[newer.length + 1];
+        System.arraycopy(newer, 0, stream, 0, newer.length);
+        stream[newer.length] = 42; // First byte of the next frame
+
+        InputStream input = new ByteArrayInputStream(stream);
+        Handshake agreed = Handshake.exchange(input, new ByteArrayOutputStream(), offer());
+        assertEquals(Handshake.VERSION, agreed.version);
+        assertEquals(42, input.read());
+    }
+
+    @Test
+    public void offer_isWrittenAsOneHelloFrame() throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        exchange(hello(Handshake.VERSION, ALL, 1000, 5000, 38), output);
+
+        Frame frame = new Frame();
+        FrameReader reader = new FrameReader(new ByteArrayInputStream(output.toByteArray()), Frame.DEFAULT_MAX_PAYLOAD);
+        reader.next(frame);
+        assertEquals(Frame.TYPE_HELLO, frame.type);
+        assertEquals(Handshake.MAGIC, Frame.readInt(frame.data, frame.offset));
+        assertFalse(reader.hasBuffered());
+    }
+
+    @Test(expected = IOException.class)
+    public void otherProtocol_isRefused() throws IOException {
+        byte[] peer = hello(Handshake.VERSION, ALL, 1000, 5000, 38);
+        Frame.writeInt(peer, Frame.HEADER_SIZE, 0x48545450); // "HTTP"
+        exchange(peer, new ByteArrayOutputStream());
+    }
+
+    @Test(expected = IOException.class)
+    public void otherFrameType_isRefused() throws IOException {
+        byte[] peer = hello(Handshake.VERSION, ALL, 1000, 5000, 38);
+        peer[0] = Frame.TYPE_DATA;
+        exchange(peer, new ByteArrayOutputStream());
+    }
+
+    @Test(expected = IOException.class)
+    public void versionTooOld_isRefused() throws IOException {
+        exchange(hello(Handshake.MIN_VERSION - 1, ALL, 1000, 5000, 38), new ByteArrayOutputStream());
+    }
+
+    @Test(expected = IOException.class)
+    public void tinyPayload_isRefused() throws IOException {
+        exchange(hello(Handshake.VERSION, ALL, 10, 5000, 38), new ByteArrayOutputStream());
+    }
+
+    private static Handshake offer() {
+        return new Handshake(Handshake.VERSION, ALL, Frame.DEFAULT_MAX_PAYLOAD, Handshake.DEFAULT_KEEPALIVE);
+    }
+
+    private static Handshake exchange(byte[] peer, ByteArrayOutputStream output) throws IOException {
+        return Handshake.exchange(new ByteArrayInputStream(peer), output, offer());
+    }
+
+    /**
+     * @param length Payload length, 18 in version 1 and 38 in version 2
+     * @return The hello frame of a peer, the session fields are zero
+     */
+    private static byte[] hello(int version, int capabilities, int maxPayload, int keepalive, int length) {
+        byte[] frame = new byte[Frame.HEADER_SIZE + length];
+        int position = Frame.writeHeader(frame, 0, Frame.TYPE_HELLO, 0, 0, length);
+        Frame.writeInt(frame, position, Handshake.MAGIC);
+        frame[position + 4] = (byte) (version >>> 8);
+        frame[position + 5] = (byte) version;
+        Frame.writeInt(frame, position + 6, capabilities);
+        Frame.writeInt(frame, position + 10, maxPayload);
+        Frame.writeInt(frame, position + 14, keepalive);
+        return frame;
+    }
+}
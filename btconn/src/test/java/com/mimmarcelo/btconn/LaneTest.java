@@ -0,0 +1,83 @@
+/**
+ * File name: LaneTest
+ * Priority lanes over a {@link LinkPair}: a high priority message is not
+ * held behind bulk data, whatever its size
+ */
+package com.mimmarcelo.btconn;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class LaneTest {
+
+    private LinkPair link;
+
+    @Before
+    public void connect() throws IOException {
+        link = new LinkPair().start();
+    }
+
+    @After
+    public void close() {
+        link.close();
+    }
+
+    @Test
+    public void stopAfterPayloadBiggerThanTheWindow_overtakesIt() throws Exception {
+        final LinkPair.Inbox payloads = new LinkPair.Inbox();
+        link.b.getChannel(1).setReader(payloads);
+        final int[] payloadsBeforeStop = {-1};
+        link.b.getChannel(2).setReader(new MessageReader() {
+            @Override
+            public void read(ConnectedThread conn, int channel, byte[] data, int offset, int length) {
+                synchronized (payloadsBeforeStop) {
+                    payloadsBeforeStop[0] = payloads.size();
+                    payloadsBeforeStop.notifyAll();
+                }
+            }
+        });
+
+        byte[] payload = new byte[200 * 1024];
+        new Random(27).nextBytes(payload);
+        link.a.send(1, payload, ConnectedThread.PRIORITY_BULK);
+        link.a.send(2, "stop".getBytes("UTF-8"), ConnectedThread.PRIORITY_HIGH);
+
+        synchronized (payloadsBeforeStop) {
+            long deadline = System.currentTimeMillis() + LinkPair.TIMEOUT_MILLIS;
+            while (payloadsBeforeStop[0] < 0 && System.currentTimeMillis() < deadline) {
+                payloadsBeforeStop.wait(100);
+            }
+        }
+        assertEquals("The stop waited the payload", 0, payloadsBeforeStop[0]);
+
+        // The payload and the bulk messages after it still complete
+        link.a.send(1, new byte[]{7}, ConnectedThread.PRIORITY_BULK);
+        assertTrue(payloads.await(2, LinkPair.TIMEOUT_MILLIS));
+        assertArrayEquals(payload, payloads.get(0));
+        assertArrayEquals(new byte[]{7}, payloads.get(1));
+    }
+
+    @Test
+    public void sameLane_keepsTheOrder() throws Exception {
+        LinkPair.Inbox inbox = new LinkPair.Inbox();
+        link.b.getChannel(1).setReader(inbox);
+        for (int i = 0; i < 50; i++) {
+            link.a.send(1, new byte[]{(byte) i}, ConnectedThread.PRIORITY_NORMAL);
+        }
+        assertTrue(inbox.await(50, LinkPair.TIMEOUT_MILLIS));
+        for (int i = 0; i < 50; i++) {
+            assertEquals(i, inbox.get(i)[0]);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownPriority_isRefused() {
+        link.a.send(1, new byte[1], 3);
+    }
+}
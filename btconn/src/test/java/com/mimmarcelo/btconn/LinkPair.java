@@ -0,0 +1,200 @@
+/**
+ * File name: LinkPair
+ * Two {@link ConnectedThread}s connected to each other over {@link MemoryPipe}s,
+ * handshaken and running like the two ends of a Bluetooth socket
+ */
+package com.mimmarcelo.btconn;
+
+import android.content.Intent;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+final class LinkPair {
+
+    /* ** Constants ** */
+
+    static final int PIPE_SIZE = 8 * 1024; // Bytes in transit each way, like a socket buffer
+    static final long TIMEOUT_MILLIS = 10000;
+
+    private static final AtomicInteger addresses = new AtomicInteger();
+
+    static {
+        BtLog.setLogcat(false);
+    }
+
+    /* ** Attributes ** */
+
+    final String addressA;
+    final String addressB;
+    final Listener listenerA;
+    final Listener listenerB;
+    final ConnectedThread a; // Side A, connected to B
+    final ConnectedThread b;
+    final MemoryPipe toB;
+    final MemoryPipe toA;
+
+    /* ** Constructors ** */
+
+    /**
+     * Connects two new devices
+     */
+    LinkPair() throws IOException {
+        this(newAddress(), newAddress(), PIPE_SIZE);
+    }
+
+    /**
+     * Connects the devices, again if they were connected before (their {@link Session}s are kept)
+     */
+    LinkPair(String addressA, String addressB, int pipeSize) throws IOException {
+        this.addressA = addressA;
+        this.addressB = addressB;
+        this.listenerA = new Listener();
+        this.listenerB = new Listener();
+        this.toB = new MemoryPipe(pipeSize);
+        this.toA = new MemoryPipe(pipeSize);
+        this.a = new ConnectedThread(listenerA, addressB, toA.input, toB.output);
+        this.b = new ConnectedThread(listenerB, addressA, toB.input, toA.output);
+    }
+
+    /* ** Static methods ** */
+
+    /**
+     * @return A MAC address not used by the other pairs, so their sessions are not mixed
+     */
+    static String newAddress() {
+        int n = addresses.incrementAndGet();
+        return String.format(Locale.US, "02:00:00:00:%02X:%02X", (n >>> 8) & 0xFF, n & 0xFF);
+    }
+
+    /* ** Methods ** */
+
+    /**
+     * Agrees the settings on both sides at the same time, as two devices do
+     */
+    LinkPair handshake() throws IOException {
+        final IOException[] failure = new IOException[1];
+        Thread other = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    b.handshake(0);
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            }
+        };
+        other.start();
+        a.handshake(0);
+        try {
+            other.join(TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            throw new IOException("Handshake interrupted");
+        }
+        if (failure[0] != null) throw failure[0];
+        return this;
+    } // end handshake method
+
+    /**
+     * Handshakes and starts both sides
+     */
+    LinkPair start() throws IOException {
+        handshake();
+        a.start();
+        b.start();
+        return this;
+    }
+
+    /**
+     * Drops the link without closing the connections, like a device out of range
+     */
+    void breakLink() {
+        toA.close();
+        toB.close();
+    }
+
+    void close() {
+        try {
+            a.cancel();
+            b.cancel();
+        } catch (IOException e) {
+            // Closing the pipes does not fail
+        }
+    }
+
+    /* ** Inner classes ** */
+
+    /**
+     * Keeps the messages a channel receives, set with {@link Channel#setReader(MessageReader)}
+     */
+    static final class Inbox implements MessageReader {
+
+        private final List<byte[]> messages = new ArrayList<>();
+
+        @Override
+        public synchronized void read(ConnectedThread conn, int channel, byte[] data, int offset, int length) {
+            messages.add(Arrays.copyOfRange(data, offset, offset + length));
+            notifyAll();
+        }
+
+        synchronized int size() {
+            return messages.size();
+        }
+
+        synchronized byte[] get(int index) {
+            return messages.get(index);
+        }
+
+        /**
+         * @return false if fewer messages arrived before the timeout
+         */
+        synchronized boolean await(int count, long timeoutMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (messages.size() < count) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) return false;
+                wait(left);
+            }
+            return true;
+        }
+    } // end Inbox class
+
+    /**
+     * Counts the results the connection reports to its observer
+     */
+    static final class Listener implements BluetoothListener {
+
+        private final List<Integer> codes = new ArrayList<>();
+
+        @Override
+        public synchronized void onActivityResult(int requestCode, int resultCode, Intent data) {
+            codes.add(requestCode);
+            notifyAll();
+        }
+
+        synchronized int count(int requestCode) {
+            int count = 0;
+            for (int code : codes) {
+                if (code == requestCode) count++;
+            }
+            return count;
+        }
+
+        /**
+         * @return false if fewer results arrived before the timeout
+         */
+        synchronized boolean await(int requestCode, int count, long timeoutMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (count(requestCode) < count) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) return false;
+                wait(left);
+            }
+            return true;
+        }
+    } // end Listener class
+} // end LinkPair class
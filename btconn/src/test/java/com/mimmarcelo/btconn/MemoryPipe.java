@@ -0,0 +1,124 @@
+/**
+ * File name: MemoryPipe
+ * One direction of an in memory socket: what is written to {@link #output}
+ * is read from {@link #input}
+ *
+ * <p>
+ * The bytes in transit are bounded like the buffers of a real socket, a
+ * writer blocks while the reader does not drain them. Closing either side
+ * ends both, the reader gets the end of the stream and the writer an IOException
+ * </p>
+ */
+package com.mimmarcelo.btconn;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+final class MemoryPipe {
+
+    /* ** Attributes ** */
+
+    final InputStream input;
+    final OutputStream output;
+
+    /* ** Private attributes ** */
+
+    private final byte[] buffer;
+    private int head; // Next byte to read
+    private int size; // Bytes in transit
+    private boolean closed;
+
+    /* ** Constructors ** */
+
+    MemoryPipe(int capacity) {
+        this.buffer = new byte[capacity];
+        this.input = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] data, int offset, int length) throws IOException {
+                return MemoryPipe.this.read(data, offset, length);
+            }
+
+            @Override
+            public int available() {
+                synchronized (MemoryPipe.this) {
+                    return size;
+                }
+            }
+
+            @Override
+            public void close() {
+                MemoryPipe.this.close();
+            }
+        };
+        this.output = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] data, int offset, int length) throws IOException {
+                MemoryPipe.this.write(data, offset, length);
+            }
+
+            @Override
+            public void close() {
+                MemoryPipe.this.close();
+            }
+        };
+    }
+
+    /* ** Methods ** */
+
+    synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    /* ** Private methods ** */
+
+    private synchronized int read(byte[] data, int offset, int length) throws IOException {
+        if (length == 0) return 0;
+        try {
+            while (size == 0 && !closed) wait();
+        } catch (InterruptedException e) {
+            throw new IOException("Read interrupted");
+        }
+        if (size == 0) return -1;
+
+        int count = Math.min(length, size);
+        for (int i = 0; i < count; i++) {
+            data[offset + i] = buffer[(head + i) % buffer.length];
+        }
+        head = (head + count) % buffer.length;
+        size -= count;
+        notifyAll();
+        return count;
+    } // end read method
+
+    private synchronized void write(byte[] data, int offset, int length) throws IOException {
+        try {
+            while (length > 0) {
+                while (size == buffer.length && !closed) wait();
+                if (closed) throw new IOException("Pipe closed");
+                int count = Math.min(length, buffer.length - size);
+                for (int i = 0; i < count; i++) {
+                    buffer[(head + size + i) % buffer.length] = data[offset + i];
+                }
+                size += count;
+                offset += count;
+                length -= count;
+                notifyAll();
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("Write interrupted");
+        }
+    } // end write method
+} // end MemoryPipe class
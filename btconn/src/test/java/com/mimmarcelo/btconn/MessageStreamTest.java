@@ -0,0 +1,192 @@
+/**
+ * File name: MessageStreamTest
+ * {@link MessageStream} delivers only what its subscriber asked, and over a
+ * {@link LinkPair} its demand holds the peer back
+ */
+package com.mimmarcelo.btconn;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MessageStreamTest {
+
+    private ConnectedThread connection; // Receives the bytes given back, never started
+    private MessageStream stream;
+    private Recorder recorder;
+
+    @Before
+    public void subscribe() throws IOException {
+        MemoryPipe pipe = new MemoryPipe(16);
+        connection = new ConnectedThread(new LinkPair.Listener(), LinkPair.newAddress(), pipe.input, pipe.output);
+        stream = new MessageStream();
+        recorder = new Recorder();
+        stream.subscribe(recorder);
+    }
+
+    @Test
+    public void withoutDemand_messagesWait() {
+        for (int i = 0; i < 5; i++) {
+            assertTrue(stream.offer(message(i)));
+        }
+        assertEquals(0, recorder.size());
+
+        recorder.subscription.request(2);
+        assertEquals(2, recorder.size());
+        recorder.subscription.request(Long.MAX_VALUE);
+        assertEquals(5, recorder.size());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i, recorder.get(i).getData()[0]);
+        }
+
+        stream.offer(message(5));
+        assertEquals(6, recorder.size());
+    }
+
+    @Test
+    public void complete_afterTheWaitingMessages() {
+        stream.offer(message(0));
+        stream.complete();
+        assertFalse(recorder.completed);
+        assertFalse(stream.offer(message(1)));
+
+        recorder.subscription.request(10);
+        assertEquals(1, recorder.size());
+        assertTrue(recorder.completed);
+    }
+
+    @Test
+    public void secondSubscriber_isRefused() {
+        Recorder second = new Recorder();
+        stream.subscribe(second);
+        assertTrue(second.failure instanceof IllegalStateException);
+    }
+
+    @Test
+    public void invalidDemand_cancelsTheSubscriber() {
+        recorder.subscription.request(0);
+        assertTrue(recorder.failure instanceof IllegalArgumentException);
+        assertFalse("No subscriber anymore", stream.offer(message(0)));
+    }
+
+    @Test
+    public void cancel_dropsTheWaitingMessages() {
+        stream.offer(message(0));
+        recorder.subscription.cancel();
+        recorder.subscription.request(1);
+        assertEquals(0, recorder.size());
+
+        Recorder next = new Recorder();
+        stream.subscribe(next);
+        next.subscription.request(1);
+        assertNull(next.failure);
+        assertEquals(0, next.size());
+    }
+
+    @Test
+    public void connection_sendsOnlyWhatIsAsked() throws Exception {
+        LinkPair link = new LinkPair().start();
+        try {
+            Recorder slow = new Recorder();
+            link.b.messages().subscribe(slow);
+            slow.subscription.request(1);
+
+            int count = 100;
+            Random random = new Random(43);
+            for (int i = 0; i < count; i++) {
+                byte[] data = new byte[1000]; // Random bytes are not compressed
+                random.nextBytes(data);
+                data[0] = (byte) i;
+                link.a.send(7, data, ConnectedThread.PRIORITY_NORMAL);
+            }
+
+            // The peer stops once the connection window is waiting in the stream
+            assertTrue(slow.await(1, LinkPair.TIMEOUT_MILLIS));
+            Thread.sleep(300);
+            assertEquals(1, slow.size());
+            assertTrue(link.a.getMetrics().getQueueDepth() > 0);
+
+            slow.subscription.request(Long.MAX_VALUE);
+            assertTrue(slow.await(count, LinkPair.TIMEOUT_MILLIS));
+            for (int i = 0; i < count; i++) {
+                assertEquals((byte) i, slow.get(i).getData()[0]);
+            }
+
+            link.close();
+            assertTrue(slow.awaitCompleted(LinkPair.TIMEOUT_MILLIS));
+        } finally {
+            link.close();
+        }
+    }
+
+    private ReceivedMessage message(int n) {
+        return new ReceivedMessage(connection, 1, null, new byte[]{(byte) n}, 1);
+    }
+
+    /**
+     * Keeps what the stream calls
+     */
+    private static final class Recorder implements Flow.Subscriber<ReceivedMessage> {
+
+        private final List<ReceivedMessage> received = new ArrayList<>();
+        Flow.Subscription subscription;
+        volatile boolean completed;
+        volatile Throwable failure;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public synchronized void onNext(ReceivedMessage item) {
+            received.add(item);
+            notifyAll();
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            failure = throwable;
+        }
+
+        @Override
+        public synchronized void onComplete() {
+            completed = true;
+            notifyAll();
+        }
+
+        synchronized int size() {
+            return received.size();
+        }
+
+        synchronized ReceivedMessage get(int index) {
+            return received.get(index);
+        }
+
+        synchronized boolean await(int count, long timeoutMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (received.size() < count) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) return false;
+                wait(left);
+            }
+            return true;
+        }
+
+        synchronized boolean awaitCompleted(long timeoutMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (!completed) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) return false;
+                wait(left);
+            }
+            return true;
+        }
+    } // end Recorder class
+}
@@ -0,0 +1,129 @@
+/**
+ * File name: OutboxTest
+ * {@link Outbox} journal kept across reopening, its compaction when full,
+ * and its delivery over a {@link LinkPair}
+ */
+package com.mimmarcelo.btconn;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class OutboxTest {
+
+    private static final int MESSAGE = 100;
+    private static final int RECORD = 15 + MESSAGE; // Record header and message
+
+    private File path;
+
+    @Before
+    public void createPath() throws IOException {
+        path = File.createTempFile("btconn", ".outbox");
+        path.delete();
+    }
+
+    @After
+    public void deletePath() {
+        path.delete();
+    }
+
+    @Test
+    public void messages_surviveReopening() throws Exception {
+        Outbox outbox = new Outbox(path, Outbox.DEFAULT_CAPACITY, Outbox.DEFAULT_MAX_AGE);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(outbox.append(1, ConnectedThread.PRIORITY_NORMAL, message(i)));
+        }
+        outbox.close();
+
+        outbox = new Outbox(path, Outbox.DEFAULT_CAPACITY, Outbox.DEFAULT_MAX_AGE);
+        assertEquals(3, outbox.size());
+        assertDelivered(outbox, 0, 1, 2);
+        outbox.close();
+
+        outbox = new Outbox(path, Outbox.DEFAULT_CAPACITY, Outbox.DEFAULT_MAX_AGE);
+        assertEquals(0, outbox.size());
+        outbox.close();
+    }
+
+    @Test
+    public void full_dropsTheOldestAndCompacts() throws Exception {
+        // Room for four records
+        Outbox outbox = new Outbox(path, 16 + 4 * RECORD + 4, Outbox.DEFAULT_MAX_AGE);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(outbox.append(1, ConnectedThread.PRIORITY_NORMAL, message(i)));
+        }
+
+        // Dropping from the head frees enough space to move the last record to the beginning
+        assertTrue(outbox.append(1, ConnectedThread.PRIORITY_NORMAL, message(4)));
+        assertEquals(3, outbox.getDropped());
+        assertEquals(2, outbox.size());
+        outbox.close();
+
+        outbox = new Outbox(path, Outbox.DEFAULT_CAPACITY, Outbox.DEFAULT_MAX_AGE);
+        assertEquals(2, outbox.size());
+        assertDelivered(outbox, 3, 4);
+        outbox.close();
+    }
+
+    @Test
+    public void messageBiggerThanTheJournal_isRefused() throws IOException {
+        Outbox outbox = new Outbox(path, 16 + 4 * RECORD + 4, Outbox.DEFAULT_MAX_AGE);
+        assertFalse(outbox.append(1, ConnectedThread.PRIORITY_NORMAL, new byte[4 * RECORD]));
+        assertEquals(0, outbox.size());
+        outbox.close();
+    }
+
+    @Test
+    public void expired_areNotSent() throws Exception {
+        Outbox outbox = new Outbox(path, Outbox.DEFAULT_CAPACITY, 1);
+        outbox.append(1, ConnectedThread.PRIORITY_NORMAL, message(0));
+        outbox.append(1, ConnectedThread.PRIORITY_NORMAL, message(1));
+        Thread.sleep(20);
+
+        LinkPair link = new LinkPair().start();
+        try {
+            assertEquals(0, outbox.drain(link.a));
+            assertEquals(2, outbox.getExpired());
+            assertEquals(0, outbox.size());
+        } finally {
+            link.close();
+            outbox.close();
+        }
+    }
+
+    /**
+     * Drains the outbox on a new connection and checks the messages arrive in order
+     */
+    private static void assertDelivered(Outbox outbox, int... expected) throws Exception {
+        LinkPair link = new LinkPair().start();
+        try {
+            LinkPair.Inbox inbox = new LinkPair.Inbox();
+            link.b.getChannel(1).setReader(inbox);
+            assertEquals(expected.length, outbox.drain(link.a));
+
+            assertTrue(inbox.await(expected.length, LinkPair.TIMEOUT_MILLIS));
+            for (int i = 0; i < expected.length; i++) {
+                assertArrayEquals(message(expected[i]), inbox.get(i));
+            }
+            long deadline = System.currentTimeMillis() + LinkPair.TIMEOUT_MILLIS;
+            while (outbox.size() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals("Removed once written", 0, outbox.size());
+        } finally {
+            link.close();
+        }
+    }
+
+    private static byte[] message(int n) {
+        byte[] message = new byte[MESSAGE];
+        Frame.writeInt(message, 0, n);
+        message[MESSAGE - 1] = (byte) n;
+        return message;
+    }
+}
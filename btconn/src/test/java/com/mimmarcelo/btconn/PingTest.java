@@ -0,0 +1,52 @@
+/**
+ * File name: PingTest
+ * Pings answered by the peer over a {@link LinkPair}, with the PONG queued
+ * ahead of the messages waiting on its side
+ */
+package com.mimmarcelo.btconn;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PingTest {
+
+    @Test
+    public void ping_measuresTheRoundTrip() throws Exception {
+        LinkPair link = new LinkPair().start();
+        try {
+            for (int i = 0; i < 3; i++) {
+                long rtt = link.a.ping().get(LinkPair.TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                assertTrue(rtt > 0);
+            }
+
+            LinkQuality quality = link.a.getLinkQuality();
+            assertEquals(3, quality.getPingsSent());
+            assertEquals(0, quality.getPingsLost());
+            assertTrue(quality.getMinRttNanos() > 0);
+        } finally {
+            link.close();
+        }
+    }
+
+    @Test
+    public void ping_isAnsweredWhileThePeerSends() throws Exception {
+        LinkPair link = new LinkPair().start();
+        try {
+            // The answer does not wait for the messages queued by the peer
+            Random random = new Random(49);
+            for (int i = 0; i < 50; i++) {
+                byte[] data = new byte[1000]; // Random bytes are not compressed
+                random.nextBytes(data);
+                link.b.send(1, data, ConnectedThread.PRIORITY_BULK);
+            }
+            long rtt = link.a.ping().get(LinkPair.TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            assertTrue(rtt > 0);
+        } finally {
+            link.close();
+        }
+    }
+}
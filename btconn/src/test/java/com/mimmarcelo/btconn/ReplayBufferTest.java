@@ -0,0 +1,153 @@
+/**
+ * File name: ReplayBufferTest
+ * Checks that {@link ReplayBuffer} writes again, as they were, the frames kept
+ * across the end of its ring
+ */
+package com.mimmarcelo.btconn;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ReplayBufferTest {
+
+    private static final int CHANNEL = 0x0102;
+
+    @Test
+    public void append_givesConsecutiveSequences() {
+        ReplayBuffer replay = new ReplayBuffer(1024);
+        replay.reset(7);
+        assertEquals(7, replay.append(0, CHANNEL, payload(1, 10), 0, 10));
+        assertEquals(8, replay.append(0, CHANNEL, payload(2, 10), 0, 10));
+        assertEquals(7, replay.firstSeq());
+        assertEquals(9, replay.nextSeq());
+        assertTrue(replay.covers(7));
+        assertTrue(replay.covers(9));
+        assertFalse(replay.covers(6));
+    }
+
+    @Test
+    public void replay_writesTheFramesFromSeq() throws IOException {
+        ReplayBuffer replay = new ReplayBuffer(1024);
+        for (int i = 0; i < 5; i++) {
+            replay.append(Frame.FLAG_END, CHANNEL, payload(i, 20 + i), 0, 20 + i);
+        }
+
+        List<Written> frames = replay(replay, 2);
+        assertEquals(3, frames.size());
+        for (int i = 0; i < 3; i++) {
+            Written frame = frames.get(i);
+            assertEquals(2 + i, frame.seq);
+            assertEquals(CHANNEL, frame.channel);
+            assertEquals(Frame.FLAG_END, frame.flags);
+            assertArrayEquals(payload(2 + i, 22 + i), frame.payload);
+        }
+    }
+
+    @Test
+    public void wraparound_keepsTheNewestFrames() throws IOException {
+        // 31 bytes per entry in 100 bytes: at most 3 kept, written across the end of the ring
+        ReplayBuffer replay = new ReplayBuffer(100);
+        for (int i = 0; i < 20; i++) {
+            replay.append(0, CHANNEL, payload(i, 20), 0, 20);
+
+            int kept = Math.min(i + 1, 3);
+            assertEquals(i + 1 - kept, replay.firstSeq());
+            List<Written> frames = replay(replay, replay.firstSeq());
+            assertEquals(kept, frames.size());
+            for (Written frame : frames) {
+                assertArrayEquals("Frame " + frame.seq + " after " + i, payload(frame.seq, 20), frame.payload);
+            }
+        }
+        assertEquals(17, replay.getEvicted());
+        assertFalse(replay.covers(16));
+    }
+
+    @Test
+    public void release_dropsTheAcknowledgedFrames() throws IOException {
+        ReplayBuffer replay = new ReplayBuffer(1024);
+        for (int i = 0; i < 4; i++) {
+            replay.append(0, CHANNEL, payload(i, 8), 0, 8);
+        }
+        replay.release(3);
+        assertEquals(3, replay.firstSeq());
+        assertEquals(0, replay.getEvicted());
+
+        List<Written> frames = replay(replay, 0);
+        assertEquals(1, frames.size());
+        assertEquals(3, frames.get(0).seq);
+
+        replay.release(4);
+        assertTrue(replay(replay, 0).isEmpty());
+        assertTrue(replay.covers(4));
+    }
+
+    @Test
+    public void sequences_wrapAroundTheInt() throws IOException {
+        ReplayBuffer replay = new ReplayBuffer(1024);
+        replay.reset(Integer.MAX_VALUE - 1);
+        for (int i = 0; i < 4; i++) {
+            replay.append(0, CHANNEL, payload(i, 8), 0, 8);
+        }
+        assertTrue(replay.covers(Integer.MIN_VALUE));
+
+        List<Written> frames = replay(replay, Integer.MAX_VALUE);
+        assertEquals(3, frames.size());
+        assertEquals(Integer.MAX_VALUE, frames.get(0).seq);
+        assertEquals(Integer.MIN_VALUE + 1, frames.get(2).seq);
+        assertArrayEquals(payload(3, 8), frames.get(2).payload);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void frameBiggerThanTheRing_isRefused() {
+        new ReplayBuffer(64).append(0, CHANNEL, new byte[60], 0, 60);
+    }
+
+    /* ** Helpers ** */
+
+    private static byte[] payload(int seed, int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) data[i] = (byte) (seed * 31 + i);
+        return data;
+    }
+
+    /**
+     * Replays into a writer without checksum and reads the frames back
+     */
+    private static List<Written> replay(ReplayBuffer replay, int seq) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        int count = replay.replay(seq, new FrameWriter(output, Frame.DEFAULT_MAX_PAYLOAD), null);
+
+        byte[] bytes = output.toByteArray();
+        List<Written> frames = new ArrayList<>();
+        Frame frame = new Frame();
+        int position = 0;
+        while (position < bytes.length) {
+            frame.readHeader(bytes, position);
+            assertEquals(Frame.TYPE_DATA, frame.type);
+            position += Frame.HEADER_SIZE;
+            Written written = new Written();
+            written.flags = frame.flags;
+            written.channel = frame.channel;
+            written.seq = Frame.readInt(bytes, position);
+            written.payload = Arrays.copyOfRange(bytes, position + Frame.SEQUENCE_SIZE, position + frame.length);
+            frames.add(written);
+            position += frame.length;
+        }
+        assertEquals(count, frames.size());
+        return frames;
+    }
+
+    private static final class Written {
+        int flags;
+        int channel;
+        int seq;
+        byte[] payload;
+    }
+}
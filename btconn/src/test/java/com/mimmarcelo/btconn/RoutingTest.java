@@ -0,0 +1,135 @@
+/**
+ * File name: RoutingTest
+ * {@link RoutingTable} decisions, and a message routed from A to C through B
+ * over two {@link LinkPair}s
+ */
+package com.mimmarcelo.btconn;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class RoutingTest {
+
+    @Test
+    public void address_roundTrip() {
+        byte[] buffer = new byte[RoutingTable.ADDRESS_SIZE];
+        RoutingTable.writeAddress(buffer, 0, "0A:1B:2C:3D:4E:FF");
+        assertEquals("0A:1B:2C:3D:4E:FF", RoutingTable.readAddress(buffer, 0));
+    }
+
+    @Test
+    public void shorterRoute_replacesTheKnownOne() throws IOException {
+        RoutingTable table = new RoutingTable();
+        table.setLocalAddress("02:00:00:00:00:01");
+        ConnectedThread far = connection();
+        ConnectedThread near = connection();
+
+        assertTrue(table.learn("02:00:00:00:00:09", far, 3));
+        assertFalse(table.learn("02:00:00:00:00:09", near, 4));
+        assertSame(far, table.next("02:00:00:00:00:09"));
+        assertTrue(table.learn("02:00:00:00:00:09", near, 1));
+        assertSame(near, table.next("02:00:00:00:00:09"));
+
+        table.remove(near);
+        assertNull(table.next("02:00:00:00:00:09"));
+    }
+
+    @Test
+    public void ownAddressAndTooFar_areNotLearned() throws IOException {
+        RoutingTable table = new RoutingTable();
+        table.setLocalAddress("02:00:00:00:00:01");
+        ConnectedThread conn = connection();
+        assertFalse(table.learn("02:00:00:00:00:01", conn, 1));
+        assertFalse(table.learn("02:00:00:00:00:09", conn, RoutingTable.DEFAULT_TTL + 1));
+        assertNull(table.next("02:00:00:00:00:09"));
+    }
+
+    @Test
+    public void routesToAPeer_skipTheOnesThroughIt() throws IOException {
+        RoutingTable table = new RoutingTable();
+        ConnectedThread peer = connection();
+        ConnectedThread other = connection();
+        table.addDirect(peer);
+        table.addDirect(other);
+        table.learn("02:00:00:00:00:09", peer, 2);
+
+        byte[] routes = table.routesFor(peer, Frame.DEFAULT_MAX_PAYLOAD);
+        assertEquals(RoutingTable.ADDRESS_SIZE * 2 + 1, routes.length); // Its address and "other"
+        assertEquals(peer.getAddress(), RoutingTable.readAddress(routes, 0));
+        assertEquals(other.getAddress(), RoutingTable.readAddress(routes, RoutingTable.ADDRESS_SIZE));
+    }
+
+    @Test
+    public void frameId_isSeenOnce() {
+        RoutingTable table = new RoutingTable();
+        assertTrue(table.firstSeen(42));
+        assertFalse(table.firstSeen(42));
+        for (long id = 0; id < RoutingTable.SEEN_CAPACITY; id++) {
+            table.firstSeen(1000 + id);
+        }
+        assertTrue("The oldest ids are forgotten", table.firstSeen(42));
+    }
+
+    @Test
+    public void message_reachesADeviceTwoHopsAway() throws Exception {
+        String addressA = LinkPair.newAddress();
+        String addressC = LinkPair.newAddress();
+        // A and C share the session registry, B has another address for each so they keep apart
+        LinkPair ab = new LinkPair(addressA, LinkPair.newAddress(), LinkPair.PIPE_SIZE).handshake();
+        LinkPair bc = new LinkPair(LinkPair.newAddress(), addressC, LinkPair.PIPE_SIZE).handshake();
+        RoutingTable tableA = node(ab.a);
+        RoutingTable tableB = node(ab.b, bc.a);
+        RoutingTable tableC = node(bc.b);
+        try {
+            // A learns, from the routes announced by B, that C is behind it
+            announce(tableA, tableB, tableC);
+            long deadline = System.currentTimeMillis() + LinkPair.TIMEOUT_MILLIS;
+            while (tableA.next(addressC) == null && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertSame(ab.a, tableA.next(addressC));
+            assertEquals(addressA, tableA.getLocalAddress());
+
+            byte[] payload = tableA.routed(addressC, 1, new byte[]{1, 2, 3});
+            assertTrue(ab.a.writeRouted(payload, 0, payload.length));
+
+            assertTrue(bc.listenerB.await(BluetoothListener.MESSAGE_RECEIVED, 1, LinkPair.TIMEOUT_MILLIS));
+            Thread.sleep(100);
+            assertEquals("Delivered once", 1, bc.listenerB.count(BluetoothListener.MESSAGE_RECEIVED));
+            assertEquals("B only forwards", 0, ab.listenerB.count(BluetoothListener.MESSAGE_RECEIVED));
+            assertSame("C learned the way back", bc.b, tableC.next(addressA));
+        } finally {
+            ab.close();
+            bc.close();
+        }
+    }
+
+    private static ConnectedThread connection() throws IOException {
+        MemoryPipe pipe = new MemoryPipe(16);
+        return new ConnectedThread(new LinkPair.Listener(), LinkPair.newAddress(), pipe.input, pipe.output);
+    }
+
+    /**
+     * A device with these connections, handshaken and not started yet
+     */
+    private static RoutingTable node(ConnectedThread... connections) {
+        RoutingTable table = new RoutingTable();
+        for (ConnectedThread conn : connections) {
+            conn.setRoutingTable(table);
+            table.addDirect(conn);
+            conn.start();
+        }
+        return table;
+    }
+
+    private static void announce(RoutingTable... tables) {
+        for (RoutingTable table : tables) {
+            for (ConnectedThread conn : table.getConnections()) {
+                conn.sendRoutes();
+            }
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/**
+ * File name: SessionTest
+ * When the {@link Session}s kept between connections are forgotten
+ */
+package com.mimmarcelo.btconn;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SessionTest {
+
+    @Before
+    public void forgetSessions() {
+        Session.clear();
+    }
+
+    @Test
+    public void get_keepsTheSessionOfTheAddress() {
+        String address = LinkPair.newAddress();
+        Session session = Session.get(address);
+        assertSame(session, Session.get(address));
+        assertNotSame(session, Session.get(LinkPair.newAddress()));
+    }
+
+    @Test
+    public void cancelled_withEverythingAcknowledged_isForgotten() {
+        String address = LinkPair.newAddress();
+        Session session = Session.get(address);
+        session.replay.append(0, 1, new byte[10], 0, 10);
+        session.replay.release(session.replay.nextSeq());
+
+        Session.release(session, true);
+        assertFalse(Session.isKept(address));
+        assertNotSame(session, Session.get(address));
+    }
+
+    @Test
+    public void cancelled_withFramesNotAcknowledged_isKept() {
+        String address = LinkPair.newAddress();
+        Session session = Session.get(address);
+        session.replay.append(0, 1, new byte[10], 0, 10);
+
+        Session.release(session, true);
+        assertSame(session, Session.get(address));
+    }
+
+    @Test
+    public void lostLink_isKeptUntilItExpires() {
+        String address = LinkPair.newAddress();
+        Session session = Session.get(address);
+        Session.release(session, false);
+
+        Session.expire(System.nanoTime());
+        assertTrue(Session.isKept(address));
+        Session.expire(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Session.EXPIRY_MILLIS + 1000));
+        assertFalse(Session.isKept(address));
+    }
+
+    @Test
+    public void connected_doesNotExpire() {
+        String address = LinkPair.newAddress();
+        Session.get(address);
+        Session.expire(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Session.EXPIRY_MILLIS + 1000));
+        assertTrue(Session.isKept(address));
+    }
+
+    @Test
+    public void tooManyPeersAway_forgetsTheLeastRecentlyConnected() {
+        String[] addresses = new String[Session.MAX_SESSIONS + 1];
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = LinkPair.newAddress();
+            Session.release(Session.get(addresses[i]), false);
+        }
+
+        Session.expire(System.nanoTime());
+        assertFalse(Session.isKept(addresses[0]));
+        for (int i = 1; i < addresses.length; i++) {
+            assertTrue(Session.isKept(addresses[i]));
+        }
+    }
+
+    @Test
+    public void connection_releasesItsSession() throws Exception {
+        LinkPair link = new LinkPair().start();
+        LinkPair.Inbox inbox = new LinkPair.Inbox();
+        link.b.getChannel(1).setReader(inbox);
+        link.a.send(1, new byte[]{1}, ConnectedThread.PRIORITY_NORMAL);
+        assertTrue(inbox.await(1, LinkPair.TIMEOUT_MILLIS));
+
+        // The link is lost: both sides keep the session to resume
+        link.breakLink();
+        link.a.join(LinkPair.TIMEOUT_MILLIS);
+        link.b.join(LinkPair.TIMEOUT_MILLIS);
+        link.close(); // Cleaning up after the loss does not forget them
+        assertTrue(Session.isKept(link.addressA));
+        assertTrue(Session.isKept(link.addressB));
+
+        // Reconnected and closed by the application with every frame acknowledged
+        LinkPair again = new LinkPair(link.addressA, link.addressB, LinkPair.PIPE_SIZE).start();
+        long deadline = System.currentTimeMillis() + LinkPair.TIMEOUT_MILLIS;
+        Session session = Session.get(link.addressB);
+        while (session.replay.firstSeq() != session.replay.nextSeq() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        again.a.cancel();
+        again.a.join(LinkPair.TIMEOUT_MILLIS);
+        assertFalse(Session.isKept(link.addressB));
+        again.close();
+    }
+
+    @Test
+    public void reconnection_deliversEveryMessageOnceInOrder() throws Exception {
+        int count = 300;
+        LinkPair link = new LinkPair().start();
+        LinkPair.Inbox inbox = new LinkPair.Inbox();
+        link.b.getChannel(1).setReader(inbox);
+        for (int i = 0; i < count; i++) {
+            byte[] message = new byte[400]; // Only part of them fits in the window
+            Frame.writeInt(message, 0, i);
+            link.a.send(1, message, ConnectedThread.PRIORITY_NORMAL);
+        }
+
+        // The link drops in the middle of the stream
+        assertTrue(inbox.await(10, LinkPair.TIMEOUT_MILLIS));
+        link.breakLink();
+        link.a.join(LinkPair.TIMEOUT_MILLIS);
+        link.b.join(LinkPair.TIMEOUT_MILLIS);
+        assertTrue(inbox.size() < count);
+
+        // The channel reader moves to the new connection with the stream
+        LinkPair again = new LinkPair(link.addressA, link.addressB, LinkPair.PIPE_SIZE).start();
+        try {
+            assertTrue(inbox.await(count, LinkPair.TIMEOUT_MILLIS));
+            Thread.sleep(100); // Duplicates would arrive right after
+            assertEquals(count, inbox.size());
+            for (int i = 0; i < count; i++) {
+                assertEquals(i, Frame.readInt(inbox.get(i), 0));
+            }
+        } finally {
+            again.close();
+        }
+    }
+}
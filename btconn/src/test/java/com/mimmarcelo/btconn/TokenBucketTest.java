@@ -0,0 +1,97 @@
+/**
+ * File name: TokenBucketTest
+ * Checks the rate of {@link TokenBucket} on a clock driven by the test
+ */
+package com.mimmarcelo.btconn;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TokenBucketTest {
+
+    private static final long SECOND = 1000000000L;
+    private static final long START = 123456789L; // Any origin, the bucket uses only differences
+
+    @Test
+    public void unlimited_neverWaits() {
+        TokenBucket bucket = new TokenBucket(START);
+        assertEquals(0, bucket.take(1000000, START));
+        assertEquals(0, bucket.take(1000000, START));
+    }
+
+    @Test
+    public void limited_startsFull() {
+        TokenBucket bucket = new TokenBucket(START);
+        bucket.setRate(1000, 1000, START);
+        assertEquals(0, bucket.take(1000, START));
+        assertEquals(SECOND / 2, bucket.take(500, START));
+    }
+
+    @Test
+    public void idleSecond_addsTheRateNotTheBurst() {
+        TokenBucket bucket = new TokenBucket(START);
+        bucket.setRate(1000, 5000, START);
+        assertEquals(0, bucket.take(5000, START));
+
+        long now = START + SECOND;
+        assertEquals(0, bucket.take(1000, now));
+        assertEquals(SECOND / 1000, bucket.take(1, now));
+    }
+
+    @Test
+    public void longIdle_refillsUpToTheBurst() {
+        TokenBucket bucket = new TokenBucket(START);
+        bucket.setRate(1000, 5000, START);
+        assertEquals(0, bucket.take(5000, START));
+
+        long now = START + 60 * SECOND;
+        assertEquals(0, bucket.take(5000, now));
+        assertTrue(bucket.take(1, now) > 0);
+    }
+
+    @Test
+    public void hugeIdle_doesNotOverflow() {
+        TokenBucket bucket = new TokenBucket(START);
+        bucket.setRate(Integer.MAX_VALUE, Integer.MAX_VALUE, START);
+        assertEquals(0, bucket.take(Integer.MAX_VALUE, START));
+
+        long now = START + 365L * 24 * 3600 * SECOND;
+        assertEquals(0, bucket.take(Integer.MAX_VALUE, now));
+        assertTrue(bucket.take(Integer.MAX_VALUE, now) > 0);
+    }
+
+    @Test
+    public void sustainedSending_keepsTheRate() {
+        long rate = 10000;
+        int burst = 2000;
+        TokenBucket bucket = new TokenBucket(START);
+        bucket.setRate(rate, burst, START);
+
+        long now = START;
+        long sent = 0;
+        while (now - START < 10 * SECOND) {
+            now += bucket.take(100, now); // Waits as the pacer does
+            sent += 100;
+        }
+        long expected = rate * 10 + burst;
+        assertTrue("Sent " + sent + " bytes", Math.abs(sent - expected) <= 200);
+    }
+
+    @Test
+    public void pausesBetweenBursts_neverExceedTheRate() {
+        long rate = 1000;
+        int burst = 4000;
+        TokenBucket bucket = new TokenBucket(START);
+        bucket.setRate(rate, burst, START);
+        assertEquals(0, bucket.take(burst, START));
+
+        // A burst after each pause of 1 s gets only what the pause refilled
+        long now = START;
+        for (int i = 0; i < 10; i++) {
+            now += SECOND;
+            assertEquals(0, bucket.take((int) rate, now));
+        }
+        assertTrue(bucket.take(1, now) > 0);
+    }
+}
@@ -0,0 +1,148 @@
+/**
+ * File name: TransferTest
+ * {@link FileTransfer}s over a {@link LinkPair}, whole and resumed from a partial file
+ */
+package com.mimmarcelo.btconn;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TransferTest {
+
+    private static final int SIZE = 100 * 1024;
+
+    private LinkPair link;
+    private File directory;
+    private byte[] content;
+
+    @Before
+    public void connect() throws IOException {
+        link = new LinkPair().start();
+        directory = Files.createTempDirectory("btconn").toFile();
+        link.b.setTransferDirectory(directory);
+        content = new byte[SIZE];
+        new Random(28).nextBytes(content);
+    }
+
+    @After
+    public void close() {
+        link.close();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void file_arrivesWhole() throws Exception {
+        File source = File.createTempFile("btconn", ".bin");
+        try {
+            write(source, content, content.length);
+            FileTransfer transfer = FileTransfer.fromFile(source);
+            link.a.startTransfer(transfer);
+
+            assertTrue(link.listenerB.await(BluetoothListener.TRANSFER_RECEIVED, 1, LinkPair.TIMEOUT_MILLIS));
+            assertArrayEquals(content, read(new File(directory, source.getName())));
+            assertTrue(link.listenerA.await(BluetoothListener.TRANSFER_COMPLETE, 1, LinkPair.TIMEOUT_MILLIS));
+            assertTrue(transfer.isComplete());
+        } finally {
+            source.delete();
+        }
+    }
+
+    @Test
+    public void partialFile_resumesAtItsLength() throws Exception {
+        // A previous connection dropped after this many bytes
+        int kept = 40000;
+        long id = 0x28;
+        write(new File(directory, Long.toHexString(id) + ".part"), content, kept);
+
+        CountingStream stream = new CountingStream(content);
+        link.a.startTransfer(FileTransfer.fromStream(id, "resumed.bin", SIZE, stream));
+
+        assertTrue(link.listenerB.await(BluetoothListener.TRANSFER_RECEIVED, 1, LinkPair.TIMEOUT_MILLIS));
+        assertArrayEquals(content, read(new File(directory, "resumed.bin")));
+        assertFalse(new File(directory, Long.toHexString(id) + ".part").exists());
+        assertEquals("Bytes sent again", SIZE - kept, stream.read);
+    }
+
+    @Test
+    public void completePartialFile_isNotSentAgain() throws Exception {
+        long id = 0x2800;
+        write(new File(directory, Long.toHexString(id) + ".part"), content, SIZE);
+
+        CountingStream stream = new CountingStream(content);
+        FileTransfer transfer = FileTransfer.fromStream(id, "done.bin", SIZE, stream);
+        link.a.startTransfer(transfer);
+
+        assertTrue(link.listenerB.await(BluetoothListener.TRANSFER_RECEIVED, 1, LinkPair.TIMEOUT_MILLIS));
+        assertTrue(link.listenerA.await(BluetoothListener.TRANSFER_COMPLETE, 1, LinkPair.TIMEOUT_MILLIS));
+        assertTrue(transfer.isComplete());
+        assertEquals(0, stream.read);
+    }
+
+    private static void write(File file, byte[] data, int length) throws IOException {
+        FileOutputStream output = new FileOutputStream(file);
+        try {
+            output.write(data, 0, length);
+        } finally {
+            output.close();
+        }
+    }
+
+    private static byte[] read(File file) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[(int) input.length()];
+            input.readFully(data);
+            return data;
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Counts the bytes read, the skipped ones were already received
+     */
+    private static final class CountingStream extends InputStream {
+
+        private final InputStream source;
+        volatile int read;
+
+        CountingStream(byte[] data) {
+            this.source = new ByteArrayInputStream(data);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = source.read();
+            if (b >= 0) read++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] data, int offset, int length) throws IOException {
+            int bytes = source.read(data, offset, length);
+            if (bytes > 0) read += bytes;
+            return bytes;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            return source.skip(n);
+        }
+    } // end CountingStream class
+}
@@ -0,0 +1,89 @@
+/**
+ * File name: TtlTest
+ * Messages whose time to live ends while they wait in the {@link OutboundQueue}
+ */
+package com.mimmarcelo.btconn;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TtlTest {
+
+    private static final int LANE = ConnectedThread.PRIORITY_NORMAL;
+
+    @Test
+    public void expired_isSkipped() throws Exception {
+        OutboundQueue queue = new OutboundQueue(Frame.DEFAULT_MAX_PAYLOAD);
+        Channel channel = new Channel(1, null);
+        Outgoing stale = new Outgoing(channel, LANE, new byte[]{1});
+        stale.expiresAt = stale.enqueuedAt + 1000000L;
+        queue.offer(stale);
+        queue.offer(new Outgoing(channel, LANE, new byte[]{2}));
+        Thread.sleep(5);
+
+        Outgoing taken = queue.take(100);
+        assertEquals(2, taken.data[0]);
+        assertEquals(1, queue.getMetrics(LANE).getExpired());
+    }
+
+    @Test
+    public void laneTtl_appliesToTheMessagesOfferedAfterwards() throws Exception {
+        OutboundQueue queue = new OutboundQueue(Frame.DEFAULT_MAX_PAYLOAD);
+        Channel channel = new Channel(1, null);
+        queue.setTtl(LANE, 1);
+        queue.offer(new Outgoing(channel, LANE, new byte[]{1}));
+        queue.setTtl(LANE, 0);
+        queue.offer(new Outgoing(channel, LANE, new byte[]{2}));
+        Thread.sleep(5);
+
+        Outgoing taken = queue.take(100);
+        assertEquals(2, taken.data[0]);
+        queue.sent(taken, taken.chunk);
+        assertSame(Outgoing.IDLE, queue.take(50));
+    }
+
+    @Test
+    public void started_isNotDropped() throws Exception {
+        OutboundQueue queue = new OutboundQueue(Frame.DEFAULT_MAX_PAYLOAD);
+        Channel channel = new Channel(1, null);
+        Outgoing big = new Outgoing(channel, LANE, new byte[3 * Frame.DEFAULT_MAX_PAYLOAD]);
+        big.expiresAt = big.enqueuedAt + 1000000L;
+        queue.offer(big);
+
+        Outgoing taken = queue.take(100);
+        queue.sent(taken, taken.chunk);
+        Thread.sleep(5);
+
+        // The peer has its first fragment, the rest is still sent
+        assertSame(big, queue.take(100));
+        assertEquals(0, queue.getMetrics(LANE).getExpired());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeTtl_isRefused() {
+        new OutboundQueue(Frame.DEFAULT_MAX_PAYLOAD).setTtl(LANE, -1);
+    }
+
+    @Test
+    public void connection_dropsWhatWaitedTooLong() throws Exception {
+        LinkPair link = new LinkPair().handshake();
+        try {
+            LinkPair.Inbox inbox = new LinkPair.Inbox();
+            link.b.getChannel(1).setReader(inbox);
+
+            // Nothing is written while the connection does not start
+            link.a.send(1, new byte[]{1}, LANE, 1);
+            link.a.send(1, new byte[]{2}, LANE, 60000);
+            Thread.sleep(20);
+            link.a.start();
+            link.b.start();
+
+            assertTrue(inbox.await(1, LinkPair.TIMEOUT_MILLIS));
+            assertEquals(2, inbox.get(0)[0]);
+            assertEquals(1, link.a.getLaneMetrics(LANE).getExpired());
+        } finally {
+            link.close();
+        }
+    }
+}